@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.util.Locale;
+
+/*
+    Forecast responses captured from OpenWeatherMap's /data/2.5/forecast/daily endpoint, plus a
+    generator for longer ones, so the ingestion tests don't need the internet.
+ */
+public class ForecastPayloads {
+
+    // mode=json&units=metric&cnt=3 for "Seoul", recorded December 20th, 2014
+    static final String SEOUL_3_DAY = "{\"city\":{\"id\":1835848,\"name\":\"Seoul\"," +
+            "\"coord\":{\"lon\":126.977798,\"lat\":37.56826},\"country\":\"KR\",\"population\":0}," +
+            "\"cod\":\"200\",\"message\":0.0271,\"cnt\":3,\"list\":[" +
+            "{\"dt\":1419044400,\"temp\":{\"day\":-1.5,\"min\":-6.27,\"max\":0.34,\"night\":-6.27," +
+            "\"eve\":-2.86,\"morn\":-1.5},\"pressure\":1031.27,\"humidity\":63," +
+            "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\"," +
+            "\"icon\":\"01d\"}],\"speed\":3.06,\"deg\":301,\"clouds\":0}," +
+            "{\"dt\":1419130800,\"temp\":{\"day\":1.12,\"min\":-5.01,\"max\":2.87,\"night\":-0.82," +
+            "\"eve\":0.4,\"morn\":-5.01},\"pressure\":1028.52,\"humidity\":58," +
+            "\"weather\":[{\"id\":802,\"main\":\"Clouds\",\"description\":\"scattered clouds\"," +
+            "\"icon\":\"03d\"}],\"speed\":1.81,\"deg\":252,\"clouds\":36}," +
+            "{\"dt\":1419217200,\"temp\":{\"day\":3.4,\"min\":-0.66,\"max\":4.92,\"night\":1.2," +
+            "\"eve\":2.63,\"morn\":-0.66},\"pressure\":1019.11,\"humidity\":87," +
+            "\"weather\":[{\"id\":600,\"main\":\"Snow\",\"description\":\"light snow\"," +
+            "\"icon\":\"13d\"},{\"id\":701,\"main\":\"Mist\",\"description\":\"mist\"," +
+            "\"icon\":\"50d\"}],\"speed\":2.21,\"deg\":84,\"clouds\":92,\"snow\":1.5}]}";
+
+    // mode=json&units=imperial&cnt=2 for "94043", recorded December 20th, 2014.  Note that
+    // "list" comes before "city" here.
+    static final String MOUNTAIN_VIEW_2_DAY = "{\"cod\":\"200\",\"message\":0.0032,\"cnt\":2," +
+            "\"list\":[" +
+            "{\"dt\":1419105600,\"temp\":{\"day\":59.18,\"min\":50.63,\"max\":60.01," +
+            "\"night\":50.63,\"eve\":56.68,\"morn\":59.18},\"pressure\":1014.5,\"humidity\":0," +
+            "\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\"," +
+            "\"icon\":\"10d\"}],\"speed\":9.17,\"deg\":163,\"clouds\":88,\"rain\":2.5}," +
+            "{\"dt\":1419192000,\"temp\":{\"day\":57.09,\"min\":48.4,\"max\":58.3,\"night\":48.4," +
+            "\"eve\":54.32,\"morn\":51.06},\"pressure\":1019.08,\"humidity\":92," +
+            "\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\"," +
+            "\"icon\":\"04d\"}],\"speed\":4.36,\"deg\":330,\"clouds\":64}]," +
+            "\"city\":{\"id\":5375480,\"name\":\"Mountain View\"," +
+            "\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\"," +
+            "\"population\":0}}";
+
+    /**
+     * Generate a forecast in the same shape OWM sends, with {@code days} entries in "list".
+     * The values vary from day to day so that a parser mixing up rows would be caught.
+     */
+    static String generate(String cityName, double lat, double lon, int days) {
+        StringBuilder json = new StringBuilder(256 + days * 320);
+        json.append("{\"city\":{\"id\":1,\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":").append(lon).append(",\"lat\":").append(lat)
+                .append("},\"country\":\"XX\",\"population\":0},\"cod\":\"200\",")
+                .append("\"message\":0.01,\"cnt\":").append(days).append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            double min = -10 + (i % 17) * 1.25;
+            double max = min + 4.5 + (i % 5);
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f," +
+                            "\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f},\"pressure\":%.2f," +
+                            "\"humidity\":%d,\"weather\":[{\"id\":%d,\"main\":\"%s\"," +
+                            "\"description\":\"generated\",\"icon\":\"01d\"}]," +
+                            "\"speed\":%.2f,\"deg\":%d,\"clouds\":%d}",
+                    1419033600L + i * 86400L, (min + max) / 2, min, max, min, max, min,
+                    1000 + (i % 40) * 0.75, (i * 7) % 101, CONDITION_IDS[i % CONDITION_IDS.length],
+                    CONDITION_NAMES[i % CONDITION_NAMES.length], (i % 13) * 0.9, (i * 37) % 360,
+                    (i * 11) % 100));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static final int[] CONDITION_IDS = {800, 801, 500, 600, 211, 741};
+    private static final String[] CONDITION_NAMES = {"Clear", "Clouds", "Rain", "Snow",
+            "Thunderstorm", "Fog"};
+}
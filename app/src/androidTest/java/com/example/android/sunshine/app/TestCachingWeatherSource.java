@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Puts a CachingWeatherSource between the sync engine and a local stand-in for
+    OpenWeatherMap, and counts what still reaches the server.
+ */
+public class TestCachingWeatherSource extends AndroidTestCase {
+
+    static final String LOCATION_PREFIX = "Cached ";
+    static final String ETAG = "\"cached-v1\"";
+    static final int NUM_DAYS = 14;
+
+    private File mDirectory;
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "forecast-cache-test");
+        deleteCache();
+        deleteTestLocations();
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return StubHttpServer.Response.notModified().setHeader("ETag", ETAG);
+                }
+                String locationSetting = Uri.parse(request.path).getQueryParameter("q");
+                return StubHttpServer.Response.ok(
+                        ForecastPayloads.generate(locationSetting, 10.0, 20.0, NUM_DAYS))
+                        .setHeader("ETag", ETAG);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteTestLocations();
+        deleteCache();
+        super.tearDown();
+    }
+
+    public void testFreshForecastIsServedFromDisk() throws Exception {
+        CachingWeatherSource cache = newCache(10 * 60 * 1000, 1024 * 1024);
+        WeatherSyncEngine engine = newEngine(cache);
+        List<String> locations = Collections.singletonList(LOCATION_PREFIX + "Fresh");
+
+        assertEquals(WeatherSyncEngine.Status.UPDATED, syncOne(engine, locations).getStatus());
+        assertEquals(1, mServer.getRequestCount());
+
+        // Same validators as what's stored, so nothing to parse or write either.
+        WeatherSyncEngine.LocationResult second = syncOne(engine, locations);
+        assertEquals(WeatherSyncEngine.Status.NOT_MODIFIED, second.getStatus());
+        assertEquals("Error: a fresh cached forecast should not go to the network",
+                1, mServer.getRequestCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // With the database wiped, the cached copy is stored again, still without the network.
+        deleteTestLocations();
+        WeatherSyncEngine.LocationResult third = syncOne(engine, locations);
+        assertEquals(WeatherSyncEngine.Status.UPDATED, third.getStatus());
+        assertEquals(0, third.getWireByteCount());
+        assertEquals(NUM_DAYS, weatherRowCount());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testExpiredForecastIsRevalidated() throws Exception {
+        CachingWeatherSource cache = newCache(300, 1024 * 1024);
+        WeatherSyncEngine engine = newEngine(cache);
+        List<String> locations = Collections.singletonList(LOCATION_PREFIX + "Expired");
+
+        syncOne(engine, locations);
+        Thread.sleep(400);
+        assertEquals(WeatherSyncEngine.Status.NOT_MODIFIED, syncOne(engine, locations).getStatus());
+        assertEquals("Error: an expired forecast should be checked with the server",
+                2, mServer.getRequestCount());
+        assertEquals(ETAG, mServer.getLastRequest().getHeader("If-None-Match"));
+
+        // The 304 vouched for the cached copy, so it is good for another TTL.
+        syncOne(engine, locations);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        int payloadBytes = ForecastPayloads.generate(LOCATION_PREFIX + "A", 10.0, 20.0, NUM_DAYS)
+                .getBytes("UTF-8").length;
+        // Room for two forecasts, not three.
+        CachingWeatherSource cache = newCache(10 * 60 * 1000, payloadBytes * 5 / 2);
+
+        fetch(cache, LOCATION_PREFIX + "A");
+        fetch(cache, LOCATION_PREFIX + "B");
+        // A is now more recently used than B.
+        fetch(cache, LOCATION_PREFIX + "A");
+        assertEquals(1, cache.getHitCount());
+        fetch(cache, LOCATION_PREFIX + "C");
+
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue("Error: the cache should stay within its size limit",
+                cache.getSize() <= payloadBytes * 5 / 2);
+        List<String> cached = cache.getCachedLocationSettings(WeatherSyncEngine.UNITS);
+        Collections.sort(cached);
+        assertEquals(Arrays.asList(LOCATION_PREFIX + "A", LOCATION_PREFIX + "C"), cached);
+    }
+
+    public void testReingestFromCache() throws Exception {
+        CachingWeatherSource cache = newCache(10 * 60 * 1000, 1024 * 1024);
+        WeatherSyncEngine engine = newEngine(cache);
+        List<String> locations = Arrays.asList(
+                LOCATION_PREFIX + "1", LOCATION_PREFIX + "2", LOCATION_PREFIX + "3");
+        engine.sync(locations);
+        assertEquals(3 * NUM_DAYS, weatherRowCount());
+
+        // As if an upgrade had dropped the tables.
+        deleteTestLocations();
+        WeatherSyncEngine.SyncResult result = engine.reingest(cache);
+
+        assertEquals(0, result.getFailureCount());
+        assertEquals(3, result.getLocations().size());
+        assertEquals(3 * NUM_DAYS, weatherRowCount());
+        assertEquals("Error: reingesting should not download anything",
+                3, mServer.getRequestCount());
+    }
+
+    private CachingWeatherSource newCache(long ttlMillis, long maxBytes) {
+        return new CachingWeatherSource(
+                new OwmWeatherSource(mServer.getUrl("/data/2.5/forecast/daily?"),
+                        new WeatherHttpClient()),
+                mDirectory, ttlMillis, maxBytes);
+    }
+
+    private WeatherSyncEngine newEngine(WeatherSource source) {
+        WeatherSyncEngine engine = new WeatherSyncEngine(getContext(), source, 2);
+        engine.setRetryPolicy(RetryPolicy.NO_RETRIES);
+        return engine;
+    }
+
+    private static WeatherSyncEngine.LocationResult syncOne(WeatherSyncEngine engine,
+                                                            List<String> locations) {
+        return engine.sync(locations).getLocations().get(0);
+    }
+
+    // Read a whole forecast through the source, without storing it.
+    private static void fetch(WeatherSource source, String locationSetting) throws Exception {
+        WeatherSource.Response response = source.fetch(new WeatherSource.Request(
+                locationSetting, WeatherSyncEngine.UNITS, WeatherSyncEngine.NUM_DAYS, null, null));
+        assertEquals(200, response.getStatusCode());
+        InputStream body = response.getBody();
+        byte[] buffer = new byte[1024];
+        while (body.read(buffer) != -1) {
+            // read it all, like the parser would
+        }
+        response.close();
+    }
+
+    private int weatherRowCount() {
+        Cursor cursor = getContext().getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                new String[]{LOCATION_PREFIX + "%"},
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteCache() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private void deleteTestLocations() {
+        String[] selectionArgs = new String[]{LOCATION_PREFIX + "%"};
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                selectionArgs);
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?",
+                selectionArgs);
+    }
+}
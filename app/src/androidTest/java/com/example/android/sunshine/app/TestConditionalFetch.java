@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs a sync against a local stand-in for OpenWeatherMap that answers 304 once it
+    has seen the ETag it handed out, and checks that a 304 leaves the database alone.
+ */
+public class TestConditionalFetch extends AndroidTestCase {
+
+    static final String LOCATION_SETTING = "Conditional, XX";
+    static final String ETAG = "\"forecast-v1\"";
+    static final String LAST_MODIFIED = "Sat, 20 Dec 2014 00:00:00 GMT";
+    static final int NUM_DAYS = 14;
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteTestLocation();
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return StubHttpServer.Response.notModified()
+                            .setHeader("ETag", ETAG);
+                }
+                return StubHttpServer.Response.ok(
+                        ForecastPayloads.generate("Conditional", 10.0, 20.0, NUM_DAYS))
+                        .setHeader("ETag", ETAG)
+                        .setHeader("Last-Modified", LAST_MODIFIED);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteTestLocation();
+        super.tearDown();
+    }
+
+    public void testNotModifiedSkipsParseAndInsert() throws Exception {
+        // The first fetch has nothing to validate against, so it must be unconditional.
+        sync();
+
+        StubHttpServer.Request first = mServer.getLastRequest();
+        assertNull("Error: the first request should not be conditional",
+                first.getHeader("If-None-Match"));
+
+        Cursor location = getContext().getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_ETAG,
+                        LocationEntry.COLUMN_LAST_MODIFIED},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING},
+                null);
+        assertTrue("Error: the first fetch should have added the location", location.moveToFirst());
+        long locationId = location.getLong(0);
+        assertEquals("Error: the ETag was not stored", ETAG, location.getString(1));
+        assertEquals("Error: Last-Modified was not stored", LAST_MODIFIED, location.getString(2));
+        location.close();
+
+        String idsBefore = weatherRowIds(locationId);
+        assertEquals("Error: the first fetch should have stored every day",
+                NUM_DAYS, idsBefore.split(",").length);
+
+        // Now watch the whole authority while the second fetch gets a 304.
+        HandlerThread observerThread = new HandlerThread("ConditionalFetchObserver");
+        observerThread.start();
+        final AtomicInteger notifications = new AtomicInteger();
+        ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                notifications.incrementAndGet();
+            }
+        };
+        getContext().getContentResolver().registerContentObserver(
+                WeatherContract.BASE_CONTENT_URI, true, observer);
+
+        try {
+            sync();
+
+            StubHttpServer.Request second = mServer.getLastRequest();
+            assertEquals("Error: the second request should carry the stored ETag",
+                    ETAG, second.getHeader("If-None-Match"));
+            assertEquals("Error: the second request should carry the stored Last-Modified",
+                    LAST_MODIFIED, second.getHeader("If-Modified-Since"));
+
+            // Give any stray notification time to arrive before we say there was none.
+            Thread.sleep(1000);
+            assertEquals("Error: a 304 should not notify anyone", 0, notifications.get());
+        } finally {
+            getContext().getContentResolver().unregisterContentObserver(observer);
+            observerThread.quit();
+        }
+
+        // Rows keep their _ids when rewritten, so this only shows none were added or removed;
+        // the lack of notifications is what shows nothing was written.
+        assertEquals("Error: a 304 should not write any weather rows",
+                idsBefore, weatherRowIds(locationId));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    private String weatherRowIds(long locationId) {
+        Cursor cursor = getContext().getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                WeatherEntry._ID + " ASC");
+        StringBuilder ids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids.toString();
+    }
+
+    private void sync() {
+        new WeatherSyncEngine(getContext(), mServer.getUrl("/data/2.5/forecast/daily?"),
+                WeatherSyncEngine.DEFAULT_PARALLELISM)
+                .sync(Collections.singletonList(LOCATION_SETTING));
+    }
+
+    private void deleteTestLocation() {
+        Cursor location = getContext().getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING},
+                null);
+        while (location.moveToNext()) {
+            getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                    new String[]{Long.toString(location.getLong(0))});
+        }
+        location.close();
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING});
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.StringReader;
+
+/*
+    Checks that the streaming parser produces exactly the rows the JSONObject parser does.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    // A fixed start day keeps both parses on the same dates even if the test runs at midnight.
+    private static final int JULIAN_START_DAY = 2457012;  // December 20th, 2014
+
+    public void testRecordedPayloadParity() throws Exception {
+        assertParity("Seoul", ForecastPayloads.SEOUL_3_DAY);
+        assertParity("Mountain View", ForecastPayloads.MOUNTAIN_VIEW_2_DAY);
+    }
+
+    public void testLongPayloadParity() throws Exception {
+        // 16 days is the most the daily endpoint will send; 240 is roughly a month of hourly
+        // data pushed through the same shape.
+        assertParity("Sixteen",
+                ForecastPayloads.generate("Sixteen", 12.5, -45.25, 16));
+        assertParity("Hourly",
+                ForecastPayloads.generate("Hourly", -33.86, 151.2, 240));
+    }
+
+    public void testStreamingKeepsFirstWeatherElement() throws Exception {
+        ForecastJsonParser.Forecast forecast = new ForecastJsonParser(JULIAN_START_DAY)
+                .parse(new StringReader(ForecastPayloads.SEOUL_3_DAY));
+        // The third day lists "Snow" and then "Mist"; only the first one describes the day.
+        assertEquals("Snow", forecast.days.getShortDesc(2));
+        assertEquals(600, forecast.days.getWeatherId(2));
+    }
+
+    public void testStreamingRejectsIncompleteDay() throws Exception {
+        String json = "{\"city\":{\"name\":\"Nowhere\",\"coord\":{\"lat\":1,\"lon\":2}}," +
+                "\"list\":[{\"temp\":{\"min\":1,\"max\":2},\"pressure\":1000,\"humidity\":10," +
+                "\"weather\":[{\"id\":800,\"main\":\"Clear\"}],\"speed\":1}]}";
+        try {
+            new ForecastJsonParser(JULIAN_START_DAY).parse(new StringReader(json));
+            fail("Error: a day without a wind direction should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    private void assertParity(String cityName, String json) throws Exception {
+        ForecastJsonParser.Forecast dom = new ForecastJsonParser(JULIAN_START_DAY).parse(json);
+        ForecastJsonParser.Forecast streamed = new ForecastJsonParser(JULIAN_START_DAY)
+                .parse(new StringReader(json));
+
+        assertEquals("Error: city name differs for " + cityName, dom.cityName, streamed.cityName);
+        assertEquals(cityName, streamed.cityName);
+        assertEquals("Error: latitude differs for " + cityName,
+                dom.cityLatitude, streamed.cityLatitude);
+        assertEquals("Error: longitude differs for " + cityName,
+                dom.cityLongitude, streamed.cityLongitude);
+
+        assertEquals("Error: day count differs for " + cityName,
+                dom.days.size(), streamed.days.size());
+        for (int i = 0; i < dom.days.size(); i++) {
+            String error = "Error: day " + i + " differs for " + cityName;
+            assertEquals(error, dom.days.getDate(i), streamed.days.getDate(i));
+            assertEquals(error, dom.days.getWeatherId(i), streamed.days.getWeatherId(i));
+            assertEquals(error, dom.days.getShortDesc(i), streamed.days.getShortDesc(i));
+            assertEquals(error, dom.days.getMinTemp(i), streamed.days.getMinTemp(i));
+            assertEquals(error, dom.days.getMaxTemp(i), streamed.days.getMaxTemp(i));
+            assertEquals(error, dom.days.getHumidity(i), streamed.days.getHumidity(i));
+            assertEquals(error, dom.days.getPressure(i), streamed.days.getPressure(i));
+            assertEquals(error, dom.days.getWindSpeed(i), streamed.days.getWindSpeed(i));
+            assertEquals(error, dom.days.getDegrees(i), streamed.days.getDegrees(i));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestLocationIdCache extends AndroidTestCase {
+
+    static final String LOCATION_PREFIX = "IdCache ";
+    static final String ETAG = "\"id-cache-v1\"";
+    static final int NUM_LOCATIONS = 5;
+
+    private StubHttpServer mServer;
+    private LocationIdCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteTestLocations();
+        mCache = LocationIdCache.getInstance(getContext());
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return StubHttpServer.Response.notModified().setHeader("ETag", ETAG);
+                }
+                String locationSetting = Uri.parse(request.path).getQueryParameter("q");
+                return StubHttpServer.Response.ok(
+                        ForecastPayloads.generate(locationSetting, 10.0, 20.0, 7))
+                        .setHeader("ETag", ETAG);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteTestLocations();
+        super.tearDown();
+    }
+
+    public void testRepeatedSyncsIssueNoLocationQueries() throws Exception {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            locations.add(LOCATION_PREFIX + i);
+        }
+        WeatherSyncEngine engine = new WeatherSyncEngine(getContext(),
+                mServer.getUrl("/data/2.5/forecast/daily?"), 2);
+
+        // The first sync adds the locations, and hearing about that clears the cache once
+        // more, some time later.
+        engine.sync(locations);
+        Thread.sleep(500);
+        engine.sync(locations);
+        Thread.sleep(500);
+
+        mCache.resetCounters();
+        for (int i = 0; i < 3; i++) {
+            WeatherSyncEngine.SyncResult result = engine.sync(locations);
+            assertEquals(0, result.getFailureCount());
+        }
+        assertEquals("Error: syncs of known locations should not query the location table",
+                0, mCache.getQueryCount());
+        assertTrue(mCache.getHitCount() >= 3 * NUM_LOCATIONS);
+        // And the validators the cache handed out were the stored ones.
+        assertEquals(ETAG, mServer.getLastRequest().getHeader("If-None-Match"));
+    }
+
+    public void testDeleteInvalidatesImmediately() {
+        String locationSetting = LOCATION_PREFIX + "Deleted";
+        long locationId = WeatherSyncEngine.getInstance(getContext())
+                .addLocation(locationSetting, "Deleted", 1.0, 2.0);
+        assertEquals(locationId, mCache.get(locationSetting).locationId);
+
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+
+        mCache.resetCounters();
+        assertNull("Error: a deleted location should not be served from the cache",
+                mCache.get(locationSetting));
+        assertEquals(1, mCache.getQueryCount());
+    }
+
+    public void testNotificationInvalidates() throws Exception {
+        final String locationSetting = LOCATION_PREFIX + "Notified";
+        final long locationId = WeatherSyncEngine.getInstance(getContext())
+                .addLocation(locationSetting, "Notified", 1.0, 2.0);
+
+        // Something only a notification will clear.
+        mCache.put(locationSetting, new LocationIdCache.Entry(-1, null, null));
+        getContext().getContentResolver().notifyChange(LocationEntry.CONTENT_URI, null);
+
+        new PollingCheck(3000) {
+            @Override
+            protected boolean check() {
+                return mCache.get(locationSetting).locationId == locationId;
+            }
+        }.run();
+    }
+
+    private void deleteTestLocations() {
+        String[] selectionArgs = new String[]{LOCATION_PREFIX + "%"};
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                selectionArgs);
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?",
+                selectionArgs);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs the sync engine against a local stand-in for OpenWeatherMap that fails, or answers
+    too slowly, for as many requests as a test asks it to.
+ */
+public class TestResilientFetch extends AndroidTestCase {
+
+    static final String LOCATION_SETTING = "Resilient, XX";
+    static final int NUM_DAYS = 7;
+
+    // Short enough that the tests don't drag, long enough to tell apart from no wait at all.
+    static final RetryPolicy FAST_RETRIES = new RetryPolicy(3, 20, 100);
+
+    private StubHttpServer mServer;
+    private WeatherHttpClient mClient;
+    private WeatherSyncEngine mEngine;
+
+    // What the server does with the next mFaults requests; after that it answers normally.
+    private final AtomicInteger mFaults = new AtomicInteger();
+    private volatile StubHttpServer.Response mFault;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteTestLocation();
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (mFaults.getAndDecrement() > 0) {
+                    return mFault;
+                }
+                return StubHttpServer.Response.ok(
+                        ForecastPayloads.generate("Resilient", 1.0, 2.0, NUM_DAYS));
+            }
+        });
+        mServer.start();
+
+        // A private client, so the short read timeout doesn't leak into other tests.
+        mClient = new WeatherHttpClient();
+        mClient.setTimeouts(1000, 300);
+        mEngine = new WeatherSyncEngine(getContext(),
+                mServer.getUrl("/data/2.5/forecast/daily?"), 1, mClient);
+        mEngine.setRetryPolicy(FAST_RETRIES);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteTestLocation();
+        super.tearDown();
+    }
+
+    public void testServerErrorsAreRetried() {
+        injectFaults(2, StubHttpServer.Response.error(503));
+
+        WeatherSyncEngine.LocationResult result = syncTestLocation();
+
+        assertEquals(WeatherSyncEngine.Status.UPDATED, result.getStatus());
+        assertNull("Error: a retry that worked should not report an error", result.getError());
+        assertEquals(3, result.getAttemptCount());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(CircuitBreaker.State.CLOSED, mEngine.getCircuitBreaker().getState());
+        assertEquals(0, mEngine.getCircuitBreaker().getConsecutiveFailureCount());
+    }
+
+    public void testSlowResponsesAreRetried() {
+        injectFaults(1, StubHttpServer.Response.ok(ForecastPayloads.SEOUL_3_DAY).setDelay(2000));
+
+        WeatherSyncEngine.LocationResult result = syncTestLocation();
+
+        assertEquals(WeatherSyncEngine.Status.UPDATED, result.getStatus());
+        assertEquals("Error: a read timeout should be retried", 2, result.getAttemptCount());
+        assertEquals(NUM_DAYS, result.getRowCount());
+    }
+
+    public void testGivesUpAfterMaxAttempts() {
+        injectFaults(10, StubHttpServer.Response.error(502));
+
+        WeatherSyncEngine.LocationResult result = syncTestLocation();
+
+        assertEquals(WeatherSyncEngine.Status.FAILED, result.getStatus());
+        assertEquals(FAST_RETRIES.getMaxAttempts(), result.getAttemptCount());
+        assertEquals(FAST_RETRIES.getMaxAttempts(), mServer.getRequestCount());
+        assertEquals(502, ((WeatherSyncEngine.HttpStatusException) result.getError()).responseCode);
+    }
+
+    public void testClientErrorsAreNotRetried() {
+        injectFaults(10, StubHttpServer.Response.error(404));
+
+        WeatherSyncEngine.LocationResult result = syncTestLocation();
+
+        assertEquals(WeatherSyncEngine.Status.FAILED, result.getStatus());
+        assertEquals("Error: asking again won't change a 404", 1, mServer.getRequestCount());
+        assertEquals("Error: a 404 means the server is up",
+                CircuitBreaker.State.CLOSED, mEngine.getCircuitBreaker().getState());
+    }
+
+    public void testBreakerOpensFailsFastAndRecovers() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 500);
+        final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+        breaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChanged(CircuitBreaker breaker, CircuitBreaker.State from,
+                                       CircuitBreaker.State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+        mEngine.setCircuitBreaker(breaker);
+
+        // Three slow failures in a row: a timeout counts the same as an error status.
+        injectFaults(2, StubHttpServer.Response.error(500));
+        mEngine.setRetryPolicy(RetryPolicy.NO_RETRIES);
+        syncTestLocation();
+        syncTestLocation();
+        injectFaults(1, StubHttpServer.Response.ok(ForecastPayloads.SEOUL_3_DAY).setDelay(2000));
+        WeatherSyncEngine.LocationResult last = syncTestLocation();
+        assertTrue(last.getError() instanceof SocketTimeoutException);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(3, mServer.getRequestCount());
+
+        // Hammering refresh while it's open doesn't reach the server at all.
+        mEngine.setRetryPolicy(FAST_RETRIES);
+        for (int i = 0; i < 5; i++) {
+            WeatherSyncEngine.LocationResult result = syncTestLocation();
+            assertEquals(WeatherSyncEngine.Status.FAILED, result.getStatus());
+            assertTrue(result.getError() instanceof CircuitBreaker.OpenException);
+            assertEquals(0, result.getAttemptCount());
+        }
+        assertEquals("Error: an open breaker should not let requests through",
+                3, mServer.getRequestCount());
+        assertEquals(5, breaker.getRejectedCount());
+
+        // Once the open period is over, one trial request gets through and closes it.
+        Thread.sleep(600);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        WeatherSyncEngine.LocationResult result = syncTestLocation();
+        assertEquals(WeatherSyncEngine.Status.UPDATED, result.getStatus());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(4, mServer.getRequestCount());
+        assertEquals(Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"),
+                transitions);
+    }
+
+    public void testFailedTrialReopensBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 300);
+        mEngine.setCircuitBreaker(breaker);
+        mEngine.setRetryPolicy(RetryPolicy.NO_RETRIES);
+        injectFaults(2, StubHttpServer.Response.error(503));
+
+        syncTestLocation();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(400);
+        syncTestLocation();
+        assertEquals("Error: a failed trial should open the breaker again",
+                CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testBackoffIsCappedAndJittered() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        assertEquals(100, policy.getDelayCapMillis(1));
+        assertEquals(200, policy.getDelayCapMillis(2));
+        assertEquals(800, policy.getDelayCapMillis(4));
+        assertEquals("Error: the backoff should stop growing at the cap",
+                1000, policy.getDelayCapMillis(9));
+        assertEquals(1000, policy.getDelayCapMillis(Integer.MAX_VALUE));
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 200; i++) {
+            long delay = policy.getDelayMillis(4);
+            assertTrue("Error: " + delay + " is past the cap", delay >= 0 && delay <= 800);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("Error: retry delays should be spread out", max - min > 200);
+    }
+
+    private void injectFaults(int count, StubHttpServer.Response fault) {
+        mFault = fault;
+        mFaults.set(count);
+    }
+
+    private WeatherSyncEngine.LocationResult syncTestLocation() {
+        return mEngine.sync(Collections.singletonList(LOCATION_SETTING)).getLocations().get(0);
+    }
+
+    private void deleteTestLocation() {
+        String[] selectionArgs = new String[]{LOCATION_SETTING};
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " = ?)",
+                selectionArgs);
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                selectionArgs);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class TestResponseDecoding extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestResponseDecoding.class.getSimpleName();
+
+    // Not ASCII on purpose: the platform default charset must not matter.
+    static final String CITY_NAME = "S\u00e3o Paulo";
+    static final String LOCATION_SETTING = "Decoding, XX";
+
+    private String mPayload;
+    private byte[] mPayloadBytes;
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPayload = ForecastPayloads.generate(CITY_NAME, -23.55, -46.63, 14);
+        mPayloadBytes = mPayload.getBytes("UTF-8");
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                String accepted = request.getHeader("Accept-Encoding");
+                if (request.path.startsWith("/identity") || accepted == null) {
+                    return StubHttpServer.Response.ok(mPayload);
+                }
+                if (request.path.startsWith("/deflate") && accepted.contains("deflate")) {
+                    return StubHttpServer.Response.ok(mPayload)
+                            .setBody(deflate(mPayloadBytes, false))
+                            .setHeader("Content-Encoding", "deflate");
+                }
+                if (request.path.startsWith("/rawdeflate") && accepted.contains("deflate")) {
+                    return StubHttpServer.Response.ok(mPayload)
+                            .setBody(deflate(mPayloadBytes, true))
+                            .setHeader("Content-Encoding", "deflate");
+                }
+                if (accepted.contains("gzip")) {
+                    return StubHttpServer.Response.ok(mPayload)
+                            .setBody(gzip(mPayloadBytes))
+                            .setHeader("Content-Encoding", "gzip");
+                }
+                return StubHttpServer.Response.ok(mPayload);
+            }
+        });
+        mServer.start();
+        deleteTestLocation();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteTestLocation();
+        super.tearDown();
+    }
+
+    public void testGzip() throws Exception {
+        assertDecodes("/gzip", gzip(mPayloadBytes).length);
+        assertEquals("Error: the request should advertise gzip and deflate", "gzip, deflate",
+                mServer.getLastRequest().getHeader("Accept-Encoding"));
+    }
+
+    public void testDeflate() throws Exception {
+        assertDecodes("/deflate", deflate(mPayloadBytes, false).length);
+    }
+
+    public void testRawDeflate() throws Exception {
+        assertDecodes("/rawdeflate", deflate(mPayloadBytes, true).length);
+    }
+
+    public void testIdentity() throws Exception {
+        assertDecodes("/identity", mPayloadBytes.length);
+    }
+
+    public void testCloseCountsTheUnreadBody() throws Exception {
+        WeatherHttpClient client = new WeatherHttpClient();
+        HttpURLConnection urlConnection = client.open(new URL(mServer.getUrl("/gzip")));
+        WeatherHttpClient.ResponseStream in = client.getResponseStream(urlConnection);
+        assertTrue(in.read(new byte[16]) > 0);
+        in.close();
+        client.release(urlConnection);
+
+        assertEquals(gzip(mPayloadBytes).length, in.getWireByteCount());
+        assertEquals("Error: the body left unread should be counted decoded too",
+                mPayloadBytes.length, in.getDecodedByteCount());
+    }
+
+    public void testFetchRecordsBytesPerSync() throws Exception {
+        WeatherSyncEngine.LocationResult result = new WeatherSyncEngine(getContext(),
+                mServer.getUrl("/gzip?"), WeatherSyncEngine.DEFAULT_PARALLELISM)
+                .sync(Collections.singletonList(LOCATION_SETTING)).getLocations().get(0);
+
+        assertEquals(gzip(mPayloadBytes).length, result.getWireByteCount());
+        assertEquals(mPayloadBytes.length, result.getDecodedByteCount());
+        Log.i(LOG_TAG, String.format("14 day forecast: %d bytes decoded from %d on the wire (%.1f:1)",
+                result.getDecodedByteCount(), result.getWireByteCount(),
+                (double) result.getDecodedByteCount() / result.getWireByteCount()));
+
+        Cursor location = getContext().getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_NAME},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING},
+                null);
+        assertTrue("Error: the gzipped forecast was not stored", location.moveToFirst());
+        assertEquals("Error: the city name was not decoded as UTF-8", CITY_NAME,
+                location.getString(0));
+        location.close();
+    }
+
+    private void assertDecodes(String path, int expectedWireBytes) throws Exception {
+        WeatherHttpClient client = new WeatherHttpClient();
+        HttpURLConnection urlConnection = client.open(new URL(mServer.getUrl(path)));
+        WeatherHttpClient.ResponseStream in = client.getResponseStream(urlConnection);
+        byte[] body = readFully(in);
+        in.close();
+        client.release(urlConnection);
+
+        assertEquals("Error: " + path + " did not decode to the original payload",
+                mPayload, new String(body, "UTF-8"));
+        assertEquals(expectedWireBytes, in.getWireByteCount());
+        assertEquals(mPayloadBytes.length, in.getDecodedByteCount());
+        assertEquals(expectedWireBytes, client.getWireByteCount());
+        assertEquals(mPayloadBytes.length, client.getDecodedByteCount());
+    }
+
+    private static byte[] readFully(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            out.write(data);
+            out.close();
+            return bytes.toByteArray();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] data, boolean raw) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+            out.write(data);
+            out.close();
+            return bytes.toByteArray();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void deleteTestLocation() {
+        Cursor location = getContext().getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING},
+                null);
+        while (location.moveToNext()) {
+            getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                    new String[]{Long.toString(location.getLong(0))});
+        }
+        location.close();
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION_SETTING});
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSingleFlight extends AndroidTestCase {
+
+    static final int CALLERS = 8;
+
+    public void testConcurrentCallersShareOneRun() throws Exception {
+        final SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return flights.execute("Seoul", new Callable<Integer>() {
+                            @Override
+                            public Integer call() throws Exception {
+                                started.countDown();
+                                release.await();
+                                return runs.incrementAndGet();
+                            }
+                        });
+                    }
+                }));
+                if (i == 0) {
+                    // Make sure the first caller is in flight before the others arrive.
+                    assertTrue(started.await(5, TimeUnit.SECONDS));
+                }
+            }
+            // Let everyone get in line behind the first caller.
+            while (flights.getCoalescedCount() < CALLERS - 1) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals("Error: every caller should get the one run's result",
+                        Integer.valueOf(1), result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, flights.getExecutedCount());
+        assertEquals(CALLERS - 1, flights.getCoalescedCount());
+    }
+
+    public void testFinishedKeyRunsAgain() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<Integer> work = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return runs.incrementAndGet();
+            }
+        };
+        assertEquals(Integer.valueOf(1), flights.execute("Seoul", work));
+        assertEquals("Error: a key that isn't in flight should not be coalesced",
+                Integer.valueOf(2), flights.execute("Seoul", work));
+        assertEquals(Integer.valueOf(3), flights.execute("Mountain View", work));
+        assertEquals(3, flights.getExecutedCount());
+        assertEquals(0, flights.getCoalescedCount());
+    }
+
+    public void testFailureReachesFollowers() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+        SingleFlight.Flight<Integer> leader = flights.join("Seoul");
+        SingleFlight.Flight<Integer> follower = flights.join("Seoul");
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+
+        flights.finish("Seoul", leader, null, new IllegalStateException("boom"));
+        try {
+            follower.await();
+            fail("Error: a follower should see the leader's failure");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertTrue("Error: a failed key should be free again", flights.join("Seoul").isLeader());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+public class TestWeatherHttpClient extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherHttpClient.class.getSimpleName();
+
+    private static final int REQUESTS = 20;
+
+    private StubHttpServer mServer;
+    private WeatherHttpClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (request.path.startsWith("/slow")) {
+                    return StubHttpServer.Response.ok(ForecastPayloads.SEOUL_3_DAY).setDelay(2000);
+                }
+                if (request.path.startsWith("/close")) {
+                    return StubHttpServer.Response.ok(ForecastPayloads.SEOUL_3_DAY)
+                            .setCloseConnection(true);
+                }
+                return StubHttpServer.Response.ok(ForecastPayloads.SEOUL_3_DAY);
+            }
+        });
+        mServer.start();
+        // A private instance, so that counts aren't mixed up with other tests.
+        mClient = new WeatherHttpClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testReleasedConnectionsAreReused() throws Exception {
+        for (int i = 0; i < REQUESTS; i++) {
+            fetch(mServer.getUrl("/forecast?i=" + i), true);
+        }
+        assertEquals("Error: every request should have been served", REQUESTS,
+                mServer.getRequestCount());
+        assertEquals("Error: sequential requests should share one socket", 1,
+                mServer.getConnectionCount());
+        assertEquals(1, mClient.getNewConnectionCount());
+        assertEquals(REQUESTS - 1, mClient.getReusedConnectionCount());
+    }
+
+    public void testDiscardedConnectionsAreNotReused() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            fetch(mServer.getUrl("/forecast?i=" + i), false);
+        }
+        assertEquals(3, mServer.getConnectionCount());
+        assertEquals(3, mClient.getNewConnectionCount());
+        assertEquals(0, mClient.getReusedConnectionCount());
+    }
+
+    public void testServerCloseIsNotCountedAsReuse() throws Exception {
+        fetch(mServer.getUrl("/close"), true);
+        fetch(mServer.getUrl("/close"), true);
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(0, mClient.getReusedConnectionCount());
+    }
+
+    public void testReadTimeout() throws Exception {
+        mClient.setTimeouts(1000, 500);
+        HttpURLConnection urlConnection = mClient.open(new URL(mServer.getUrl("/slow")));
+        try {
+            urlConnection.getInputStream();
+            fail("Error: a response slower than the read timeout should fail");
+        } catch (SocketTimeoutException expected) {
+        } finally {
+            mClient.discard(urlConnection);
+        }
+    }
+
+    /*
+        Not a pass/fail check: logs what keeping the socket alive saves per request, which is
+        mostly the handshake on a real network and not much on loopback.
+     */
+    public void testKeepAliveLatency() throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            fetch(mServer.getUrl("/forecast?fresh=" + i), false);
+        }
+        long freshNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            fetch(mServer.getUrl("/forecast?pooled=" + i), true);
+        }
+        long pooledNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format("%d requests: %.2f ms/request new, %.2f ms/request pooled",
+                REQUESTS, freshNanos / 1e6 / REQUESTS, pooledNanos / 1e6 / REQUESTS));
+    }
+
+    private void fetch(String url, boolean release) throws Exception {
+        HttpURLConnection urlConnection = mClient.open(new URL(url));
+        urlConnection.connect();
+        assertEquals(HttpURLConnection.HTTP_OK, urlConnection.getResponseCode());
+        if (release) {
+            InputStream in = urlConnection.getInputStream();
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // read the whole body, like the parser would
+            }
+            mClient.release(urlConnection);
+        } else {
+            // Give up before the body, the way a failed parse does.
+            mClient.discard(urlConnection);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Records forecasts from a local stand-in for OpenWeatherMap, then syncs them again from the
+    recordings with the server gone.
+ */
+public class TestWeatherSource extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherSource.class.getSimpleName();
+
+    static final String LOCATION_PREFIX = "Replay ";
+    static final int NUM_LOCATIONS = 50;
+    static final int NUM_DAYS = 14;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "replay-test");
+        deleteRecordings();
+        deleteTestLocations();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTestLocations();
+        deleteRecordings();
+        super.tearDown();
+    }
+
+    public void testRecordThenReplay() throws Exception {
+        List<String> locations = locations(NUM_LOCATIONS);
+
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                String locationSetting = Uri.parse(request.path).getQueryParameter("q");
+                return StubHttpServer.Response.ok(
+                        ForecastPayloads.generate(locationSetting, 10.0, 20.0, NUM_DAYS));
+            }
+        });
+        server.start();
+        try {
+            WeatherSource recorder = new RecordingWeatherSource(
+                    new OwmWeatherSource(server.getUrl("/data/2.5/forecast/daily?"),
+                            new WeatherHttpClient()),
+                    mDirectory);
+            WeatherSyncEngine.SyncResult recorded = newEngine(recorder).sync(locations);
+            assertEquals(0, recorded.getFailureCount());
+        } finally {
+            server.shutdown();
+        }
+        assertEquals(NUM_LOCATIONS, mDirectory.listFiles().length);
+        String recordedRows = weatherRows();
+
+        // From here on there is no server at all.
+        deleteTestLocations();
+        WeatherSyncEngine.SyncResult replayed =
+                newEngine(new ReplayWeatherSource(mDirectory)).sync(locations);
+
+        assertEquals(0, replayed.getFailureCount());
+        assertEquals(NUM_LOCATIONS * NUM_DAYS, replayed.getInsertedCount());
+        assertEquals("Error: replaying should store exactly what was recorded",
+                recordedRows, weatherRows());
+    }
+
+    public void testMissingRecordingIsNotFound() throws Exception {
+        WeatherSyncEngine engine = newEngine(new ReplayWeatherSource(mDirectory));
+        WeatherSyncEngine.LocationResult result = engine.sync(
+                Collections.singletonList(LOCATION_PREFIX + "Nowhere")).getLocations().get(0);
+
+        assertEquals(WeatherSyncEngine.Status.FAILED, result.getStatus());
+        assertEquals(404, ((WeatherSyncEngine.HttpStatusException) result.getError()).responseCode);
+        assertEquals(1, result.getAttemptCount());
+    }
+
+    public void testReplayLatency() throws Exception {
+        recordDirectly(locations(1));
+        ReplayWeatherSource source = new ReplayWeatherSource(mDirectory);
+        source.setLatency(200, 50);
+
+        WeatherSyncEngine.LocationResult result =
+                newEngine(source).sync(locations(1)).getLocations().get(0);
+
+        assertEquals(WeatherSyncEngine.Status.UPDATED, result.getStatus());
+        assertTrue("Error: " + result.getLatencyMillis() + " ms is quicker than the latency set",
+                result.getLatencyMillis() >= 200);
+    }
+
+    /*
+        Not a pass/fail check: how fast forecasts can be parsed and stored with the network
+        taken out of the picture, the same way on every run.
+     */
+    public void testReplayThroughput() throws Exception {
+        List<String> locations = locations(NUM_LOCATIONS);
+        recordDirectly(locations);
+        WeatherSyncEngine engine = newEngine(new ReplayWeatherSource(mDirectory));
+
+        final int runs = 5;
+        long totalMillis = 0;
+        for (int i = 0; i < runs; i++) {
+            deleteTestLocations();
+            WeatherSyncEngine.SyncResult result = engine.sync(locations);
+            assertEquals(0, result.getFailureCount());
+            totalMillis += result.getElapsedMillis();
+        }
+        long rows = (long) runs * NUM_LOCATIONS * NUM_DAYS;
+        Log.i(LOG_TAG, String.format("Replayed %d locations x %d runs: %.1f ms/sync, %.0f rows/s",
+                NUM_LOCATIONS, runs, (double) totalMillis / runs,
+                rows * 1000.0 / Math.max(1, totalMillis)));
+    }
+
+    private WeatherSyncEngine newEngine(WeatherSource source) {
+        return new WeatherSyncEngine(getContext(), source, 4);
+    }
+
+    // Lay down recordings without going through a server.
+    private void recordDirectly(List<String> locations) throws Exception {
+        mDirectory.mkdirs();
+        for (String location : locations) {
+            File file = ReplayWeatherSource.getRecordingFile(mDirectory, location,
+                    WeatherSyncEngine.UNITS);
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(ForecastPayloads.generate(location, 1.0, 2.0, NUM_DAYS).getBytes("UTF-8"));
+            out.close();
+        }
+    }
+
+    private static List<String> locations(int count) {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            locations.add(LOCATION_PREFIX + i);
+        }
+        return locations;
+    }
+
+    // Everything stored for the test locations except row ids, in a stable order.
+    private String weatherRows() {
+        Cursor cursor = getContext().getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherEntry.COLUMN_MIN_TEMP, WeatherEntry.COLUMN_SHORT_DESC,
+                        WeatherEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_HUMIDITY},
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                new String[]{LOCATION_PREFIX + "%"},
+                WeatherEntry.COLUMN_DATE + " ASC, " + WeatherEntry.COLUMN_MAX_TEMP + " ASC");
+        StringBuilder rows = new StringBuilder();
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                rows.append(cursor.getString(i))
+                        .append(i + 1 < cursor.getColumnCount() ? ',' : '\n');
+            }
+        }
+        cursor.close();
+        return rows.toString();
+    }
+
+    private void deleteRecordings() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private void deleteTestLocations() {
+        String[] selectionArgs = new String[]{LOCATION_PREFIX + "%"};
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                selectionArgs);
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?",
+                selectionArgs);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Syncs a few dozen locations against a local stand-in for OpenWeatherMap that takes a fixed
+    time to answer each request, so that how long a sync takes is down to how many requests
+    are in flight at once.
+ */
+public class TestWeatherSyncEngine extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherSyncEngine.class.getSimpleName();
+
+    static final String LOCATION_PREFIX = "SyncEngine ";
+    static final String BROKEN_LOCATION = LOCATION_PREFIX + "Broken";
+    static final int NUM_LOCATIONS = 60;
+    static final int NUM_DAYS = 14;
+    static final long SERVER_DELAY_MILLIS = 100;
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteTestLocations();
+
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                String locationSetting = Uri.parse(request.path).getQueryParameter("q");
+                if (BROKEN_LOCATION.equals(locationSetting)) {
+                    return StubHttpServer.Response.error(500).setDelay(SERVER_DELAY_MILLIS);
+                }
+                return StubHttpServer.Response.ok(
+                        ForecastPayloads.generate(locationSetting, 10.0, 20.0, NUM_DAYS))
+                        .setDelay(SERVER_DELAY_MILLIS);
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteTestLocations();
+        super.tearDown();
+    }
+
+    public void testSyncScalesSubLinearly() throws Exception {
+        List<String> locations = locations(NUM_LOCATIONS);
+
+        WeatherSyncEngine.SyncResult serial = newEngine(1).sync(locations);
+        assertAllUpdated(serial);
+        // Start over, so the second run isn't answered with 304s.
+        deleteTestLocations();
+        WeatherSyncEngine.SyncResult parallel = newEngine(8).sync(locations);
+        assertAllUpdated(parallel);
+
+        Log.i(LOG_TAG, String.format("%d locations at %d ms each: %d ms serial, %d ms parallel",
+                NUM_LOCATIONS, SERVER_DELAY_MILLIS, serial.getElapsedMillis(),
+                parallel.getElapsedMillis()));
+
+        assertTrue("Error: a serial sync can't beat the server's delay per location",
+                serial.getElapsedMillis() >= NUM_LOCATIONS * SERVER_DELAY_MILLIS);
+        assertTrue("Error: syncing 8 locations at a time should take well under a third as long"
+                        + " as one at a time",
+                parallel.getElapsedMillis() * 3 < serial.getElapsedMillis());
+        assertEquals(NUM_LOCATIONS * NUM_DAYS, weatherRowCount());
+    }
+
+    public void testFailuresAreReportedPerLocation() throws Exception {
+        List<String> locations = locations(4);
+        locations.add(1, BROKEN_LOCATION);
+
+        WeatherSyncEngine.SyncResult result = newEngine(4).sync(locations);
+
+        assertEquals("Error: every location should have a result",
+                locations.size(), result.getLocations().size());
+        assertEquals(1, result.getFailureCount());
+        for (int i = 0; i < locations.size(); i++) {
+            WeatherSyncEngine.LocationResult location = result.getLocations().get(i);
+            assertEquals("Error: results should come back in the order asked for",
+                    locations.get(i), location.getLocationSetting());
+            assertTrue("Error: every location should report how long it took",
+                    location.getLatencyMillis() >= SERVER_DELAY_MILLIS);
+            if (BROKEN_LOCATION.equals(location.getLocationSetting())) {
+                assertEquals(WeatherSyncEngine.Status.FAILED, location.getStatus());
+                assertNotNull("Error: a failed location should say why", location.getError());
+                assertEquals(0, location.getRowCount());
+            } else {
+                assertEquals(WeatherSyncEngine.Status.UPDATED, location.getStatus());
+                assertEquals(NUM_DAYS, location.getRowCount());
+            }
+        }
+        // One broken location must not cost the others their forecasts.
+        assertEquals(4 * NUM_DAYS, result.getInsertedCount());
+        assertEquals(4 * NUM_DAYS, weatherRowCount());
+    }
+
+    public void testConcurrentSyncsOfOneLocationAreCoalesced() throws Exception {
+        final WeatherSyncEngine engine = newEngine(4);
+        final List<String> locations = locations(1);
+        final WeatherSyncEngine.SyncResult[] results = new WeatherSyncEngine.SyncResult[3];
+
+        Thread[] refreshes = new Thread[results.length];
+        for (int i = 0; i < refreshes.length; i++) {
+            final int refresh = i;
+            refreshes[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[refresh] = engine.sync(locations);
+                }
+            };
+            refreshes[i].start();
+            // Well inside the server's delay, so the first fetch is still in flight.
+            Thread.sleep(10);
+        }
+        for (Thread refresh : refreshes) {
+            refresh.join();
+        }
+
+        assertEquals("Error: refreshes during a fetch should not fetch again",
+                1, mServer.getRequestCount());
+        assertEquals(1, engine.getExecutedFetchCount());
+        assertEquals(results.length - 1, engine.getCoalescedFetchCount());
+        int coalesced = 0;
+        for (WeatherSyncEngine.SyncResult result : results) {
+            WeatherSyncEngine.LocationResult location = result.getLocations().get(0);
+            assertEquals(WeatherSyncEngine.Status.UPDATED, location.getStatus());
+            if (location.isCoalesced()) {
+                coalesced++;
+            }
+        }
+        assertEquals(results.length - 1, coalesced);
+        assertEquals(NUM_DAYS, weatherRowCount());
+
+        // Once it has landed, the next refresh goes to the network again.
+        engine.sync(locations);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(2, engine.getExecutedFetchCount());
+    }
+
+    public void testInterruptedSyncStoresOnlyFinishedFetches() throws Exception {
+        final WeatherSyncEngine engine = newEngine(1);
+        final List<String> locations = locations(10);
+        final WeatherSyncEngine.SyncResult[] result = new WeatherSyncEngine.SyncResult[1];
+        final boolean[] stillInterrupted = new boolean[1];
+
+        Thread refresh = new Thread() {
+            @Override
+            public void run() {
+                result[0] = engine.sync(locations);
+                stillInterrupted[0] = isInterrupted();
+            }
+        };
+        refresh.start();
+        // A couple of locations in, with the rest still waiting for the one thread.
+        Thread.sleep(SERVER_DELAY_MILLIS * 5 / 2);
+        refresh.interrupt();
+        refresh.join();
+
+        assertTrue("Error: the interrupt should be kept for the caller", stillInterrupted[0]);
+        assertEquals(locations.size(), result[0].getLocations().size());
+        int updated = 0;
+        for (WeatherSyncEngine.LocationResult location : result[0].getLocations()) {
+            if (location.getStatus() == WeatherSyncEngine.Status.UPDATED) {
+                updated++;
+            } else {
+                assertTrue("Error: " + location,
+                        location.getError() instanceof InterruptedException);
+            }
+        }
+        assertTrue("Error: the interrupt should cut the sync short",
+                updated > 0 && updated < locations.size());
+        assertEquals("Error: only fetches that finished should be stored",
+                updated * NUM_DAYS, weatherRowCount());
+
+        // Nothing is left in flight for the next sync to wait on.
+        WeatherSyncEngine.SyncResult next = engine.sync(locations);
+        for (WeatherSyncEngine.LocationResult location : next.getLocations()) {
+            assertFalse("Error: " + location, location.isCoalesced());
+        }
+    }
+
+    private WeatherSyncEngine newEngine(int parallelism) {
+        return new WeatherSyncEngine(getContext(), mServer.getUrl("/data/2.5/forecast/daily?"),
+                parallelism);
+    }
+
+    private static List<String> locations(int count) {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            locations.add(LOCATION_PREFIX + i);
+        }
+        return locations;
+    }
+
+    private static void assertAllUpdated(WeatherSyncEngine.SyncResult result) {
+        assertEquals(NUM_LOCATIONS, result.getLocations().size());
+        for (WeatherSyncEngine.LocationResult location : result.getLocations()) {
+            assertEquals("Error: " + location, WeatherSyncEngine.Status.UPDATED,
+                    location.getStatus());
+        }
+    }
+
+    private int weatherRowCount() {
+        Cursor cursor = getContext().getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                new String[]{LOCATION_PREFIX + "%"},
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteTestLocations() {
+        String[] selectionArgs = new String[]{LOCATION_PREFIX + "%"};
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT " + LocationEntry._ID + " FROM "
+                        + LocationEntry.TABLE_NAME + " WHERE "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)",
+                selectionArgs);
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?",
+                selectionArgs);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+
+/*
+    A database file of the test's own in the cache dir, away from the provider's, for laying
+    one schema against another.  Every open starts it over from an empty file.
+ */
+class ScratchDatabase {
+    private final Context mContext;
+    private final File mFile;
+
+    ScratchDatabase(Context context, String name) {
+        mContext = context;
+        mFile = new File(context.getCacheDir(), name);
+        delete();
+    }
+
+    // Empty, for the test to lay out as it likes.
+    SQLiteDatabase open() {
+        return open(0);
+    }
+
+    // Empty, opened with the given SQLiteDatabase flags, e.g. ENABLE_WRITE_AHEAD_LOGGING.
+    SQLiteDatabase open(int flags) {
+        delete();
+        return SQLiteDatabase.openDatabase(mFile.getPath(), null,
+                SQLiteDatabase.CREATE_IF_NECESSARY | flags);
+    }
+
+    // With the app's current schema.
+    SQLiteDatabase create() {
+        SQLiteDatabase db = open();
+        new WeatherDbHelper(mContext).onCreate(db);
+        return db;
+    }
+
+    void delete() {
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+}
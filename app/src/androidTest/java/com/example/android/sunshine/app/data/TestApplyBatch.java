@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Applies mixed batches through WeatherProvider.applyBatch() and checks that they commit or
+    fail as a whole, and that observers hear about each batch once.
+ */
+public class TestApplyBatch extends AndroidTestCase {
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testBatchStoresEverything() throws Exception {
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, locationWithForecast());
+
+        assertEquals(NUM_DAYS + 1, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(NUM_DAYS, count(WeatherEntry.CONTENT_URI));
+        assertEquals(1, count(LocationEntry.CONTENT_URI));
+    }
+
+    public void testFailedBatchStoresNothing() throws Exception {
+        ArrayList<ContentProviderOperation> operations = locationWithForecast();
+        // No date, which the table doesn't allow.
+        ContentValues broken = TestUtilities.createWeatherValues(0);
+        broken.remove(WeatherEntry.COLUMN_DATE);
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValues(broken)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .build());
+
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("Error: the batch should have failed");
+        } catch (OperationApplicationException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            // Also expected: the provider's SQLException comes through as it is.
+        }
+
+        assertEquals("Error: a failed batch should roll back", 0,
+                count(LocationEntry.CONTENT_URI));
+        assertEquals(0, count(WeatherEntry.CONTENT_URI));
+    }
+
+    public void testOneNotificationPerBatch() throws Exception {
+        TestUtilities.TestContentObserver weatherObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weatherObserver);
+        TestUtilities.TestContentObserver locationObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                locationObserver);
+
+        ArrayList<ContentProviderOperation> operations = locationWithForecast();
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " < ?", new String[]{
+                        Long.toString(WeatherContract.normalizeDate(
+                                FIRST_DAY + DateUtils.DAY_IN_MILLIS))})
+                .build());
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        // Give every notification, and any extra ones, time to arrive.
+        Thread.sleep(1000);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        weatherObserver.mHT.quit();
+        locationObserver.mHT.quit();
+
+        assertEquals("Error: " + (NUM_DAYS + 1) + " weather writes should notify once", 1,
+                weatherObserver.mChangeCount);
+        assertEquals(1, locationObserver.mChangeCount);
+        assertEquals(NUM_DAYS - 1, count(WeatherEntry.CONTENT_URI));
+    }
+
+    public void testNotificationsLeaveOutDescendants() {
+        Uri weather = WeatherEntry.CONTENT_URI;
+        Uri location = LocationEntry.CONTENT_URI;
+        Uri weatherAtLocation = WeatherEntry.buildWeatherLocation("94043");
+
+        List<Uri> uris = WeatherProvider.withoutDescendants(
+                Arrays.asList(weatherAtLocation, location, weather, location));
+
+        assertEquals(Arrays.asList(location, weather), uris);
+        assertEquals(Arrays.asList(weatherAtLocation), WeatherProvider.withoutDescendants(
+                Arrays.asList(weatherAtLocation)));
+    }
+
+    // A new location, and a forecast for it that refers back to its id.
+    private static ArrayList<ContentProviderOperation> locationWithForecast() {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (int i = 0; i < NUM_DAYS; i++) {
+            ContentValues day = TestUtilities.createWeatherValues(0);
+            day.put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(day)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        return operations;
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.TimeZone;
+
+/*
+    Archives days of history through the provider and reads ranges of them back, and logs how
+    fast a location's years scan compared to the same rows in the weather table's layout.
+ */
+public class TestArchive extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestArchive.class.getSimpleName();
+
+    static final long FIRST_DAY = 16424;  // January 1st, 2015
+    static final int NUM_DAYS = 60;
+
+    private long mLocationId;
+    private long mOtherLocationId;
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        mOtherLocationId = Long.parseLong(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation).getLastPathSegment());
+        mScratch = new ScratchDatabase(mContext, "archive-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testRangeHasJustTheLocationsDaysInOrder() {
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(ArchiveEntry.CONTENT_URI,
+                history(mLocationId, 20.0)));
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(ArchiveEntry.CONTENT_URI,
+                history(mOtherLocationId, 30.0)));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocationWithRange(mLocationId, FIRST_DAY + 10,
+                        FIRST_DAY + 19),
+                new String[]{ArchiveEntry.COLUMN_LOC_KEY, ArchiveEntry.COLUMN_EPOCH_DAY,
+                        ArchiveEntry.COLUMN_MAX_TEMP},
+                null, null, null);
+        assertEquals("Error: both ends of the range should be included", 10, cursor.getCount());
+        for (long day = FIRST_DAY + 10; cursor.moveToNext(); day++) {
+            assertEquals(mLocationId, cursor.getLong(0));
+            assertEquals("Error: days should come in order", day, cursor.getLong(1));
+            assertEquals(20.0, cursor.getDouble(2));
+        }
+        cursor.close();
+
+        // Without a range, every day of the location, descriptions and all.
+        cursor = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocation(mOtherLocationId), null, null, null, null);
+        assertEquals(NUM_DAYS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TestUtilities.createWeatherValues(mOtherLocationId)
+                        .getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                cursor.getString(cursor.getColumnIndex(ArchiveEntry.COLUMN_SHORT_DESC)));
+        cursor.close();
+    }
+
+    public void testArchivingADayAgainReplacesIt() {
+        ContentValues day = history(mLocationId, 20.0)[0];
+        Uri first = mContext.getContentResolver().insert(ArchiveEntry.CONTENT_URI, day);
+        day.put(ArchiveEntry.COLUMN_MAX_TEMP, 25.0);
+        Uri second = mContext.getContentResolver().insert(ArchiveEntry.CONTENT_URI, day);
+        assertEquals(first, second);
+
+        Cursor cursor = mContext.getContentResolver().query(second,
+                new String[]{ArchiveEntry._ID, ArchiveEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertEquals("Error: a day should be archived once", 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ArchiveEntry.buildKey(mLocationId, FIRST_DAY), cursor.getLong(0));
+        assertEquals(25.0, cursor.getDouble(1));
+        cursor.close();
+    }
+
+    public void testArchivingNotifiesOnlyThatLocation() throws Exception {
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                ArchiveEntry.buildArchiveLocation(mLocationId), true, tco);
+        TestUtilities.TestContentObserver other = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                ArchiveEntry.buildArchiveLocation(mOtherLocationId), true, other);
+
+        mContext.getContentResolver().bulkInsert(ArchiveEntry.CONTENT_URI,
+                history(mLocationId, 20.0));
+        tco.waitForNotificationOrFail();
+        // Give a notification, had there been one, time to arrive.
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(tco);
+        mContext.getContentResolver().unregisterContentObserver(other);
+        other.mHT.quit();
+
+        assertFalse("Error: another location's history didn't change", other.mContentChanged);
+    }
+
+    public void testRangeScanIsAKeyRange() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM "
+                    + ArchiveEntry.TABLE_NAME + " WHERE " + ArchiveEntry._ID + " BETWEEN ? AND ?"
+                    + " ORDER BY " + ArchiveEntry._ID,
+                    new String[]{Long.toString(ArchiveEntry.buildKey(1, FIRST_DAY)),
+                            Long.toString(ArchiveEntry.buildKey(1, FIRST_DAY + 365))});
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            cursor.close();
+            assertTrue("Error: a range of days should be read by key: " + plan,
+                    plan.toString().contains("PRIMARY KEY"));
+            assertFalse("Error: days are stored in order and shouldn't need sorting: " + plan,
+                    plan.toString().contains("TEMP B-TREE"));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+        Ten years of daily history for a hundred locations, written a day at a time for every
+        location, the way it accumulates.  Then every location's last year, and every
+        location's ten, read back from the archive and from the same rows laid out like the
+        weather table.  Rates are logged, not checked: what is checked is how many stored rows
+        sit between a location's first and last day, which is what decides how many pages a
+        scan reads.  Filling each takes a while.
+     */
+    public void testScanThroughput() {
+        final int locations = 100;
+        final int days = 3650;
+        final int[] scanDays = {365, days};
+        double[][] rates = new double[2][scanDays.length];
+        for (int layout = 0; layout < 2; layout++) {
+            boolean archive = layout == 1;
+            SQLiteDatabase db = mScratch.create();
+            try {
+                fill(db, locations, days, archive);
+                for (int i = 0; i < scanDays.length; i++) {
+                    long start = System.nanoTime();
+                    int rows = 0;
+                    for (int location = 1; location <= locations; location++) {
+                        rows += scan(db, location, FIRST_DAY + days - scanDays[i],
+                                FIRST_DAY + days - 1, archive);
+                    }
+                    long elapsedNanos = System.nanoTime() - start;
+                    assertEquals(locations * scanDays[i], rows);
+                    rates[layout][i] = rows * 1e9 / elapsedNanos;
+                    Log.i(LOG_TAG, String.format("%s: %d days of %d locations in %.1f ms,"
+                                    + " %.0f rows/s",
+                            archive ? "archive" : "weather table layout", scanDays[i],
+                            locations, elapsedNanos / 1e6, rates[layout][i]));
+
+                    long spanned = rowsSpanned(db, 1, FIRST_DAY + days - scanDays[i],
+                            FIRST_DAY + days - 1, archive);
+                    if (archive) {
+                        assertEquals("Error: a location's days should be stored next to each"
+                                + " other in the archive", scanDays[i], spanned);
+                    } else {
+                        assertEquals("Error: the weather table interleaves every location's"
+                                        + " days, so this layout should be the slow one",
+                                (long) (scanDays[i] - 1) * locations + 1, spanned);
+                    }
+                }
+            } finally {
+                db.close();
+            }
+        }
+
+    }
+
+    private static void fill(SQLiteDatabase db, int locations, int days, boolean archive) {
+        SQLiteStatement insert = db.compileStatement(archive
+                ? "INSERT INTO " + ArchiveEntry.TABLE_NAME + " (" + ArchiveEntry._ID + ", "
+                        + ArchiveEntry.COLUMN_LOC_KEY + ", " + ArchiveEntry.COLUMN_EPOCH_DAY + ", "
+                        + ArchiveEntry.COLUMN_WEATHER_ID + ", " + ArchiveEntry.COLUMN_MIN_TEMP
+                        + ", " + ArchiveEntry.COLUMN_MAX_TEMP + ", "
+                        + ArchiveEntry.COLUMN_HUMIDITY + ", " + ArchiveEntry.COLUMN_PRESSURE
+                        + ", " + ArchiveEntry.COLUMN_WIND_SPEED + ", "
+                        + ArchiveEntry.COLUMN_DEGREES + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                : "INSERT INTO " + WeatherEntry.TABLE_NAME + " (" + WeatherEntry._ID + ", "
+                        + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ", "
+                        + WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_MIN_TEMP
+                        + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                        + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE
+                        + ", " + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                        + WeatherEntry.COLUMN_DEGREES + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        TimeZone zone = TimeZone.getDefault();
+        db.beginTransaction();
+        try {
+            for (int day = 0; day < days; day++) {
+                long epochDay = FIRST_DAY + day;
+                long date = WeatherContract.startOfEpochDay(epochDay, zone);
+                for (int location = 1; location <= locations; location++) {
+                    if (archive) {
+                        insert.bindLong(1, ArchiveEntry.buildKey(location, epochDay));
+                        insert.bindLong(3, epochDay);
+                    } else {
+                        // The next id, as AUTOINCREMENT would hand it out.
+                        insert.bindLong(1, (long) day * locations + location);
+                        insert.bindLong(3, date);
+                    }
+                    insert.bindLong(2, location);
+                    insert.bindLong(4, 800 + day % 4);
+                    insert.bindDouble(5, 10.0 + day % 7);
+                    insert.bindDouble(6, 20.0 + day % 5);
+                    insert.bindDouble(7, 60.0);
+                    insert.bindDouble(8, 1010.5);
+                    insert.bindDouble(9, 3.5);
+                    insert.bindDouble(10, 180.0);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    // Read a location's days from first to last, both included, the way each layout is asked.
+    private static int scan(SQLiteDatabase db, long locationId, long firstDay, long lastDay,
+                            boolean archive) {
+        Cursor cursor;
+        if (archive) {
+            cursor = db.query(ArchiveEntry.TABLE_NAME,
+                    new String[]{ArchiveEntry.COLUMN_EPOCH_DAY, ArchiveEntry.COLUMN_MAX_TEMP},
+                    selection(archive), selectionArgs(locationId, firstDay, lastDay, archive),
+                    null, null, ArchiveEntry._ID + " ASC");
+        } else {
+            cursor = db.query(WeatherEntry.TABLE_NAME,
+                    new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                    selection(archive), selectionArgs(locationId, firstDay, lastDay, archive),
+                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        }
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getDouble(1);
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        How many stored rows, of any location, lie between the first and last of a location's
+        days in rowid order.  Rows next to each other in rowid order share pages, so the fewer
+        this is, the fewer pages a scan of those days has to read.
+     */
+    private static long rowsSpanned(SQLiteDatabase db, long locationId, long firstDay,
+                                    long lastDay, boolean archive) {
+        String table = archive ? ArchiveEntry.TABLE_NAME : WeatherEntry.TABLE_NAME;
+        String[] args = selectionArgs(locationId, firstDay, lastDay, archive);
+        long first = DatabaseUtils.longForQuery(db, "SELECT MIN(" + BaseColumns._ID + ") FROM "
+                + table + " WHERE " + selection(archive), args);
+        long last = DatabaseUtils.longForQuery(db, "SELECT MAX(" + BaseColumns._ID + ") FROM "
+                + table + " WHERE " + selection(archive), args);
+        return DatabaseUtils.queryNumEntries(db, table, BaseColumns._ID + " BETWEEN ? AND ?",
+                new String[]{Long.toString(first), Long.toString(last)});
+    }
+
+    private static String selection(boolean archive) {
+        return archive
+                ? ArchiveEntry._ID + " BETWEEN ? AND ?"
+                : WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE
+                        + " BETWEEN ? AND ?";
+    }
+
+    private static String[] selectionArgs(long locationId, long firstDay, long lastDay,
+                                          boolean archive) {
+        if (archive) {
+            return new String[]{Long.toString(ArchiveEntry.buildKey(locationId, firstDay)),
+                    Long.toString(ArchiveEntry.buildKey(locationId, lastDay))};
+        }
+        TimeZone zone = TimeZone.getDefault();
+        return new String[]{Long.toString(locationId),
+                Long.toString(WeatherContract.startOfEpochDay(firstDay, zone)),
+                Long.toString(WeatherContract.startOfEpochDay(lastDay, zone))};
+    }
+
+    private static ContentValues[] history(long locationId, double maxTemp) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            // A weather row, dated by its day instead.
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].remove(WeatherEntry.COLUMN_DATE);
+            days[i].put(ArchiveEntry.COLUMN_EPOCH_DAY, FIRST_DAY + i);
+            days[i].put(ArchiveEntry.COLUMN_MAX_TEMP, maxTemp);
+        }
+        return days;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(ArchiveEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the compiled-statement insert stores exactly what the ContentValues one does,
+    and logs how many rows a second each of them manages.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+
+    // Rows are made and inserted this many at a time, so a million of them never have to
+    // be in memory at once.
+    static final int CHUNK_SIZE = 10000;
+
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mScratch = new ScratchDatabase(mContext, "bulk-insert-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testBatchStoresTheSameRows() {
+        long locationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] rows = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            rows[i] = row(locationId, i);
+        }
+        ForecastBatch batch = ForecastBatch.fromContentValues(rows);
+        assertNotNull("Error: complete weather rows should make a batch", batch);
+        assertEquals(NUM_DAYS, batch.size());
+
+        int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+        assertEquals(NUM_DAYS, inserted);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(NUM_DAYS, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ContentValues expected = row(locationId, i);
+            expected.put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(expected.getAsLong(WeatherEntry.COLUMN_DATE)));
+            TestUtilities.validateCurrentRecord("Error: row " + i + " didn't match",
+                    cursor, expected);
+        }
+        cursor.close();
+    }
+
+    public void testIncompleteRowsAreNotBatched() {
+        ContentValues partial = row(1, 0);
+        partial.remove(WeatherEntry.COLUMN_DEGREES);
+        assertNull(ForecastBatch.fromContentValues(new ContentValues[]{row(1, 1), partial}));
+
+        ContentValues withId = row(1, 0);
+        withId.put(WeatherEntry._ID, 42L);
+        assertNull(ForecastBatch.fromContentValues(new ContentValues[]{withId}));
+    }
+
+    // The batch is written in whatever transaction the caller has open, never one of its own,
+    // so bulkInsert() commits once however many rows it is given.
+    public void testBatchWritesInTheCallersTransaction() {
+        SQLiteDatabase db = mScratch.create();
+        try {
+            ForecastBatch batch = new ForecastBatch(CHUNK_SIZE);
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                addRow(batch, i);
+            }
+            db.beginTransaction();
+            try {
+                assertEquals(CHUNK_SIZE, WeatherProvider.upsertBatch(db, batch));
+                assertTrue("Error: the batch shouldn't end the caller's transaction",
+                        db.inTransaction());
+            } finally {
+                // Without setTransactionSuccessful(), so everything should roll back.
+                db.endTransaction();
+            }
+            assertEquals("Error: no row should have been committed on its own", 0,
+                    DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+        Not a pass/fail check: rows per second through each path, each run in a single
+        transaction on a fresh database file, the way bulkInsert() does it.  Only that every
+        row got there is checked.  The million row runs take a while.
+     */
+    public void testInsertThroughput() {
+        for (int rows : new int[]{10000, 100000, 1000000}) {
+            double contentValuesRate = rowsPerSecond(rows, false);
+            double batchRate = rowsPerSecond(rows, true);
+            Log.i(LOG_TAG, String.format("%d rows: %.0f rows/s ContentValues, %.0f rows/s batch"
+                    + " (%.1fx)", rows, contentValuesRate, batchRate,
+                    batchRate / contentValuesRate));
+        }
+    }
+
+    private double rowsPerSecond(int numRows, boolean batched) {
+        SQLiteDatabase db = mScratch.create();
+        try {
+            ForecastBatch batch = new ForecastBatch(CHUNK_SIZE);
+            ContentValues[] chunk = new ContentValues[CHUNK_SIZE];
+            long elapsedNanos = 0;
+
+            db.beginTransaction();
+            try {
+                for (int first = 0; first < numRows; first += CHUNK_SIZE) {
+                    int size = Math.min(CHUNK_SIZE, numRows - first);
+                    // Making the rows is part of what each path costs.
+                    long start = System.nanoTime();
+                    int inserted;
+                    if (batched) {
+                        batch.clear();
+                        for (int i = 0; i < size; i++) {
+                            addRow(batch, first + i);
+                        }
+                        inserted = WeatherProvider.upsertBatch(db, batch);
+                    } else {
+                        if (size != chunk.length) {
+                            chunk = new ContentValues[size];
+                        }
+                        for (int i = 0; i < size; i++) {
+                            chunk[i] = row(first + i);
+                        }
+                        inserted = WeatherProvider.upsertRows(db, chunk);
+                    }
+                    elapsedNanos += System.nanoTime() - start;
+                    assertEquals(size, inserted);
+                }
+                long start = System.nanoTime();
+                db.setTransactionSuccessful();
+                db.endTransaction();
+                elapsedNanos += System.nanoTime() - start;
+            } finally {
+                if (db.inTransaction()) {
+                    db.endTransaction();
+                }
+            }
+            assertEquals(numRows, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+            return numRows * 1e9 / elapsedNanos;
+        } finally {
+            db.close();
+        }
+    }
+
+    // Row n of a generated history: a thousand locations, one row each per day.
+    private static ContentValues row(int n) {
+        return row(1 + n % 1000, n / 1000);
+    }
+
+    private static void addRow(ForecastBatch batch, int n) {
+        long locationId = 1 + n % 1000;
+        int day = n / 1000;
+        batch.add(locationId, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS, 800 + day % 4,
+                "Clear", 10.0 + day % 7, 20.0 + day % 5, 60.0, 1010.5, 3.5, 180.0);
+    }
+
+    private static ContentValues row(long locationId, int day) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % 4);
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + day % 7);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + day % 5);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 60.0);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1010.5);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.5);
+        values.put(WeatherEntry.COLUMN_DEGREES, 180.0);
+        return values;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compacts the weather table through WeatherProvider.call() and checks that exactly the rows
+    past the horizon or over a location's cap go, along with locations left with nothing, and
+    that the file gets smaller for it.
+ */
+public class TestCompaction extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestCompaction.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 30;
+
+    private long mLocationId;
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mScratch = new ScratchDatabase(mContext, "compaction-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testHorizonPurgesOlderDays() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, NUM_DAYS));
+
+        CompactionReport report = compact(FIRST_DAY + 10 * DateUtils.DAY_IN_MILLIS, 0);
+
+        assertEquals(10, report.getExpiredCount());
+        assertEquals(0, report.getOverCapCount());
+        assertEquals(NUM_DAYS - 10, rowCount(mLocationId));
+        assertEquals("Error: days from the horizon on should be kept",
+                WeatherContract.normalizeDate(FIRST_DAY + 10 * DateUtils.DAY_IN_MILLIS),
+                firstDate(mLocationId));
+    }
+
+    public void testCapKeepsNewestDaysOfEachLocation() {
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        long otherId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, NUM_DAYS));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(otherId, 10));
+
+        CompactionReport report = compact(0, 14);
+
+        assertEquals(0, report.getExpiredCount());
+        assertEquals(NUM_DAYS - 14, report.getOverCapCount());
+        assertEquals(14, rowCount(mLocationId));
+        assertEquals("Error: the oldest days should go first",
+                WeatherContract.normalizeDate(FIRST_DAY + (NUM_DAYS - 14) * DateUtils.DAY_IN_MILLIS),
+                firstDate(mLocationId));
+        assertEquals("Error: a location under the cap should keep every day",
+                10, rowCount(otherId));
+    }
+
+    public void testNothingToPurgeChangesNothing() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, NUM_DAYS));
+
+        CompactionReport report = compact(FIRST_DAY, NUM_DAYS);
+
+        assertEquals(0, report.getPurgedCount());
+        assertEquals(NUM_DAYS, rowCount(mLocationId));
+    }
+
+    public void testLocationsLeftWithNothingArePruned() {
+        long expiredId = insertLocation("99706");
+        long archivedId = insertLocation("99707");
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, NUM_DAYS));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(expiredId, 5));
+        ContentValues history = TestUtilities.createWeatherValues(archivedId);
+        history.remove(WeatherEntry.COLUMN_DATE);
+        history.put(ArchiveEntry.COLUMN_EPOCH_DAY, 16424);  // January 1st, 2015
+        mContext.getContentResolver().insert(ArchiveEntry.CONTENT_URI, history);
+
+        CompactionReport report = compact(FIRST_DAY + 10 * DateUtils.DAY_IN_MILLIS, 0);
+
+        assertEquals(1, report.getPrunedLocationCount());
+        assertEquals("Error: a location whose days all expired should be pruned", 0,
+                locationCount(expiredId));
+        assertEquals("Error: a location with days left should be kept", 1,
+                locationCount(mLocationId));
+        assertEquals("Error: a location with archived history should be kept", 1,
+                locationCount(archivedId));
+
+        report = compact(0, 14);
+        assertEquals("Error: without a horizon no location should be pruned", 0,
+                report.getPrunedLocationCount());
+    }
+
+    /*
+        Purges more rows than fit in one batch, and checks that the freed pages went back to
+        the file system, no more of them than one compaction may give back.
+     */
+    public void testSpaceIsReclaimed() {
+        SQLiteDatabase db = open("INCREMENTAL");
+        try {
+            int rows = fill(db, 100);
+            assertTrue(rows > 2 * WeatherProvider.COMPACTION_BATCH_SIZE);
+            long pagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+            CompactionReport report = WeatherProvider.compact(db,
+                    FIRST_DAY + NUM_DAYS * DateUtils.DAY_IN_MILLIS, 0);
+
+            assertEquals(rows, report.getExpiredCount());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+            assertTrue("Error: purging every row should shrink the file",
+                    report.getBytesReclaimed() > 0);
+            assertTrue("Error: one compaction should give back at most "
+                            + WeatherProvider.COMPACTION_VACUUM_PAGES + " pages",
+                    pagesBefore - DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                            <= WeatherProvider.COMPACTION_VACUUM_PAGES);
+            assertEquals("Error: the freed pages should have been given back", 0,
+                    DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+            Log.i(LOG_TAG, String.format("purged %d rows, reclaimed %d bytes",
+                    report.getPurgedCount(), report.getBytesReclaimed()));
+        } finally {
+            db.close();
+        }
+    }
+
+    // Converting takes a full VACUUM, which is for an upgrade to do, not a sync.
+    public void testDatabaseWithoutIncrementalVacuumIsLeftAlone() {
+        SQLiteDatabase db = open("NONE");
+        try {
+            int rows = fill(db, 100);
+
+            CompactionReport report = WeatherProvider.compact(db,
+                    FIRST_DAY + NUM_DAYS * DateUtils.DAY_IN_MILLIS, 0);
+
+            assertEquals(rows, report.getExpiredCount());
+            assertEquals("Error: compaction shouldn't convert the database", 0,
+                    DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+            assertTrue("Error: without incremental vacuum the freed pages should stay free",
+                    DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0);
+        } finally {
+            db.close();
+        }
+    }
+
+    // The app's schema, in a database with the given auto_vacuum.
+    private SQLiteDatabase open(String autoVacuum) {
+        SQLiteDatabase db = mScratch.open();
+        db.execSQL("PRAGMA auto_vacuum = " + autoVacuum);
+        new WeatherDbHelper(mContext).onCreate(db);
+        return db;
+    }
+
+    // Every day for this many locations, straight into the database.
+    private static int fill(SQLiteDatabase db, int locations) {
+        ForecastBatch batch = new ForecastBatch(locations * NUM_DAYS);
+        for (int location = 1; location <= locations; location++) {
+            for (int day = 0; day < NUM_DAYS; day++) {
+                batch.add(location, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS, 800,
+                        "Clear", 10.0, 20.0, 60.0, 1010.5, 3.5, 180.0);
+            }
+        }
+        db.beginTransaction();
+        try {
+            WeatherProvider.upsertBatch(db, batch);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return batch.size();
+    }
+
+    private CompactionReport compact(long horizon, int maxDays) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_HORIZON, horizon);
+        extras.putInt(WeatherContract.EXTRA_MAX_DAYS, maxDays);
+        return CompactionReport.fromBundle(mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherContract.METHOD_COMPACT, null, extras));
+    }
+
+    private static ContentValues[] forecast(long locationId, int numDays) {
+        ContentValues[] days = new ContentValues[numDays];
+        for (int i = 0; i < numDays; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+        }
+        return days;
+    }
+
+    private int rowCount(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)}, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private long firstDate(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE}, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)}, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToFirst());
+        long date = cursor.getLong(0);
+        cursor.close();
+        return date;
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, location));
+    }
+
+    private int locationCount(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)}, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(ArchiveEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Queries the way the forecast list does while another thread stores forecasts the way a
+    sync does, with and without the write-ahead log, and logs how long the queries took.
+ */
+public class TestConcurrentAccess extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentAccess.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_LOCATIONS = 200;
+    static final int NUM_DAYS = 14;
+    static final int NUM_SYNCS = 20;
+
+    // The forecast list's query, for the first location.
+    static final String LIST_QUERY = "SELECT * FROM " + WeatherEntry.TABLE_NAME
+            + " INNER JOIN " + LocationEntry.TABLE_NAME + " ON " + WeatherEntry.TABLE_NAME + "."
+            + WeatherEntry.COLUMN_LOC_KEY + " = " + LocationEntry.TABLE_NAME + "."
+            + LocationEntry._ID + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING
+            + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ? ORDER BY "
+            + WeatherEntry.COLUMN_DATE + " ASC";
+
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScratch = new ScratchDatabase(mContext, "concurrent-access-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testProviderDatabaseUsesWriteAheadLog() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)
+                    .toLowerCase());
+            assertEquals(WeatherDbHelper.WAL_AUTOCHECKPOINT_PAGES,
+                    DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+        With the write-ahead log, queries should be answered while a write transaction is
+        still open; without it they wait for it to commit.  Latencies are logged, not checked.
+     */
+    public void testReadersDontWaitForWriters() throws Exception {
+        ReadStats rollback = run(false);
+        ReadStats wal = run(true);
+        Log.i(LOG_TAG, "rollback journal: " + rollback);
+        Log.i(LOG_TAG, "write-ahead log: " + wal);
+        assertTrue("Error: with the write-ahead log, reads should overlap writes",
+                wal.mOverlapping > 0);
+    }
+
+    // A read while a sync's transaction is held open, uncommitted, for as long as it takes.
+    public void testReadCompletesWhileWriterHoldsTheLock() throws Exception {
+        final SQLiteDatabase db = mScratch.open(SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        try {
+            new WeatherDbHelper(mContext).onCreate(db);
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry._ID, 1);
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "loc1");
+            db.insert(LocationEntry.TABLE_NAME, null, location);
+
+            final CountDownLatch written = new CountDownLatch(1);
+            final CountDownLatch read = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final Exception[] error = new Exception[1];
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    db.beginTransactionNonExclusive();
+                    try {
+                        ForecastBatch batch = new ForecastBatch(NUM_DAYS);
+                        for (int day = 0; day < NUM_DAYS; day++) {
+                            batch.add(1, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS, 800,
+                                    "Clear", 10.0, 20.0, 60.0, 1010.5, 3.5, 180.0);
+                        }
+                        WeatherProvider.upsertBatch(db, batch);
+                        written.countDown();
+                        // Hold the write lock until the test has checked the read, or long
+                        // past its timeout.
+                        release.await(10, TimeUnit.SECONDS);
+                        db.setTransactionSuccessful();
+                    } catch (Exception e) {
+                        error[0] = e;
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            };
+            writer.start();
+            try {
+                assertTrue(written.await(10, TimeUnit.SECONDS));
+
+                final int[] count = {-1};
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        Cursor cursor = db.rawQuery(LIST_QUERY, new String[]{"loc1",
+                                Long.toString(WeatherContract.normalizeDate(FIRST_DAY))});
+                        count[0] = cursor.getCount();
+                        cursor.close();
+                        read.countDown();
+                    }
+                };
+                reader.start();
+                boolean answered = read.await(5, TimeUnit.SECONDS);
+                assertTrue("Error: the writer should still hold its transaction", writer.isAlive());
+                assertTrue("Error: a read shouldn't wait for an open write transaction", answered);
+                assertEquals("Error: the read shouldn't see the uncommitted rows", 0, count[0]);
+            } finally {
+                release.countDown();
+            }
+            writer.join();
+            if (error[0] != null) {
+                throw error[0];
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private ReadStats run(boolean writeAheadLogging) throws Exception {
+        final SQLiteDatabase db = mScratch.open(
+                writeAheadLogging ? SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING : 0);
+        try {
+            new WeatherDbHelper(mContext).onCreate(db);
+            for (int location = 1; location <= NUM_LOCATIONS; location++) {
+                ContentValues values = TestUtilities.createNorthPoleLocationValues();
+                values.put(LocationEntry._ID, location);
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, "loc" + location);
+                db.insert(LocationEntry.TABLE_NAME, null, values);
+            }
+
+            final Writer writer = new Writer(db);
+            Thread thread = new Thread(writer);
+            thread.start();
+
+            long[] latencies = new long[4096];
+            int count = 0;
+            int overlapping = 0;
+            String[] args = {"loc1", Long.toString(WeatherContract.normalizeDate(FIRST_DAY))};
+            while (thread.isAlive()) {
+                long start = System.nanoTime();
+                Cursor cursor = db.rawQuery(LIST_QUERY, args);
+                cursor.getCount();
+                cursor.close();
+                long end = System.nanoTime();
+                // A read that finished within a transaction that began before it did.
+                if (writer.mTransactionStart != 0 && writer.mTransactionStart < start
+                        && writer.mInTransaction) {
+                    overlapping++;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = end - start;
+            }
+            thread.join();
+            if (writer.mError != null) {
+                throw writer.mError;
+            }
+            return new ReadStats(Arrays.copyOf(latencies, count), overlapping);
+        } finally {
+            db.close();
+        }
+    }
+
+    // Stores every location's forecast, a sync's worth per transaction, NUM_SYNCS times.
+    static class Writer implements Runnable {
+        private final SQLiteDatabase mDb;
+        volatile boolean mInTransaction;
+        volatile long mTransactionStart;
+        volatile Exception mError;
+
+        Writer(SQLiteDatabase db) {
+            mDb = db;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ForecastBatch batch = new ForecastBatch(NUM_LOCATIONS * NUM_DAYS);
+                for (int sync = 0; sync < NUM_SYNCS; sync++) {
+                    batch.clear();
+                    for (int location = 1; location <= NUM_LOCATIONS; location++) {
+                        for (int day = 0; day < NUM_DAYS; day++) {
+                            batch.add(location, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS,
+                                    800, "Clear", 10.0 + sync, 20.0 + sync, 60.0, 1010.5, 3.5,
+                                    180.0);
+                        }
+                    }
+                    mDb.beginTransactionNonExclusive();
+                    try {
+                        mTransactionStart = System.nanoTime();
+                        mInTransaction = true;
+                        WeatherProvider.upsertBatch(mDb, batch);
+                        mDb.setTransactionSuccessful();
+                    } finally {
+                        mInTransaction = false;
+                        mDb.endTransaction();
+                    }
+                }
+            } catch (Exception e) {
+                mError = e;
+            }
+        }
+    }
+
+    static class ReadStats {
+        final long[] mLatencies;
+        final int mOverlapping;
+
+        ReadStats(long[] latencies, int overlapping) {
+            mLatencies = latencies;
+            Arrays.sort(mLatencies);
+            mOverlapping = overlapping;
+        }
+
+        private double millis(double fraction) {
+            if (mLatencies.length == 0) {
+                return Double.NaN;
+            }
+            int i = Math.min(mLatencies.length - 1, (int) (fraction * mLatencies.length));
+            return mLatencies[i] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queries, median %.2f ms, p99 %.2f ms, max %.2f ms,"
+                            + " %d answered during a write", mLatencies.length, millis(0.5),
+                    millis(0.99), millis(1.0), mOverlapping);
+        }
+    }
+}
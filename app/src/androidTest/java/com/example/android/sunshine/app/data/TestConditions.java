@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.example.android.sunshine.app.data.WeatherContract.ConditionEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that descriptions are stored once per weather id and still read back with the
+    weather, and logs what that saves on a few years of history.
+ */
+public class TestConditions extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConditions.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+
+    // Weather ids and their descriptions, the way the API gives them.
+    static final int[] WEATHER_IDS = {800, 801, 802, 500, 501, 600, 701, 211};
+    static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Clouds", "Rain", "Rain", "Snow",
+            "Mist", "Thunderstorm"};
+
+    private long mLocationId;
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mScratch = new ScratchDatabase(mContext, "conditions-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testDescriptionsAreStoredOncePerWeatherId() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, "Clear"));
+
+        Cursor cursor = mContext.getContentResolver().query(ConditionEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals("Error: each weather id's description should be stored once",
+                Math.min(NUM_DAYS, WEATHER_IDS.length), cursor.getCount());
+        cursor.close();
+
+        // Every column includes the description, joined back in.
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(NUM_DAYS, cursor.getCount());
+        int descColumn = cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC);
+        assertTrue("Error: weather queries should still have descriptions", descColumn >= 0);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(description(i, "Clear"), cursor.getString(descColumn));
+        }
+        cursor.close();
+
+        // And a projection without it reads the weather table alone.
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationId(mLocationId),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_WEATHER_ID},
+                null, null, null);
+        assertEquals(NUM_DAYS, cursor.getCount());
+        cursor.close();
+        assertFalse(WeatherProvider.needsConditions(
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_WEATHER_ID}));
+    }
+
+    public void testChangedDescriptionReachesEveryDay() throws Exception {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, "Clear"));
+        // What the forecast list asks for, which the provider caches.
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, FIRST_DAY);
+        assertEquals("Clear", firstDescription(forecastUri));
+
+        // Storing the same forecast again tells no one anything.
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(ConditionEntry.CONTENT_URI, true,
+                tco);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, "Clear"));
+        // Give a notification, had there been one, time to arrive.
+        Thread.sleep(500);
+        assertFalse("Error: storing descriptions we had shouldn't notify anyone",
+                tco.mContentChanged);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, "Sunny"));
+        tco.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(tco);
+
+        assertEquals("Error: the condition table should have the new description", "Sunny",
+                storedDescription(WEATHER_IDS[0]));
+        assertEquals("Error: the forecast list shouldn't be served the old description",
+                "Sunny", firstDescription(forecastUri));
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC},
+                WeatherEntry.COLUMN_WEATHER_ID + " = ?",
+                new String[]{Integer.toString(WEATHER_IDS[0])}, null);
+        assertTrue(cursor.getCount() > 0);
+        while (cursor.moveToNext()) {
+            assertEquals("Error: every day of the weather should read the new description",
+                    "Sunny", cursor.getString(0));
+        }
+        cursor.close();
+    }
+
+    public void testUpdatingTheDescriptionOnly() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, "Clear"));
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Fair");
+        int updated = mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(WeatherContract.normalizeDate(FIRST_DAY))});
+        assertEquals(1, updated);
+        assertEquals("Fair", storedDescription(WEATHER_IDS[0]));
+    }
+
+    private String storedDescription(int weatherId) {
+        Cursor cursor = mContext.getContentResolver().query(ConditionEntry.CONTENT_URI,
+                new String[]{ConditionEntry.COLUMN_SHORT_DESC},
+                ConditionEntry.COLUMN_WEATHER_ID + " = ?",
+                new String[]{Integer.toString(weatherId)}, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The description of the first day the uri has, the way the screens read it.
+    private String firstDescription(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC}, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            return cursor.moveToFirst() ? cursor.getString(1) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+        A year of history for a hundred locations with a description on every row, and with
+        the descriptions kept once each: the size of the file, and how many rows a second read
+        back with their descriptions, straight from the row, joined, and looked up in memory.
+        Read rates are logged, not checked; the condition table has to make the file smaller.
+     */
+    public void testSizeAndReadThroughput() {
+        final int locations = 100;
+        final int days = 365;
+        long[] bytes = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            boolean dictionary = mode == 1;
+            SQLiteDatabase db = mScratch.open();
+            try {
+                if (dictionary) {
+                    new WeatherDbHelper(mContext).onCreate(db);
+                } else {
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_VERSION_4_WEATHER_TABLE);
+                }
+                fill(db, locations, days, dictionary);
+                bytes[mode] = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                        * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+
+                String columns = WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_MAX_TEMP
+                        + ", " + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                        + WeatherEntry.COLUMN_WEATHER_ID + ", ";
+                if (dictionary) {
+                    double joined = rowsPerSecond(db, "SELECT " + columns
+                            + WeatherEntry.COLUMN_SHORT_DESC + " FROM " + WeatherEntry.TABLE_NAME
+                            + " LEFT JOIN " + ConditionEntry.TABLE_NAME + " USING ("
+                            + WeatherEntry.COLUMN_WEATHER_ID + ")", null);
+                    double lookedUp = rowsPerSecond(db, "SELECT " + columns + "NULL FROM "
+                            + WeatherEntry.TABLE_NAME, loadConditions(db));
+                    Log.i(LOG_TAG, String.format("condition table: %d KB for %d rows,"
+                                    + " %.0f rows/s joined, %.0f rows/s looked up in memory",
+                            bytes[mode] / 1024, locations * days, joined, lookedUp));
+                } else {
+                    double inRow = rowsPerSecond(db, "SELECT " + columns
+                            + WeatherEntry.COLUMN_SHORT_DESC + " FROM "
+                            + WeatherEntry.TABLE_NAME, null);
+                    Log.i(LOG_TAG, String.format("description on every row: %d KB for %d rows,"
+                            + " %.0f rows/s", bytes[mode] / 1024, locations * days, inRow));
+                }
+            } finally {
+                db.close();
+            }
+        }
+
+        assertTrue("Error: keeping descriptions once each should make the file smaller",
+                bytes[1] < bytes[0]);
+    }
+
+    // Store the history the way each schema has it, in one transaction.
+    private static void fill(SQLiteDatabase db, int locations, int days, boolean dictionary) {
+        db.beginTransaction();
+        try {
+            if (dictionary) {
+                ForecastBatch batch = new ForecastBatch(days);
+                for (int location = 1; location <= locations; location++) {
+                    batch.clear();
+                    for (int day = 0; day < days; day++) {
+                        addDay(batch, location, day);
+                    }
+                    WeatherProvider.upsertBatch(db, batch);
+                }
+            } else {
+                SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                        + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", "
+                        + WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                        + WeatherEntry.COLUMN_SHORT_DESC + ", " + WeatherEntry.COLUMN_MIN_TEMP
+                        + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                        + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE
+                        + ", " + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                        + WeatherEntry.COLUMN_DEGREES + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                try {
+                    ForecastBatch batch = new ForecastBatch(1);
+                    for (int location = 1; location <= locations; location++) {
+                        for (int day = 0; day < days; day++) {
+                            batch.clear();
+                            addDay(batch, location, day);
+                            insert.bindLong(1, location);
+                            insert.bindLong(2, WeatherContract.normalizeDate(batch.getDate(0)));
+                            insert.bindLong(3, batch.getWeatherId(0));
+                            insert.bindString(4, batch.getShortDesc(0));
+                            insert.bindDouble(5, batch.getMinTemp(0));
+                            insert.bindDouble(6, batch.getMaxTemp(0));
+                            insert.bindDouble(7, batch.getHumidity(0));
+                            insert.bindDouble(8, batch.getPressure(0));
+                            insert.bindDouble(9, batch.getWindSpeed(0));
+                            insert.bindDouble(10, batch.getDegrees(0));
+                            insert.executeInsert();
+                        }
+                    }
+                } finally {
+                    insert.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void addDay(ForecastBatch batch, int location, int day) {
+        int condition = (location + day) % WEATHER_IDS.length;
+        batch.add(location, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS, WEATHER_IDS[condition],
+                DESCRIPTIONS[condition], 10.0 + day % 7, 20.0 + day % 5, 60.0, 1010.5, 3.5,
+                180.0);
+    }
+
+    private static SparseArray<String> loadConditions(SQLiteDatabase db) {
+        SparseArray<String> descriptions = new SparseArray<String>();
+        Cursor cursor = db.query(ConditionEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            int idColumn = cursor.getColumnIndex(ConditionEntry.COLUMN_WEATHER_ID);
+            int descColumn = cursor.getColumnIndex(ConditionEntry.COLUMN_SHORT_DESC);
+            while (cursor.moveToNext()) {
+                descriptions.put(cursor.getInt(idColumn), cursor.getString(descColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return descriptions;
+    }
+
+    // Read every row the query returns, with its description from the last column, or from
+    // descriptions by the weather id in the one before it.
+    private static double rowsPerSecond(SQLiteDatabase db, String sql,
+                                        SparseArray<String> descriptions) {
+        long start = System.nanoTime();
+        Cursor cursor = db.rawQuery(sql, null);
+        int rows = 0;
+        int length = 0;
+        try {
+            while (cursor.moveToNext()) {
+                String description = descriptions != null
+                        ? descriptions.get(cursor.getInt(3)) : cursor.getString(4);
+                length += description.length();
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        assertTrue(length > 0);
+        return rows * 1e9 / elapsedNanos;
+    }
+
+    private static String description(int day, String first) {
+        return day % WEATHER_IDS.length == 0 ? first : DESCRIPTIONS[day % WEATHER_IDS.length];
+    }
+
+    private ContentValues[] forecast(long locationId, String first) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            int condition = i % WEATHER_IDS.length;
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+            days[i].put(WeatherEntry.COLUMN_WEATHER_ID, WEATHER_IDS[condition]);
+            days[i].put(WeatherEntry.COLUMN_SHORT_DESC,
+                    condition == 0 ? first : DESCRIPTIONS[condition]);
+        }
+        return days;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
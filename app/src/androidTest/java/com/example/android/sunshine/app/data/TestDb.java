@@ -17,9 +17,11 @@ package com.example.android.sunshine.app.data;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
+import java.io.File;
 import java.util.HashSet;
 
 import static com.example.android.sunshine.app.data.TestUtilities.TEST_LOCATION;
@@ -41,6 +43,18 @@ public class TestDb extends AndroidTestCase {
         deleteTheDatabase();
     }
 
+    // Incremental vacuum can only be switched on before the journal is a write-ahead log.
+    public void testNewDatabaseVacuumsIncrementally() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            assertEquals("Error: a new database should have auto_vacuum = INCREMENTAL", 2,
+                    DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        } finally {
+            db.close();
+        }
+    }
+
     /*
         Students: Uncomment this test once you've written the code to create the Location
         table.  Note that you will have to have chosen the same column names that I did in
@@ -57,6 +71,8 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ConditionEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ArchiveEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -188,6 +204,54 @@ public class TestDb extends AndroidTestCase {
     }
 
 
+    /*
+        Version 4 only dropped ON CONFLICT REPLACE from the weather table, so upgrading a
+        version 3 database should keep every row, ids and all.
+     */
+    public void testUpgradeFromVersion3KeepsWeather() {
+        WeatherDbHelper.takeDataDiscarded(mContext);
+        File path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        new WeatherDbHelper(mContext).onCreate(db);
+        db.execSQL("DROP TABLE " + WeatherContract.WeatherEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE " + WeatherContract.ConditionEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE " + WeatherContract.ArchiveEntry.TABLE_NAME);
+        db.execSQL(TestUpsert.SQL_CREATE_REPLACING_WEATHER_TABLE);
+        long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        // REAL columns read back as e.g. "75.0", whatever was put in.
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 65.0);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 75.0);
+        long weatherRowId = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                weatherValues);
+        db.setVersion(3);
+        db.close();
+
+        db = new WeatherDbHelper(mContext).getWritableDatabase();
+        // The description has moved to the condition table since.
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME + " LEFT JOIN "
+                + WeatherContract.ConditionEntry.TABLE_NAME + " USING ("
+                + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ")", null, null, null,
+                null, null, null);
+        assertTrue("Error: the upgrade lost the weather", cursor.moveToFirst());
+        assertEquals(weatherRowId,
+                cursor.getLong(cursor.getColumnIndex(WeatherContract.WeatherEntry._ID)));
+        TestUtilities.validateCurrentRecord("Error: the upgrade changed the weather",
+                cursor, weatherValues);
+        cursor.close();
+
+        cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE name = ?",
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME});
+        assertTrue(cursor.moveToFirst());
+        assertFalse("Error: the weather table should no longer replace on conflict",
+                cursor.getString(0).contains("REPLACE"));
+        cursor.close();
+        assertFalse(WeatherDbHelper.takeDataDiscarded(mContext));
+        db.close();
+    }
+
     /*
         Students: This is a helper method for the testWeatherTable quiz. You can move your
         code from testLocationTable to here so that you can call this code from both
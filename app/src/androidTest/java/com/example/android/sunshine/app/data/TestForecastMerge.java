@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Merges forecasts through WeatherProvider.call() and checks that only the days that
+    differ are written, and that nobody is told about a merge that changed nothing.
+ */
+public class TestForecastMerge extends AndroidTestCase {
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 7;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testMergeIntoEmptyTableInserts() {
+        ForecastDelta delta = merge(forecast(0, NUM_DAYS, 20.0));
+
+        assertEquals(NUM_DAYS, delta.getInsertedCount());
+        assertEquals(0, delta.getUpdatedCount());
+        assertEquals(0, delta.getUnchangedCount());
+        assertEquals(0, delta.getExpiredCount());
+        assertEquals(NUM_DAYS, rowCount());
+    }
+
+    public void testSameForecastWritesAndNotifiesNothing() throws Exception {
+        merge(forecast(0, NUM_DAYS, 20.0));
+        long[] ids = rowIds();
+
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, tco);
+        ForecastDelta delta = merge(forecast(0, NUM_DAYS, 20.0));
+        // Give a notification, had there been one, time to arrive.
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(tco);
+        tco.mHT.quit();
+
+        assertFalse("Error: merging an unchanged forecast should not notify anyone",
+                tco.mContentChanged);
+        assertFalse(delta.hasChanges());
+        assertEquals(NUM_DAYS, delta.getUnchangedCount());
+        long[] after = rowIds();
+        assertEquals(ids.length, after.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Error: unchanged rows should keep their ids", ids[i], after[i]);
+        }
+    }
+
+    public void testChangedDaysAreUpdatedInPlace() {
+        merge(forecast(0, NUM_DAYS, 20.0));
+        long[] ids = rowIds();
+
+        ContentValues[] days = forecast(0, NUM_DAYS, 20.0);
+        days[2].put(WeatherEntry.COLUMN_MAX_TEMP, 25.0);
+        // Descriptions belong to the weather id, so a day's changes with it.
+        days[5].put(WeatherEntry.COLUMN_WEATHER_ID, 500);
+        days[5].put(WeatherEntry.COLUMN_SHORT_DESC, "Rain");
+
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, tco);
+        ForecastDelta delta = merge(days);
+        tco.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(tco);
+
+        assertEquals(2, delta.getUpdatedCount());
+        assertEquals(NUM_DAYS - 2, delta.getUnchangedCount());
+        assertEquals(0, delta.getInsertedCount());
+        long[] after = rowIds();
+        assertEquals(ids.length, after.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Error: updated rows should keep their ids", ids[i], after[i]);
+        }
+    }
+
+    public void testDaysNoLongerForecastExpire() {
+        merge(forecast(0, NUM_DAYS, 20.0));
+
+        // A day later, and a shorter forecast: the first day is history now and stays, the
+        // last two are no longer forecast.
+        ForecastDelta delta = merge(forecast(1, NUM_DAYS - 3, 20.0));
+
+        assertEquals(NUM_DAYS - 3, delta.getUnchangedCount());
+        assertEquals(2, delta.getExpiredCount());
+        assertEquals(0, delta.getInsertedCount());
+        assertEquals(NUM_DAYS - 2, rowCount());
+    }
+
+    public void testSummaryMatchesForSeveralLocations() {
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        long otherId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+
+        ContentValues[] first = forecast(0, NUM_DAYS, 20.0);
+        ContentValues[] second = forecast(0, NUM_DAYS, 20.0);
+        for (ContentValues day : second) {
+            day.put(WeatherEntry.COLUMN_LOC_KEY, otherId);
+        }
+        ContentValues[] both = new ContentValues[2 * NUM_DAYS];
+        System.arraycopy(first, 0, both, 0, NUM_DAYS);
+        System.arraycopy(second, 0, both, NUM_DAYS, NUM_DAYS);
+
+        assertEquals(2 * NUM_DAYS, merge(both).getInsertedCount());
+        assertEquals(2 * NUM_DAYS, merge(both).getUnchangedCount());
+    }
+
+    public void testBatchMergesLikeRows() {
+        ContentValues[] days = forecast(0, NUM_DAYS, 20.0);
+        ForecastDelta delta = mergeBatch(ForecastBatch.fromContentValues(days));
+        assertEquals(NUM_DAYS, delta.getInsertedCount());
+        long[] ids = rowIds();
+
+        // The same forecast as rows changes nothing, and one changed day as a batch updates
+        // just that day.
+        assertEquals(NUM_DAYS, merge(days).getUnchangedCount());
+        days[3].put(WeatherEntry.COLUMN_HUMIDITY, 99.0);
+        delta = mergeBatch(ForecastBatch.fromContentValues(days));
+        assertEquals(1, delta.getUpdatedCount());
+        assertEquals(NUM_DAYS - 1, delta.getUnchangedCount());
+
+        long[] after = rowIds();
+        assertEquals(ids.length, after.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Error: updated rows should keep their ids", ids[i], after[i]);
+        }
+    }
+
+    public void testBatchSurvivesItsBundle() {
+        ForecastBatch batch = ForecastBatch.fromContentValues(forecast(0, NUM_DAYS, 20.0));
+        ForecastBatch copy = ForecastBatch.fromBundle(batch.toBundle());
+        assertNotNull(copy);
+        assertEquals(NUM_DAYS, copy.size());
+        for (int i = 0; i < NUM_DAYS; i++) {
+            assertEquals(batch.getLocationId(i), copy.getLocationId(i));
+            assertEquals(batch.getDate(i), copy.getDate(i));
+            assertEquals(batch.getWeatherId(i), copy.getWeatherId(i));
+            assertEquals(batch.getShortDesc(i), copy.getShortDesc(i));
+            assertEquals(batch.getMaxTemp(i), copy.getMaxTemp(i));
+            assertEquals(batch.getDegrees(i), copy.getDegrees(i));
+        }
+
+        Bundle truncated = batch.toBundle();
+        truncated.putDoubleArray(ForecastBatch.KEY_DEGREES, new double[NUM_DAYS - 1]);
+        assertNull("Error: columns of different lengths shouldn't make a batch",
+                ForecastBatch.fromBundle(truncated));
+    }
+
+    private ForecastDelta mergeBatch(ForecastBatch batch) {
+        Bundle extras = new Bundle();
+        extras.putBundle(WeatherContract.EXTRA_BATCH, batch.toBundle());
+        return ForecastDelta.fromBundle(mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherContract.METHOD_MERGE_FORECAST, null, extras));
+    }
+
+    private ForecastDelta merge(ContentValues[] days) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_DAYS, days);
+        return ForecastDelta.fromBundle(mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherContract.METHOD_MERGE_FORECAST, null, extras));
+    }
+
+    private ContentValues[] forecast(int firstDay, int numDays, double maxTemp) {
+        ContentValues[] days = new ContentValues[numDays];
+        for (int i = 0; i < numDays; i++) {
+            days[i] = TestUtilities.createWeatherValues(mLocationId);
+            days[i].put(WeatherEntry.COLUMN_DATE,
+                    FIRST_DAY + (firstDay + i) * DateUtils.DAY_IN_MILLIS);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        }
+        return days;
+    }
+
+    private int rowCount() {
+        return rowIds().length;
+    }
+
+    private long[] rowIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
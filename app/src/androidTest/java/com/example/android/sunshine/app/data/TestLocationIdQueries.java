@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+    Weather asked for by location id should be what the same location's setting gives, and
+    logs what skipping the join with the location table saves.
+ */
+public class TestLocationIdQueries extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationIdQueries.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+
+    // Only weather columns, so a query by location id doesn't need the location table.
+    static final String[] WEATHER_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private int mQueryCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testIdAndSettingGiveTheSameRows() {
+        long locationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast(locationId));
+        long startDate = FIRST_DAY + 3 * DateUtils.DAY_IN_MILLIS;
+
+        assertSameRows(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WeatherEntry.buildWeatherLocationId(locationId), NUM_DAYS);
+        assertSameRows(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        startDate),
+                WeatherEntry.buildWeatherLocationIdWithStartDate(locationId, startDate),
+                NUM_DAYS - 3);
+        assertSameRows(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, startDate),
+                WeatherEntry.buildWeatherLocationIdWithDate(locationId, startDate), 1);
+    }
+
+    public void testLocationColumnsAreStillJoined() {
+        long locationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast(locationId));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationId(locationId),
+                new String[]{WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME},
+                null, null, SORT_ORDER);
+        assertEquals(NUM_DAYS, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: a location column should come from the location table",
+                "North Pole", cursor.getString(1));
+        cursor.close();
+
+        assertFalse(WeatherProvider.needsLocationColumns(WEATHER_COLUMNS));
+        assertTrue(WeatherProvider.needsLocationColumns(null));
+        assertTrue(WeatherProvider.needsLocationColumns(new String[]{
+                LocationEntry.TABLE_NAME + "." + LocationEntry._ID}));
+    }
+
+    public void testIdCursorsHearWritesById() throws Exception {
+        long locationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        Uri list = WeatherEntry.buildWeatherLocationId(locationId);
+        Uri day = WeatherEntry.buildWeatherLocationIdWithDate(locationId, FIRST_DAY);
+        Uri otherDay = WeatherEntry.buildWeatherLocationIdWithDate(locationId,
+                FIRST_DAY + DateUtils.DAY_IN_MILLIS);
+
+        Cursor cursor = mContext.getContentResolver().query(list, WEATHER_COLUMNS, null, null,
+                SORT_ORDER);
+        assertEquals("Error: a cursor by id should watch its own uri, with nothing looked up",
+                list, cursor.getNotificationUri());
+        cursor.close();
+
+        TestUtilities.TestContentObserver listObserver = observe(list);
+        TestUtilities.TestContentObserver dayObserver = observe(day);
+        TestUtilities.TestContentObserver otherDayObserver = observe(otherDay);
+        try {
+            mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                    forecast(locationId)[0]);
+            listObserver.waitForNotificationOrFail();
+            dayObserver.waitForNotificationOrFail();
+            assertFalse("Error: another day by id shouldn't hear about it",
+                    otherDayObserver.mContentChanged);
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(listObserver);
+            mContext.getContentResolver().unregisterContentObserver(dayObserver);
+            mContext.getContentResolver().unregisterContentObserver(otherDayObserver);
+        }
+    }
+
+    // A location setting that happens to be the word the by-id paths used to live under.
+    public void testSettingNamedLocationIsReachable() {
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, WeatherContract.PATH_LOCATION);
+        long locationId = Long.parseLong(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, location).getLastPathSegment());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast(locationId));
+
+        assertSameRows(WeatherEntry.buildWeatherLocation(WeatherContract.PATH_LOCATION),
+                WeatherEntry.buildWeatherLocationId(locationId), NUM_DAYS);
+    }
+
+    // What the provider runs for the forecast list's columns by location id.
+    public void testQueryByIdDoesntReadTheLocationTable() {
+        String sql = SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.getWeatherTables(WEATHER_COLUMNS), WEATHER_COLUMNS,
+                WeatherProvider.sLocationIdWithStartDateSelection, null, null, SORT_ORDER, null);
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        try {
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                    new String[]{"1", Long.toString(FIRST_DAY)});
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            cursor.close();
+            assertTrue("Error: the weather table should be read: " + plan,
+                    plan.toString().matches("(?s).*\\b(SCAN|SEARCH)( TABLE)? "
+                            + WeatherEntry.TABLE_NAME + "\\b.*"));
+            assertFalse("Error: a query by id shouldn't scan or join the location table: "
+                            + plan, plan.toString().matches("(?s).*\\b(SCAN|SEARCH)( TABLE)? "
+                            + LocationEntry.TABLE_NAME + "\\b.*"));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+        Not a pass/fail check: how long a forecast query takes by location setting, joining
+        the location table, and by location id straight from the weather table, with a
+        thousand locations stored.
+     */
+    public void testQueryLatency() throws Exception {
+        final int locations = 1000;
+        final int queries = 2000;
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 1; i <= locations; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry._ID, i);
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, setting(i));
+            operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                    .withValues(location).build());
+        }
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        ContentValues[] rows = new ContentValues[locations * NUM_DAYS];
+        for (int i = 0; i < locations; i++) {
+            ContentValues[] days = forecast(i + 1);
+            System.arraycopy(days, 0, rows, i * NUM_DAYS, NUM_DAYS);
+        }
+        assertEquals(rows.length,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows));
+
+        // Once each untimed, so neither pays for warming the page cache.
+        for (boolean byId : new boolean[]{false, true}) {
+            averageMillis(byId, locations, locations);
+        }
+        double bySetting = averageMillis(false, locations, queries);
+        double byId = averageMillis(true, locations, queries);
+        Log.i(LOG_TAG, String.format("%d locations: %.3f ms per query by setting (join),"
+                        + " %.3f ms by id (%.1fx)", locations, bySetting, byId,
+                bySetting / byId));
+    }
+
+    private double averageMillis(boolean byId, int locations, int queries) {
+        Random random = new Random(42);
+        long elapsedNanos = 0;
+        for (int i = 0; i < queries; i++) {
+            int location = 1 + random.nextInt(locations);
+            // Every query asks from a different day before the forecast, so the provider's
+            // cache never has the answer and each one goes to the database.
+            long startDate = FIRST_DAY - (++mQueryCount) * DateUtils.DAY_IN_MILLIS;
+            Uri uri = byId
+                    ? WeatherEntry.buildWeatherLocationIdWithStartDate(location, startDate)
+                    : WeatherEntry.buildWeatherLocationWithStartDate(setting(location),
+                    startDate);
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(uri, WEATHER_COLUMNS, null,
+                    null, SORT_ORDER);
+            // Filling the window is where the query actually runs.
+            int count = cursor.getCount();
+            cursor.close();
+            elapsedNanos += System.nanoTime() - start;
+            assertEquals(NUM_DAYS, count);
+        }
+        return elapsedNanos / 1e6 / queries;
+    }
+
+    private TestUtilities.TestContentObserver observe(Uri uri) {
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    private void assertSameRows(Uri bySetting, Uri byId, int expectedCount) {
+        Cursor expected = mContext.getContentResolver().query(bySetting, WEATHER_COLUMNS, null,
+                null, SORT_ORDER);
+        Cursor actual = mContext.getContentResolver().query(byId, WEATHER_COLUMNS, null, null,
+                SORT_ORDER);
+        assertEquals(expectedCount, expected.getCount());
+        assertEquals("Error: " + byId + " didn't match " + bySetting,
+                expected.getCount(), actual.getCount());
+        while (expected.moveToNext()) {
+            assertTrue(actual.moveToNext());
+            for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+                assertEquals("Error: " + WEATHER_COLUMNS[i] + " of " + byId + " didn't match",
+                        expected.getString(i), actual.getString(i));
+            }
+        }
+        expected.close();
+        actual.close();
+    }
+
+    private static String setting(int location) {
+        return "loc" + location;
+    }
+
+    private static ContentValues[] forecast(long locationId) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+        }
+        return days;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ConditionEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Upgrades a populated database from the oldest version there's a migration for, and checks
+    that every row made it and that the result queries like a freshly created database.
+ */
+public class TestMigrations extends AndroidTestCase {
+
+    static final int NUM_LOCATIONS = 3;
+    static final int NUM_DAYS = 14;
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+
+    // How the location table was declared at version 2, before it kept HTTP validators.
+    static final String SQL_CREATE_VERSION_2_LOCATION_TABLE =
+            "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+            LocationEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+            " );";
+
+    // What the provider asks of the database most, with made up arguments.
+    static final String[][] QUERIES = {
+            {"SELECT * FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME
+                    + " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY
+                    + " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID
+                    + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND "
+                    + WeatherEntry.COLUMN_DATE + " >= ?", "99705", "1419033600000"},
+            {"SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                    + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE
+                    + " = ?", "1", "1419033600000"},
+            {"SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME + " WHERE "
+                    + LocationEntry.COLUMN_LOCATION_SETTING + " = ?", "99705"},
+            {"SELECT * FROM " + WeatherEntry.TABLE_NAME + " LEFT JOIN " + ConditionEntry.TABLE_NAME
+                    + " USING (" + WeatherEntry.COLUMN_WEATHER_ID + ") WHERE "
+                    + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE
+                    + " >= ?", "1", "1419033600000"},
+            {"SELECT * FROM " + ArchiveEntry.TABLE_NAME + " WHERE " + ArchiveEntry._ID
+                    + " BETWEEN ? AND ?", "4294983296", "4294983661"}
+    };
+
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper.takeDataDiscarded(mContext);
+        mScratch = new ScratchDatabase(mContext, "migrations-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion2KeepsEverything() {
+        createVersion2Database(2);
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            assertEquals("Error: the upgrade lost locations", NUM_LOCATIONS,
+                    DatabaseUtils.queryNumEntries(db, LocationEntry.TABLE_NAME));
+            assertEquals("Error: the upgrade lost weather", NUM_LOCATIONS * NUM_DAYS,
+                    DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+            assertFalse("Error: a migrated upgrade shouldn't count as discarding data",
+                    WeatherDbHelper.takeDataDiscarded(mContext));
+
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null, null);
+            assertTrue("Error: the location table should have gained the validator columns",
+                    cursor.getColumnIndex(LocationEntry.COLUMN_ETAG) >= 0
+                            && cursor.getColumnIndex(LocationEntry.COLUMN_LAST_MODIFIED) >= 0);
+            cursor.close();
+
+            // Every day had the same weather, so its description is kept just the once.
+            cursor = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+            assertEquals("Error: the weather table should have lost its descriptions", -1,
+                    cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC));
+            cursor.close();
+            ContentValues condition = TestUtilities.createWeatherValues(1);
+            cursor = db.query(ConditionEntry.TABLE_NAME, null, null, null, null, null, null);
+            assertEquals("Error: the upgrade should keep one description per weather id", 1,
+                    cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(condition.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID).intValue(),
+                    cursor.getInt(cursor.getColumnIndex(ConditionEntry.COLUMN_WEATHER_ID)));
+            assertEquals(condition.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    cursor.getString(cursor.getColumnIndex(ConditionEntry.COLUMN_SHORT_DESC)));
+            cursor.close();
+
+            // Existing rows can be updated with the new columns, and stored days in place.
+            ContentValues validators = new ContentValues();
+            validators.put(LocationEntry.COLUMN_ETAG, "\"abc\"");
+            assertEquals(NUM_LOCATIONS, db.update(LocationEntry.TABLE_NAME, validators, null,
+                    null));
+            ContentValues day = TestUtilities.createWeatherValues(1);
+            day.put(WeatherEntry.COLUMN_DATE, FIRST_DAY);
+            WeatherProvider.upsertRow(db, day);
+            assertEquals(NUM_LOCATIONS * NUM_DAYS,
+                    DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+
+            SQLiteDatabase fresh = mScratch.create();
+            try {
+                assertEquals("Error: the upgraded database should have the same indexes",
+                        indexes(fresh), indexes(db));
+                for (String[] query : QUERIES) {
+                    assertEquals("Error: the upgraded database plans " + query[0]
+                            + " differently", queryPlan(fresh, query), queryPlan(db, query));
+                }
+            } finally {
+                fresh.close();
+            }
+            assertTrue("Error: looking up a stored day should use an index",
+                    queryPlan(db, QUERIES[1]).contains("INDEX"));
+            assertEquals("Error: the upgrade should have switched on incremental vacuum",
+                    WeatherDbHelper.AUTO_VACUUM_INCREMENTAL,
+                    DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testUpgradeWithoutMigrationStartsOver() {
+        assertNull(WeatherDbHelper.findMigration(1));
+        createVersion2Database(1);
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+            assertTrue("Error: starting over should be reported",
+                    WeatherDbHelper.takeDataDiscarded(mContext));
+        } finally {
+            db.close();
+        }
+    }
+
+    // A database the way version 2 of the app left it, stamped with the given version.
+    private void createVersion2Database(int version) {
+        File path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        try {
+            // Before anyone asked for incremental vacuum.
+            db.execSQL("PRAGMA auto_vacuum = NONE");
+            db.execSQL(SQL_CREATE_VERSION_2_LOCATION_TABLE);
+            db.execSQL(TestUpsert.SQL_CREATE_REPLACING_WEATHER_TABLE);
+            for (int location = 0; location < NUM_LOCATIONS; location++) {
+                ContentValues values = TestUtilities.createNorthPoleLocationValues();
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                        Integer.toString(99705 + location));
+                long locationId = db.insert(LocationEntry.TABLE_NAME, null, values);
+                for (int day = 0; day < NUM_DAYS; day++) {
+                    ContentValues weather = TestUtilities.createWeatherValues(locationId);
+                    weather.put(WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DateUtils.DAY_IN_MILLIS);
+                    db.insert(WeatherEntry.TABLE_NAME, null, weather);
+                }
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static List<String> indexes(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT tbl_name, sql FROM sqlite_master WHERE type = 'index'"
+                + " ORDER BY tbl_name, sql", null);
+        List<String> indexes = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            // Implicit indexes, from UNIQUE constraints, have no sql of their own.
+            indexes.add(cursor.getString(0) + ": " + cursor.getString(1));
+        }
+        cursor.close();
+        return indexes;
+    }
+
+    private static String queryPlan(SQLiteDatabase db, String[] query) {
+        String[] args = new String[query.length - 1];
+        System.arraycopy(query, 1, args, 0, args.length);
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query[0], args);
+        StringBuilder plan = new StringBuilder();
+        int detail = cursor.getColumnIndex("detail");
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detail)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+}
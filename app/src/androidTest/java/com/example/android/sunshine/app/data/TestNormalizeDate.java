@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.TimeZone;
+
+/*
+    Checks that the arithmetic date normalization starts every day where the device's zone
+    does, across daylight saving transitions and zones with odd offsets, and logs what it
+    costs next to the Time based one it replaced.
+ */
+public class TestNormalizeDate extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestNormalizeDate.class.getSimpleName();
+
+    static final long FIRST_DAY_2014 = 1388534400000L;  // January 1st, 2014, UTC
+    static final long FIRST_DAY_2016 = 1451606400000L;  // January 1st, 2016, UTC
+
+    // Zones whose transitions fall away from midnight, where Time and the arithmetic agree
+    // on every instant: half hour and three quarter offsets, a half hour shift, and both
+    // hemispheres.
+    static final String[] ZONES = {
+            "UTC",
+            "America/Los_Angeles",
+            "America/St_Johns",
+            "Europe/London",
+            "Asia/Kolkata",
+            "Asia/Kathmandu",
+            "Australia/Lord_Howe",
+            "Pacific/Chatham",
+            "Pacific/Kiritimati"
+    };
+
+    private TimeZone mDefaultZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultZone);
+        super.tearDown();
+    }
+
+    public void testMatchesTime() {
+        for (String id : ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(id));
+            // Every 20 minutes through two years, which lands on either side of every
+            // transition.
+            for (long millis = FIRST_DAY_2014; millis < FIRST_DAY_2016;
+                 millis += 20 * DateUtils.MINUTE_IN_MILLIS) {
+                assertEquals("Error: " + id + " disagrees with Time at " + millis,
+                        timeNormalizeDate(millis), WeatherContract.normalizeDate(millis));
+            }
+        }
+    }
+
+    public void testEveryZoneStartsItsDays() {
+        for (String id : TimeZone.getAvailableIDs()) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            for (long millis = FIRST_DAY_2014; millis < FIRST_DAY_2016;
+                 millis += 5 * DateUtils.HOUR_IN_MILLIS + DateUtils.MINUTE_IN_MILLIS) {
+                long day = WeatherContract.toEpochDay(millis, zone);
+                long start = WeatherContract.normalizeDate(millis, zone);
+                assertTrue("Error: " + id + " starts the day after " + millis, start <= millis);
+                assertEquals("Error: " + id + " starts " + millis + "'s day on another day",
+                        day, WeatherContract.toEpochDay(start, zone));
+                assertTrue("Error: " + id + " starts " + millis + "'s day too late",
+                        WeatherContract.toEpochDay(start - 1, zone) < day);
+            }
+        }
+    }
+
+    public void testMidnightTransitions() {
+        TimeZone saoPaulo = TimeZone.getTimeZone("America/Sao_Paulo");
+        // October 19th, 2014: clocks went from midnight straight to one, so the day started
+        // at one, summer time.
+        assertEquals(1413687600000L,
+                WeatherContract.normalizeDate(1413730800000L, saoPaulo));
+        // February 22nd, 2015: clocks went back from midnight to eleven the night before, so
+        // the day started at the second midnight, standard time.
+        assertEquals(1424574000000L,
+                WeatherContract.normalizeDate(1424617200000L, saoPaulo));
+    }
+
+    public void testEpochDays() {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        assertEquals(0, WeatherContract.toEpochDay(0, utc));
+        assertEquals(-1, WeatherContract.toEpochDay(-1, utc));
+        assertEquals(16060, WeatherContract.toEpochDay(1387584000000L, utc));
+
+        TimeZone tokyo = TimeZone.getTimeZone("Asia/Tokyo");
+        for (long day = -400; day < 20000; day += 37) {
+            assertEquals(day, WeatherContract.toEpochDay(
+                    WeatherContract.startOfEpochDay(day, tokyo), tokyo));
+        }
+        // Julian days, which the forecast parser counts in, are the same days.
+        assertEquals(Time.getJulianDay(1387584000000L, 9 * 60 * 60),
+                WeatherContract.toEpochDay(1387584000000L, tokyo) + Time.EPOCH_JULIAN_DAY);
+    }
+
+    /*
+        Not a pass/fail check: nanoseconds per call for Time, for the arithmetic asking for
+        the default zone each time, and for the arithmetic with the zone handed in, the way
+        the provider's batch writes call it.  testMatchesTime covers what they return.
+     */
+    public void testNormalizeSpeed() {
+        final int calls = 200000;
+        TimeZone zone = TimeZone.getDefault();
+        long checksum = 0;
+        // Warm all three up first.
+        for (int i = 0; i < calls / 10; i++) {
+            long millis = FIRST_DAY_2014 + i * DateUtils.HOUR_IN_MILLIS;
+            checksum += timeNormalizeDate(millis) + WeatherContract.normalizeDate(millis)
+                    + WeatherContract.normalizeDate(millis, zone);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            checksum += timeNormalizeDate(FIRST_DAY_2014 + i * DateUtils.HOUR_IN_MILLIS);
+        }
+        long timeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            checksum += WeatherContract.normalizeDate(
+                    FIRST_DAY_2014 + i * DateUtils.HOUR_IN_MILLIS);
+        }
+        long defaultZoneNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            checksum += WeatherContract.normalizeDate(
+                    FIRST_DAY_2014 + i * DateUtils.HOUR_IN_MILLIS, zone);
+        }
+        long zoneNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format("%s: %.0f ns per call with Time, %.0f ns with the default"
+                        + " zone, %.0f ns with the zone handed in (%.1fx) [%d]", zone.getID(),
+                (double) timeNanos / calls, (double) defaultZoneNanos / calls,
+                (double) zoneNanos / calls, (double) timeNanos / zoneNanos, checksum));
+    }
+
+    // How normalizeDate() used to do it.
+    private static long timeNormalizeDate(long startDate) {
+        Time time = new Time();
+        time.set(startDate);
+        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+}
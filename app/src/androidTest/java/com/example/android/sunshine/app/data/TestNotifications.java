@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Writes weather through the provider and checks that only the lists and details showing
+    what was written hear about it, and counts the reloads that costs with the audit.
+ */
+public class TestNotifications extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestNotifications.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+    static final String OTHER_LOCATION = "99706";
+
+    private long mLocationId;
+    private final List<TestUtilities.TestContentObserver> mObservers =
+            new ArrayList<TestUtilities.TestContentObserver>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestUtilities.TestContentObserver observer : mObservers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mHT.quit();
+        }
+        audit(false);
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testOneDayReachesOnlyWhatShowsIt() throws Exception {
+        TestUtilities.TestContentObserver list = observe(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        TestUtilities.TestContentObserver day = observe(dayUri(TestUtilities.TEST_LOCATION, 0));
+        TestUtilities.TestContentObserver otherDay = observe(
+                dayUri(TestUtilities.TEST_LOCATION, 1));
+        TestUtilities.TestContentObserver otherList = observe(
+                WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, forecast()[0]);
+        // Give every notification, and any stray ones, time to arrive.
+        Thread.sleep(1000);
+
+        assertEquals("Error: the location's list should hear about its day", 1,
+                list.mChangeCount);
+        assertEquals("Error: the day's detail should hear about it", 1, day.mChangeCount);
+        assertEquals("Error: another day's detail shouldn't", 0, otherDay.mChangeCount);
+        assertEquals("Error: another location shouldn't", 0, otherList.mChangeCount);
+    }
+
+    public void testForecastReachesItsLocationOnce() throws Exception {
+        TestUtilities.TestContentObserver list = observe(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        TestUtilities.TestContentObserver day = observe(dayUri(TestUtilities.TEST_LOCATION, 3));
+        TestUtilities.TestContentObserver otherList = observe(
+                WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+        TestUtilities.TestContentObserver everything = observe(WeatherEntry.CONTENT_URI);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast());
+        Thread.sleep(1000);
+
+        assertEquals("Error: " + NUM_DAYS + " days should reload the list once", 1,
+                list.mChangeCount);
+        assertEquals(1, day.mChangeCount);
+        assertEquals(1, everything.mChangeCount);
+        assertEquals("Error: another location shouldn't hear about it", 0,
+                otherList.mChangeCount);
+    }
+
+    // The sync stores validators after every fetch; no one should reload for that.
+    public void testValidatorUpdateDoesntNotify() throws Exception {
+        TestUtilities.TestContentObserver locations = observe(LocationEntry.CONTENT_URI);
+        String[] selectionArgs = {Long.toString(mLocationId)};
+
+        ContentValues validators = new ContentValues();
+        validators.put(LocationEntry.COLUMN_ETAG, "\"v2\"");
+        validators.put(LocationEntry.COLUMN_LAST_MODIFIED, "Sat, 20 Dec 2014 00:00:00 GMT");
+        assertEquals(1, mContext.getContentResolver().update(LocationEntry.CONTENT_URI,
+                validators, LocationEntry._ID + " = ?", selectionArgs));
+        Thread.sleep(1000);
+        assertEquals("Error: an update of only the validators shouldn't notify", 0,
+                locations.mChangeCount);
+
+        ContentValues city = new ContentValues();
+        city.put(LocationEntry.COLUMN_CITY_NAME, "Santa Claus");
+        city.put(LocationEntry.COLUMN_ETAG, "\"v3\"");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, city,
+                LocationEntry._ID + " = ?", selectionArgs);
+        locations.waitForNotificationOrFail();
+    }
+
+    /*
+        A dashboard of both locations, with the detail of every day of one of them open, the
+        way the audit counts them: a forecast reloads the one location's cursors, and a single
+        changed day only what shows that day.
+     */
+    public void testAuditCountsReloads() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast());
+        audit(true);
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        cursors.add(query(WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, FIRST_DAY)));
+        cursors.add(query(WeatherEntry.buildWeatherLocationWithStartDate(
+                OTHER_LOCATION, FIRST_DAY)));
+        for (int i = 0; i < NUM_DAYS; i++) {
+            cursors.add(query(dayUri(TestUtilities.TEST_LOCATION, i)));
+        }
+        try {
+            ContentValues[] days = forecast();
+            for (ContentValues day : days) {
+                day.put(WeatherEntry.COLUMN_MAX_TEMP, 30.0);
+            }
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+            NotificationAudit forecast = audit(true);
+
+            ContentValues changedDay = new ContentValues();
+            changedDay.put(WeatherEntry.COLUMN_MAX_TEMP, 35.0);
+            mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, changedDay,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                    new String[]{Long.toString(mLocationId), Long.toString(
+                            WeatherContract.normalizeDate(FIRST_DAY + 5 * DateUtils.DAY_IN_MILLIS))});
+            NotificationAudit oneDay = audit(true);
+
+            assertEquals(1, forecast.getWriteCount());
+            assertEquals("Error: a forecast should reload its location's list and details",
+                    1 + NUM_DAYS, forecast.getReloadCount());
+            assertEquals("Error: one day should reload the list and that day's detail",
+                    2, oneDay.getReloadCount());
+            Log.i(LOG_TAG, String.format("%d cursors open; forecast: %s; one day: %s",
+                    cursors.size(), forecast, oneDay));
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private NotificationAudit audit(boolean enabled) {
+        Bundle extras = new Bundle();
+        extras.putBoolean(WeatherContract.EXTRA_ENABLED, enabled);
+        return NotificationAudit.fromBundle(mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherContract.METHOD_AUDIT_NOTIFICATIONS, null,
+                extras));
+    }
+
+    private Cursor query(Uri uri) {
+        return mContext.getContentResolver().query(uri, null, null, null, null);
+    }
+
+    // Registered the way a cursor registers for its notification uri.
+    private TestUtilities.TestContentObserver observe(Uri uri) {
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        mObservers.add(observer);
+        return observer;
+    }
+
+    private static Uri dayUri(String locationSetting, int day) {
+        return WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                FIRST_DAY + day * DateUtils.DAY_IN_MILLIS);
+    }
+
+    private ContentValues[] forecast() {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(mLocationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+        }
+        return days;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
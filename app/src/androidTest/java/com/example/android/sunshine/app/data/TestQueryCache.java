@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Asks the provider for the same weather again and checks that it comes from the cache, and
+    that writes drop just the results they could have changed.
+ */
+public class TestQueryCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryCache.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+    static final String OTHER_LOCATION = "99706";
+
+    static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private long mLocationId;
+    private long mOtherLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mOtherLocationId = Long.parseLong(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation).getLastPathSegment());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, 20.0));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mOtherLocationId, 20.0));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testSameQueryIsAHit() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                FIRST_DAY);
+        QueryCacheStats before = stats();
+        String first = contents(uri);
+        String second = contents(uri);
+        QueryCacheStats after = stats();
+
+        assertEquals("Error: the repeat should have come from the cache",
+                before.getHitCount() + 1, after.getHitCount());
+        assertEquals(before.getMissCount() + 1, after.getMissCount());
+        assertEquals("Error: the cache should give back what the database did", first, second);
+        assertTrue(after.getBytes() > 0);
+        assertTrue(after.getBytes() <= after.getMaxBytes());
+    }
+
+    public void testCachedCursorListensLikeTheOriginal() {
+        Uri uri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        query(uri).close();
+        Cursor cursor = query(uri);
+        assertEquals(uri, cursor.getNotificationUri());
+        cursor.close();
+    }
+
+    public void testWriteDropsOnlyWhatItChanged() {
+        Uri list = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                FIRST_DAY);
+        Uri otherList = WeatherEntry.buildWeatherLocationWithStartDate(OTHER_LOCATION,
+                FIRST_DAY);
+        contents(list);
+        contents(otherList);
+
+        ContentValues hotter = new ContentValues();
+        hotter.put(WeatherEntry.COLUMN_MAX_TEMP, 30.0);
+        QueryCacheStats before = stats();
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, hotter,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationId),
+                        Long.toString(WeatherContract.normalizeDate(FIRST_DAY))});
+        QueryCacheStats afterWrite = stats();
+        assertEquals("Error: only the written location's list should be dropped",
+                before.getInvalidationCount() + 1, afterWrite.getInvalidationCount());
+
+        Cursor cursor = query(list);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: a dropped result should be read again",
+                30.0, cursor.getDouble(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+        cursor.close();
+        contents(otherList);
+
+        QueryCacheStats after = stats();
+        assertEquals(afterWrite.getMissCount() + 1, after.getMissCount());
+        assertEquals(afterWrite.getHitCount() + 1, after.getHitCount());
+    }
+
+    public void testLocationWriteDropsEverything() {
+        contents(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        contents(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+        assertTrue(stats().getEntryCount() >= 2);
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Workshop");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationId)});
+
+        assertEquals(0, stats().getEntryCount());
+    }
+
+    public void testValidatorWriteDropsEverything() {
+        Uri uri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] columns = {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_ETAG};
+        query(uri, columns).close();
+
+        // Written the way the sync does, with no one notified.
+        ContentValues validators = new ContentValues();
+        validators.put(LocationEntry.COLUMN_ETAG, "\"v2\"");
+        validators.put(LocationEntry.COLUMN_LAST_MODIFIED, "Sat, 20 Dec 2014 00:00:00 GMT");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, validators,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationId)});
+
+        Cursor cursor = query(uri, columns);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: a cached result shouldn't keep serving the old validators",
+                "\"v2\"", cursor.getString(1));
+        cursor.close();
+    }
+
+    public void testBudgetEvictsLeastRecentlyUsed() {
+        QueryCache cache = new QueryCache(4 * 1024);
+        String[] columns = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC};
+        for (int i = 0; i < 20; i++) {
+            MatrixCursor cursor = new MatrixCursor(columns);
+            for (int day = 0; day < NUM_DAYS; day++) {
+                cursor.addRow(new Object[]{FIRST_DAY + day * DateUtils.DAY_IN_MILLIS, "Clear"});
+            }
+            cache.put("query " + i, cache.getGeneration(), cursor, WeatherEntry.CONTENT_URI);
+        }
+        QueryCacheStats stats = cache.getStats();
+        assertTrue("Error: twenty forecasts shouldn't fit in 4KB", stats.getEvictionCount() > 0);
+        assertTrue(stats.getBytes() <= stats.getMaxBytes());
+        assertNull(cache.get("query 0"));
+        assertNotNull(cache.get("query 19"));
+    }
+
+    public void testOversizedResultIsHandedBackUncopied() {
+        QueryCache cache = new QueryCache(1024);
+        MatrixCursor cursor = new MatrixCursor(new String[]{WeatherEntry.COLUMN_DATE});
+        for (int day = 0; day < 1000; day++) {
+            cursor.addRow(new Object[]{FIRST_DAY + day * DateUtils.DAY_IN_MILLIS});
+        }
+        Cursor result = cache.put("query", cache.getGeneration(), cursor,
+                WeatherEntry.CONTENT_URI);
+        assertSame("Error: a result bigger than the budget shouldn't be copied", cursor, result);
+        assertFalse(result.isClosed());
+        assertEquals(-1, result.getPosition());
+        assertNull(cache.get("query"));
+        assertEquals(1, cache.getStats().getTooLargeCount());
+        result.close();
+    }
+
+    public void testCachedCursorReadsEveryType() {
+        QueryCache cache = new QueryCache(QueryCache.DEFAULT_MAX_BYTES);
+        MatrixCursor cursor = new MatrixCursor(new String[]{"number", "real", "text", "blob"});
+        cursor.addRow(new Object[]{7L, 2.5, "Clear", new byte[]{1, 2}});
+        cursor.addRow(new Object[]{null, 3L, null, null});
+        cache.put("query", cache.getGeneration(), cursor, WeatherEntry.CONTENT_URI).close();
+
+        Cursor cached = cache.get("query").newCursor();
+        assertEquals(2, cached.getCount());
+        assertTrue(cached.moveToFirst());
+        assertEquals(7, cached.getInt(0));
+        assertEquals("7", cached.getString(0));
+        assertEquals(2.5, cached.getDouble(1));
+        assertEquals("Clear", cached.getString(2));
+        assertEquals(2, cached.getBlob(3).length);
+        assertTrue(cached.moveToNext());
+        assertTrue(cached.isNull(0));
+        assertEquals(Cursor.FIELD_TYPE_INTEGER, cached.getType(1));
+        assertEquals(3.0, cached.getDouble(1));
+        assertNull(cached.getString(2));
+        assertNull(cached.getBlob(3));
+        assertFalse(cached.moveToNext());
+        cached.close();
+    }
+
+    public void testResultReadDuringAWriteIsNotKept() {
+        QueryCache cache = new QueryCache(QueryCache.DEFAULT_MAX_BYTES);
+        long generation = cache.getGeneration();
+        cache.invalidate(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+        cache.put("query", generation, new MatrixCursor(new String[]{WeatherEntry._ID}),
+                WeatherEntry.CONTENT_URI);
+        assertNull(cache.get("query"));
+    }
+
+    /*
+        Not a pass/fail check: how long the forecast list's query takes when it has to go to
+        the database, and when the cache has it.  What is checked is that each query was
+        answered from where it should have been.
+     */
+    public void testQueryLatency() {
+        final int queries = 500;
+        QueryCacheStats before = stats();
+        // Every miss asks from a different day before the forecast, so for a different
+        // result that still holds every day.
+        long missNanos = 0;
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            contents(WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                    FIRST_DAY - (i + 1) * DateUtils.DAY_IN_MILLIS));
+            missNanos += System.nanoTime() - start;
+        }
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                FIRST_DAY);
+        contents(uri);
+        long hitNanos = 0;
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            contents(uri);
+            hitNanos += System.nanoTime() - start;
+        }
+        QueryCacheStats after = stats();
+        Log.i(LOG_TAG, String.format("%.3f ms per query from the database, %.3f ms from the"
+                        + " cache (%.1fx); %s", missNanos / 1e6 / queries,
+                hitNanos / 1e6 / queries, (double) missNanos / hitNanos, after));
+        assertEquals("Error: every new start date should have gone to the database",
+                before.getMissCount() + queries + 1, after.getMissCount());
+        assertEquals("Error: every repeat should have come from the cache",
+                before.getHitCount() + queries, after.getHitCount());
+    }
+
+    private Cursor query(Uri uri) {
+        return query(uri, FORECAST_COLUMNS);
+    }
+
+    private Cursor query(Uri uri, String[] projection) {
+        return mContext.getContentResolver().query(uri, projection, null, null, SORT_ORDER);
+    }
+
+    // Every value of every row, so two results can be compared.
+    private String contents(Uri uri) {
+        Cursor cursor = query(uri);
+        StringBuilder contents = new StringBuilder();
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                contents.append(cursor.getString(i)).append(',');
+            }
+            contents.append('\n');
+        }
+        cursor.close();
+        return contents.toString();
+    }
+
+    private QueryCacheStats stats() {
+        return QueryCacheStats.fromBundle(mContext.getContentResolver().call(
+                WeatherEntry.CONTENT_URI, WeatherContract.METHOD_QUERY_CACHE_STATS, null, null));
+    }
+
+    private static ContentValues[] forecast(long locationId, double maxTemp) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        }
+        return days;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/*
+    Storing a day that is already stored should update its row, not replace it.
+ */
+public class TestUpsert extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestUpsert.class.getSimpleName();
+
+    static final long FIRST_DAY = 1419033600000L;  // December 20th, 2014
+    static final int NUM_DAYS = 14;
+
+    // How the weather table was declared up to version 3.
+    static final String SQL_CREATE_REPLACING_WEATHER_TABLE =
+            WeatherDbHelper.SQL_CREATE_VERSION_4_WEATHER_TABLE.replace(
+                    WeatherEntry.COLUMN_LOC_KEY + "));",
+                    WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+
+    private long mLocationId;
+    private ScratchDatabase mScratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mScratch = new ScratchDatabase(mContext, "upsert-test.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        mScratch.delete();
+        super.tearDown();
+    }
+
+    public void testBulkInsertUpdatesInPlace() {
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, 20.0)));
+        String ids = rowIds();
+        long sequence = sequence();
+
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast(mLocationId, 25.0)));
+
+        assertEquals("Error: storing the same days again should keep their ids", ids, rowIds());
+        assertEquals("Error: updates shouldn't use up ids", sequence, sequence());
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertEquals(NUM_DAYS, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(25.0, cursor.getDouble(0));
+        }
+        cursor.close();
+    }
+
+    public void testInsertUpdatesInPlace() {
+        ContentValues day = forecast(mLocationId, 20.0)[0];
+        Uri first = mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, day);
+
+        day.put(WeatherEntry.COLUMN_MAX_TEMP, 25.0);
+        Uri second = mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, day);
+
+        assertEquals("Error: inserting a stored day should hand back its row",
+                ContentUris.parseId(first), ContentUris.parseId(second));
+        assertEquals(1, rowIds().split(",").length);
+    }
+
+    /*
+        Rewrites the same forecasts into the old REPLACE table and the current one, and checks
+        that the current one updates every row where it is, without deleting or inserting any.
+        Not a pass/fail check: what that costs on disk, counted as pages handed to the kernel
+        (database and journal both, and anything else the process wrote meanwhile).
+     */
+    public void testWriteAmplification() throws Exception {
+        final int locations = 100;
+        final int syncs = 5;
+        for (boolean upsert : new boolean[]{false, true}) {
+            SQLiteDatabase db = mScratch.open();
+            try {
+                if (upsert) {
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_TABLE);
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_CONDITION_TABLE);
+                } else {
+                    db.execSQL(SQL_CREATE_REPLACING_WEATHER_TABLE);
+                }
+                long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+                sync(db, locations, 0, upsert);
+                String ids = rowIds(db);
+                countRowChanges(db);
+
+                long bytesBefore = bytesWritten();
+                for (int i = 1; i <= syncs; i++) {
+                    sync(db, locations, i, upsert);
+                }
+                long bytesAfter = bytesWritten();
+                long bytes = bytesBefore < 0 || bytesAfter < 0 ? -1 : bytesAfter - bytesBefore;
+                long sequence = DatabaseUtils.longForQuery(db,
+                        "SELECT seq FROM sqlite_sequence WHERE name = ?",
+                        new String[]{WeatherEntry.TABLE_NAME});
+
+                if (upsert) {
+                    assertEquals("Error: rewriting stored days shouldn't use up ids",
+                            locations * NUM_DAYS, sequence);
+                    assertEquals("Error: rewritten days should keep their ids", ids,
+                            rowIds(db));
+                    assertEquals("Error: rewriting stored days should only update them",
+                            "0 inserted, 0 deleted", DatabaseUtils.stringForQuery(db,
+                                    "SELECT inserted || ' inserted, ' || deleted || ' deleted'"
+                                            + " FROM row_changes", null));
+                } else {
+                    assertEquals("Error: REPLACE should use up ids on every sync",
+                            (syncs + 1) * locations * NUM_DAYS, sequence);
+                }
+                Log.i(LOG_TAG, String.format("%s: %.1f pages written per sync of %d rows,"
+                                + " sqlite_sequence at %d",
+                        upsert ? "upsert" : "ON CONFLICT REPLACE",
+                        bytes < 0 ? Double.NaN : (double) bytes / pageSize / syncs,
+                        locations * NUM_DAYS, sequence));
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    // Count the weather rows inserted and deleted from here on, in row_changes.
+    private static void countRowChanges(SQLiteDatabase db) {
+        db.execSQL("CREATE TEMP TABLE row_changes (inserted INTEGER, deleted INTEGER)");
+        db.execSQL("INSERT INTO row_changes VALUES (0, 0)");
+        db.execSQL("CREATE TEMP TRIGGER count_inserts AFTER INSERT ON "
+                + WeatherEntry.TABLE_NAME + " BEGIN UPDATE row_changes SET inserted ="
+                + " inserted + 1; END");
+        db.execSQL("CREATE TEMP TRIGGER count_deletes AFTER DELETE ON "
+                + WeatherEntry.TABLE_NAME + " BEGIN UPDATE row_changes SET deleted ="
+                + " deleted + 1; END");
+    }
+
+    private static String rowIds(SQLiteDatabase db) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, new String[]{WeatherEntry._ID}, null,
+                null, null, null, WeatherEntry._ID + " ASC");
+        StringBuilder ids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            ids.append(cursor.getLong(0)).append(',');
+        }
+        cursor.close();
+        return ids.toString();
+    }
+
+    // Store every location's forecast the way each version of the table was written to.
+    private void sync(SQLiteDatabase db, int locations, int run, boolean upsert) {
+        db.beginTransaction();
+        try {
+            for (int location = 1; location <= locations; location++) {
+                ContentValues[] days = forecast(location, 20.0 + run);
+                if (upsert) {
+                    WeatherProvider.upsertBatch(db, ForecastBatch.fromContentValues(days));
+                } else {
+                    for (ContentValues day : days) {
+                        day.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                                day.getAsLong(WeatherEntry.COLUMN_DATE)));
+                        db.insert(WeatherEntry.TABLE_NAME, null, day);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // What this process has written so far, from /proc/self/io; -1 if that can't be read.
+    private static long bytesWritten() throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/io"));
+        } catch (IOException e) {
+            return -1;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("wchar:")) {
+                    return Long.parseLong(line.substring("wchar:".length()).trim());
+                }
+            }
+            return -1;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ContentValues[] forecast(long locationId, double maxTemp) {
+        ContentValues[] days = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DateUtils.DAY_IN_MILLIS);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        }
+        return days;
+    }
+
+    private String rowIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry._ID + " ASC");
+        StringBuilder ids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids.toString();
+    }
+
+    private long sequence() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        try {
+            return DatabaseUtils.longForQuery(db,
+                    "SELECT seq FROM sqlite_sequence WHERE name = ?",
+                    new String[]{WeatherEntry.TABLE_NAME});
+        } finally {
+            db.close();
+        }
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
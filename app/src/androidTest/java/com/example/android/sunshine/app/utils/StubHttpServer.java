@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP/1.1 server on the loopback interface that stands in for OpenWeatherMap in tests.
+ * Every request is handed to a {@link Dispatcher}, and the server keeps count of the requests
+ * it served and the TCP connections it accepted so tests can see what the client really did.
+ */
+public class StubHttpServer {
+
+    public interface Dispatcher {
+        Response dispatch(Request request) throws InterruptedException;
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        // Header names are lower-cased.
+        public final Map<String, String> headers;
+        // Which request on its connection this was, starting at 0.
+        public final int sequenceOnConnection;
+
+        Request(String method, String path, Map<String, String> headers,
+                int sequenceOnConnection) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.sequenceOnConnection = sequenceOnConnection;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    public static class Response {
+        final int code;
+        final String reason;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        byte[] body = new byte[0];
+        long delayMillis;
+        boolean closeConnection;
+
+        public Response(int code, String reason) {
+            this.code = code;
+            this.reason = reason;
+        }
+
+        public static Response ok(String body) {
+            return new Response(200, "OK").setBody(body)
+                    .setHeader("Content-Type", "application/json; charset=utf-8");
+        }
+
+        public static Response notModified() {
+            return new Response(304, "Not Modified");
+        }
+
+        public static Response error(int code) {
+            return new Response(code, "Error").setBody("{\"cod\":\"" + code + "\"}");
+        }
+
+        public Response setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Response setBody(String body) {
+            try {
+                this.body = body.getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return this;
+        }
+
+        public Response setBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        // Wait this long before sending anything back, like a slow upstream would.
+        public Response setDelay(long delayMillis) {
+            this.delayMillis = delayMillis;
+            return this;
+        }
+
+        // Hang up after this response instead of keeping the connection alive.
+        public Response setCloseConnection(boolean closeConnection) {
+            this.closeConnection = closeConnection;
+            return this;
+        }
+    }
+
+    private final Dispatcher mDispatcher;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private ServerSocket mServerSocket;
+
+    public StubHttpServer(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param pathAndQuery e.g. "/data/2.5/forecast/daily?"
+     */
+    public String getUrl(String pathAndQuery) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + pathAndQuery;
+    }
+
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    public Request getLastRequest() {
+        synchronized (mRequests) {
+            return mRequests.isEmpty() ? null : mRequests.get(mRequests.size() - 1);
+        }
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            mSockets.add(socket);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveConnection(socket);
+                    } catch (IOException e) {
+                        // The client went away; nothing to do.
+                    } catch (InterruptedException e) {
+                        // Shutting down.
+                    } finally {
+                        mSockets.remove(socket);
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void serveConnection(Socket socket) throws IOException, InterruptedException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        for (int sequence = 0; ; sequence++) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.length() == 0) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+
+            Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "/",
+                    headers, sequence);
+            mRequests.add(request);
+
+            Response response = mDispatcher.dispatch(request);
+            if (response.delayMillis > 0) {
+                Thread.sleep(response.delayMillis);
+            }
+
+            boolean close = response.closeConnection
+                    || "close".equalsIgnoreCase(request.getHeader("Connection"));
+
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(response.code).append(' ')
+                    .append(response.reason).append("\r\n");
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+            if (close) {
+                head.append("Connection: close\r\n");
+            }
+            head.append("\r\n");
+
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            out.write(response.body);
+            out.flush();
+
+            if (close) {
+                return;
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the raw forecasts another source returns on disk, one per location and units.
+ *
+ * A forecast fetched less than the time-to-live ago is served from disk without asking the
+ * upstream at all; if the request's validators match the copy on disk, that is a 304.  Older
+ * copies are kept, and refreshed by a 304 from the upstream, until the cache grows past its
+ * size limit, at which point the least recently used ones go.
+ *
+ * The forecasts are stored as they came, so after the database has been wiped they can be
+ * parsed and stored again through {@link #getReplaySource()} instead of downloaded again.
+ */
+public class CachingWeatherSource extends RecordingWeatherSource {
+
+    private static final String LOG_TAG = CachingWeatherSource.class.getSimpleName();
+
+    static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000;
+    static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final String FORECAST_SUFFIX = ".json";
+    private static final String META_SUFFIX = ".meta";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+
+    private final long mTtlMillis;
+    private final long mMaxBytes;
+
+    // File name -> size, least recently used first.  Guarded by itself; loaded on first use
+    // with the oldest files first, since access order doesn't survive a restart.
+    private LinkedHashMap<String, Long> mEntries;
+    private long mSize;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mEvictions = new AtomicInteger();
+
+    public CachingWeatherSource(WeatherSource upstream, File directory) {
+        this(upstream, directory, DEFAULT_TTL_MILLIS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param ttlMillis how long a cached forecast is served without asking the upstream.
+     * @param maxBytes  how much disk the cached forecasts may take up.
+     */
+    public CachingWeatherSource(WeatherSource upstream, File directory, long ttlMillis,
+                                long maxBytes) {
+        super(upstream, directory);
+        mTtlMillis = ttlMillis;
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public WeatherSource.Response fetch(Request request) throws IOException {
+        File file = ReplayWeatherSource.getRecordingFile(getDirectory(), request.locationSetting,
+                request.units);
+        long age = System.currentTimeMillis() - file.lastModified();
+        if (file.isFile() && age >= 0 && age < mTtlMillis) {
+            WeatherSource.Response cached = openCached(request, file);
+            if (cached != null) {
+                mHits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        mMisses.incrementAndGet();
+        WeatherSource.Response response = super.fetch(request);
+        if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED && file.isFile()) {
+            // The copy we have is still what the upstream would send.
+            file.setLastModified(System.currentTimeMillis());
+            touch(file.getName());
+        }
+        return response;
+    }
+
+    @Override
+    protected void onRecorded(Request request, WeatherSource.Response response, File file) {
+        Properties meta = new Properties();
+        if (response.getEtag() != null) {
+            meta.setProperty(KEY_ETAG, response.getEtag());
+        }
+        if (response.getLastModified() != null) {
+            meta.setProperty(KEY_LAST_MODIFIED, response.getLastModified());
+        }
+        try {
+            OutputStream out = new FileOutputStream(metaFile(file));
+            try {
+                meta.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Without validators the copy can still be served, just never as a 304.
+            Log.w(LOG_TAG, "Couldn't save validators for " + file, e);
+        }
+        put(file.getName(), file.length());
+    }
+
+    /**
+     * A source that serves whatever is cached, however old, and 404s anything that isn't.
+     * Nothing it serves touches the network.
+     */
+    public WeatherSource getReplaySource() {
+        return new WeatherSource() {
+            @Override
+            public WeatherSource.Response fetch(Request request) throws IOException {
+                File file = ReplayWeatherSource.getRecordingFile(getDirectory(),
+                        request.locationSetting, request.units);
+                WeatherSource.Response cached = file.isFile() ? openCached(request, file) : null;
+                return cached != null ? cached : new CachedResponse(null, null);
+            }
+        };
+    }
+
+    /**
+     * Every location with a forecast cached in the given units.
+     */
+    public List<String> getCachedLocationSettings(String units) {
+        List<String> locationSettings = new ArrayList<String>();
+        String suffix = "." + units + FORECAST_SUFFIX;
+        String[] names = getDirectory().list();
+        if (names == null) {
+            return locationSettings;
+        }
+        for (String name : names) {
+            if (!name.endsWith(suffix)) {
+                continue;
+            }
+            try {
+                locationSettings.add(URLDecoder.decode(
+                        name.substring(0, name.length() - suffix.length()), "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return locationSettings;
+    }
+
+    // Fetches answered from disk.
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    // Fetches passed on to the upstream.
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    public int getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    public long getSize() {
+        synchronized (this) {
+            loadEntries();
+            return mSize;
+        }
+    }
+
+    private WeatherSource.Response openCached(Request request, File file) {
+        Properties meta = new Properties();
+        File metaFile = metaFile(file);
+        if (metaFile.isFile()) {
+            try {
+                InputStream in = new FileInputStream(metaFile);
+                try {
+                    meta.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Ignoring unreadable validators for " + file, e);
+            }
+        }
+        String etag = meta.getProperty(KEY_ETAG);
+        String lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+        touch(file.getName());
+
+        // The caller already stored this very forecast.
+        if ((etag != null && etag.equals(request.etag))
+                || (etag == null && lastModified != null
+                        && lastModified.equals(request.lastModified))) {
+            return new CachedResponse(null, meta);
+        }
+        return new CachedResponse(file, meta);
+    }
+
+    private static File metaFile(File file) {
+        return new File(file.getPath() + META_SUFFIX);
+    }
+
+    private void touch(String name) {
+        synchronized (this) {
+            loadEntries();
+            // A get() is what moves an entry to the back of an access-ordered map.
+            mEntries.get(name);
+        }
+    }
+
+    private void put(String name, long size) {
+        synchronized (this) {
+            loadEntries();
+            Long old = mEntries.put(name, size);
+            mSize += size - (old != null ? old : 0);
+
+            Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet().iterator();
+            while (mSize > mMaxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(name)) {
+                    // Never evict what was just written, however big it is.
+                    continue;
+                }
+                File evicted = new File(getDirectory(), entry.getKey());
+                evicted.delete();
+                metaFile(evicted).delete();
+                mSize -= entry.getValue();
+                eldest.remove();
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Call with this held.
+    private void loadEntries() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mSize = 0;
+        File[] files = getDirectory().listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(FORECAST_SUFFIX)) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * A forecast served from disk, or a 404 or 304 when {@code file} is null.
+     */
+    private static class CachedResponse extends WeatherSource.Response {
+        private final File mFile;
+        private final Properties mMeta;
+        private InputStream mBody;
+        private long mLength;
+
+        CachedResponse(File file, Properties meta) {
+            mFile = file;
+            mMeta = meta;
+        }
+
+        @Override
+        public int getStatusCode() {
+            if (mFile != null) {
+                return HttpURLConnection.HTTP_OK;
+            }
+            return mMeta != null
+                    ? HttpURLConnection.HTTP_NOT_MODIFIED : HttpURLConnection.HTTP_NOT_FOUND;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = new BufferedInputStream(new FileInputStream(mFile));
+                mLength = mFile.length();
+            }
+            return mBody;
+        }
+
+        @Override
+        public String getEtag() {
+            return mMeta != null ? mMeta.getProperty(KEY_ETAG) : null;
+        }
+
+        @Override
+        public String getLastModified() {
+            return mMeta != null ? mMeta.getProperty(KEY_LAST_MODIFIED) : null;
+        }
+
+        // Nothing came over the network.
+        @Override
+        public long getWireByteCount() {
+            return 0;
+        }
+
+        @Override
+        public long getDecodedByteCount() {
+            return mLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBody != null) {
+                mBody.close();
+            }
+        }
+
+        @Override
+        public void abandon() {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
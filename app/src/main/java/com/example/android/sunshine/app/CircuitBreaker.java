@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops sending requests to an upstream that keeps failing.
+ *
+ * While CLOSED, every request goes through, and a run of failures in a row opens the breaker.
+ * While OPEN, requests fail straight away with an {@link OpenException} instead of waiting on
+ * a server that is down.  Once the open period is over the breaker goes HALF_OPEN and lets a
+ * single trial request through: if it works the breaker closes again, and if it fails the
+ * breaker opens for another period.
+ */
+public class CircuitBreaker {
+
+    private static final String LOG_TAG = CircuitBreaker.class.getSimpleName();
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_OPEN_MILLIS = 60 * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public interface Listener {
+        void onStateChanged(CircuitBreaker breaker, State from, State to);
+    }
+
+    /**
+     * Thrown instead of making a request while the breaker is open.
+     */
+    public static class OpenException extends IOException {
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // All guarded by this.
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenedAt;
+    private boolean mTrialInFlight;
+
+    private final AtomicInteger mRejected = new AtomicInteger();
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold how many failures in a row open the breaker.
+     * @param openMillis       how long to fail fast before trying the upstream again.
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public synchronized State getState() {
+        // An open breaker whose time is up is as good as half open, even if no request has
+        // come along to notice yet.
+        if (mState == State.OPEN && elapsedSinceOpened() >= mOpenMillis) {
+            return State.HALF_OPEN;
+        }
+        return mState;
+    }
+
+    public synchronized int getConsecutiveFailureCount() {
+        return mConsecutiveFailures;
+    }
+
+    // How many requests were turned away without being sent.
+    public int getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Call before each request.  If this returns normally the request may go ahead, and its
+     * outcome must be reported to {@link #onSuccess} or {@link #onFailure}.
+     *
+     * @throws OpenException if the request should not be sent.
+     */
+    public void acquire() throws OpenException {
+        State from;
+        synchronized (this) {
+            from = mState;
+            switch (mState) {
+                case CLOSED:
+                    return;
+                case OPEN:
+                    if (elapsedSinceOpened() < mOpenMillis) {
+                        mRejected.incrementAndGet();
+                        throw new OpenException("Upstream failing, retry in "
+                                + (mOpenMillis - elapsedSinceOpened()) + " ms");
+                    }
+                    mState = State.HALF_OPEN;
+                    mTrialInFlight = true;
+                    break;
+                case HALF_OPEN:
+                    if (mTrialInFlight) {
+                        mRejected.incrementAndGet();
+                        throw new OpenException("Upstream failing, trial request in flight");
+                    }
+                    mTrialInFlight = true;
+                    return;
+            }
+        }
+        notifyStateChanged(from, State.HALF_OPEN);
+    }
+
+    public void onSuccess() {
+        State from;
+        synchronized (this) {
+            from = mState;
+            mConsecutiveFailures = 0;
+            mTrialInFlight = false;
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+        }
+        notifyStateChanged(from, State.CLOSED);
+    }
+
+    public void onFailure() {
+        State from;
+        synchronized (this) {
+            from = mState;
+            mConsecutiveFailures++;
+            mTrialInFlight = false;
+            if (mState == State.OPEN
+                    || (mState == State.CLOSED && mConsecutiveFailures < mFailureThreshold)) {
+                return;
+            }
+            mState = State.OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime();
+        }
+        notifyStateChanged(from, State.OPEN);
+    }
+
+    private long elapsedSinceOpened() {
+        return SystemClock.elapsedRealtime() - mOpenedAt;
+    }
+
+    private void notifyStateChanged(State from, State to) {
+        Log.d(LOG_TAG, "Circuit breaker " + from + " -> " + to);
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(this, from, to);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes that pass through it, for the byte counts a
+ * {@link WeatherSource.Response} reports.
+ */
+class CountingInputStream extends FilterInputStream {
+    private final boolean mCloseUnderlying;
+    private long mCount;
+
+    /**
+     * @param closeUnderlying false for a stream its owner closes, like a connection's own,
+     *                        which {@link WeatherHttpClient} releases instead.
+     */
+    CountingInputStream(InputStream in, boolean closeUnderlying) {
+        super(in);
+        mCloseUnderlying = closeUnderlying;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    void drain() throws IOException {
+        byte[] skipBuffer = new byte[4096];
+        while (read(skipBuffer, 0, skipBuffer.length) != -1) {
+            // counted by read()
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = in.read(buffer, offset, count);
+        if (read > 0) {
+            mCount += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long skipped = in.skip(byteCount);
+        mCount += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mCloseUnderlying) {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.text.format.Time;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.TimeZone;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into the rows we store in the weather table.
+ *
+ * There are two ways in.  {@link #parse(String)} builds the complete JSONObject tree first, which
+ * is how Sunshine has always done it.  {@link #parse(Reader)} pulls tokens straight off the
+ * response stream, so neither the raw response string nor the object tree is ever held in
+ * memory.  Both produce exactly the same rows.
+ */
+class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    /**
+     * Everything we pull out of one forecast response: the city it was issued for and one
+     * row of weather values per day, a column at a time.  The rows don't carry a location key
+     * yet, since that is only known once the city has been added to the database.
+     */
+    static class Forecast {
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final ForecastBatch days = new ForecastBatch();
+    }
+
+    private final int mJulianStartDay;
+
+    // Days start at midnight where the device is, the same as WeatherContract.normalizeDate().
+    private final TimeZone mTimeZone = TimeZone.getDefault();
+
+    /**
+     * @param julianStartDay the day the first element of the "list" array describes.
+     */
+    ForecastJsonParser(int julianStartDay) {
+        mJulianStartDay = julianStartDay;
+    }
+
+    /**
+     * OWM returns daily forecasts based upon the local time of the city that is being asked for,
+     * which means that we need to know the GMT offset to translate this data properly.
+     *
+     * Since this data is also sent in-order and the first day is always the current day, we're
+     * going to take advantage of that to get a nice normalized UTC date for all of our weather.
+     */
+    static int getJulianStartDay() {
+        // we start at the day returned by local time. Otherwise this is a mess.
+        return (int) WeatherContract.toEpochDay(System.currentTimeMillis(),
+                TimeZone.getDefault()) + Time.EPOCH_JULIAN_DAY;
+    }
+
+    /**
+     * Take the String representing the complete forecast in JSON Format and
+     * pull out the data we need to construct the Strings needed for the wireframes.
+     *
+     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
+     * into an Object hierarchy for us.
+     */
+    Forecast parse(String forecastJsonStr) throws JSONException {
+        Forecast forecast = new Forecast();
+
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        forecast.cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        forecast.cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        forecast.cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            addDay(forecast.days, i,
+                    dayForecast.getDouble(OWM_PRESSURE),
+                    dayForecast.getInt(OWM_HUMIDITY),
+                    dayForecast.getDouble(OWM_WINDSPEED),
+                    dayForecast.getDouble(OWM_WIND_DIRECTION),
+                    temperatureObject.getDouble(OWM_MAX),
+                    temperatureObject.getDouble(OWM_MIN),
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID));
+        }
+        return forecast;
+    }
+
+    /**
+     * Pull the same data as {@link #parse(String)} out of a character stream, one token at a
+     * time.  Anything we don't store is skipped without being materialized, and the "city"
+     * and "list" sections may arrive in either order.
+     */
+    Forecast parse(Reader in) throws IOException, JSONException {
+        Forecast forecast = new Forecast();
+        JsonReader reader = new JsonReader(in);
+
+        boolean sawCity = false;
+        boolean sawList = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY.equals(name)) {
+                readCity(reader, forecast);
+                sawCity = true;
+            } else if (OWM_LIST.equals(name)) {
+                readList(reader, forecast);
+                sawList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawList) {
+            throw missing(OWM_LIST);
+        }
+        if (!sawCity) {
+            throw missing(OWM_CITY);
+        }
+        return forecast;
+    }
+
+    private void readCity(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        boolean sawName = false;
+        boolean sawCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                forecast.cityName = reader.nextString();
+                sawName = true;
+            } else if (OWM_COORD.equals(name)) {
+                readCoord(reader, forecast);
+                sawCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawName) {
+            throw missing(OWM_CITY_NAME);
+        }
+        if (!sawCoord) {
+            throw missing(OWM_COORD);
+        }
+    }
+
+    private void readCoord(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        boolean sawLatitude = false;
+        boolean sawLongitude = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_LATITUDE.equals(name)) {
+                forecast.cityLatitude = reader.nextDouble();
+                sawLatitude = true;
+            } else if (OWM_LONGITUDE.equals(name)) {
+                forecast.cityLongitude = reader.nextDouble();
+                sawLongitude = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawLatitude) {
+            throw missing(OWM_LATITUDE);
+        }
+        if (!sawLongitude) {
+            throw missing(OWM_LONGITUDE);
+        }
+    }
+
+    private void readList(JsonReader reader, Forecast forecast)
+            throws IOException, JSONException {
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            readDay(reader, i, forecast.days);
+        }
+        reader.endArray();
+    }
+
+    // Bits for the fields readDay must see before it can build a row.
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int ALL_DAY_FIELDS = (1 << 8) - 1;
+
+    private void readDay(JsonReader reader, int dayIndex, ForecastBatch days)
+            throws IOException, JSONException {
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        String description = null;
+        int weatherId = 0;
+
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                seen |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                // JSONObject.getInt truncates non-integral numbers, and so do we.
+                humidity = (int) reader.nextDouble();
+                seen |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                seen |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                seen |= FIELD_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        high = reader.nextDouble();
+                        seen |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(tempName)) {
+                        low = reader.nextDouble();
+                        seen |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Only the first element of the "weather" array describes the day.
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                            seen |= FIELD_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = (int) reader.nextDouble();
+                            seen |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != ALL_DAY_FIELDS) {
+            throw new JSONException("Incomplete forecast for day " + dayIndex);
+        }
+
+        addDay(days, dayIndex, pressure, humidity, windSpeed, windDirection, high, low,
+                description, weatherId);
+    }
+
+    private void addDay(ForecastBatch days, int dayIndex, double pressure, int humidity,
+                        double windSpeed, double windDirection, double high, double low,
+                        String description, int weatherId) {
+        long dateTime = WeatherContract.startOfEpochDay(
+                mJulianStartDay + dayIndex - Time.EPOCH_JULIAN_DAY, mTimeZone);
+
+        // The location key is filled in once the city is in the database.
+        days.add(0, dateTime, weatherId, description, low, high, humidity, pressure,
+                windSpeed, windDirection);
+    }
+
+    private static JSONException missing(String name) {
+        return new JSONException("No value for " + name);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Fetches forecasts from OpenWeatherMap's daily forecast API, through the shared
+ * {@link WeatherHttpClient}.
+ */
+public class OwmWeatherSource implements WeatherSource {
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+
+    private static final String APPID = "80d7b352bec7eca39230f1aac6338241";
+
+    private final String mForecastBaseUrl;
+    private final WeatherHttpClient mClient;
+
+    public OwmWeatherSource() {
+        this(FORECAST_BASE_URL, WeatherHttpClient.getInstance());
+    }
+
+    /**
+     * @param forecastBaseUrl where to send forecast requests, e.g. a stand-in server for tests.
+     */
+    OwmWeatherSource(String forecastBaseUrl, WeatherHttpClient client) {
+        mForecastBaseUrl = forecastBaseUrl;
+        mClient = client;
+    }
+
+    @Override
+    public WeatherSource.Response fetch(Request request) throws IOException {
+        // Construct the URL for the OpenWeatherMap query
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = Uri.parse(mForecastBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, request.locationSetting)
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, request.units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(request.numDays))
+                .appendQueryParameter(APPID_PARAM, APPID)
+                .build();
+
+        URL url = new URL(builtUri.toString());
+
+        // Create the request to OpenWeatherMap, and open the connection.  The shared client
+        // keeps the socket alive between refreshes.
+        HttpURLConnection urlConnection = mClient.open(url);
+        try {
+            // If we already hold a forecast for this location, only ask for a new one if it
+            // changed since.
+            if (request.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", request.etag);
+            }
+            if (request.lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", request.lastModified);
+            }
+            urlConnection.connect();
+            return new HttpResponse(urlConnection, urlConnection.getResponseCode());
+        } catch (IOException e) {
+            mClient.discard(urlConnection);
+            throw e;
+        }
+    }
+
+    private class HttpResponse extends WeatherSource.Response {
+        private final HttpURLConnection mConnection;
+        private final int mStatusCode;
+        private WeatherHttpClient.ResponseStream mBody;
+        private boolean mFinished;
+
+        HttpResponse(HttpURLConnection connection, int statusCode) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                // The client undoes any gzip or deflate encoding and counts bytes on both sides.
+                mBody = mClient.getResponseStream(mConnection);
+            }
+            return mBody;
+        }
+
+        @Override
+        public String getEtag() {
+            return mConnection.getHeaderField("ETag");
+        }
+
+        @Override
+        public String getLastModified() {
+            return mConnection.getHeaderField("Last-Modified");
+        }
+
+        @Override
+        public long getWireByteCount() {
+            return mBody != null ? mBody.getWireByteCount() : 0;
+        }
+
+        @Override
+        public long getDecodedByteCount() {
+            return mBody != null ? mBody.getDecodedByteCount() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            try {
+                // Closing reads whatever trails the JSON, so the counts cover the whole body.
+                if (mBody != null) {
+                    mBody.close();
+                }
+            } catch (IOException e) {
+                mClient.discard(mConnection);
+                throw e;
+            }
+            // Hand the connection back for the next refresh.
+            mClient.release(mConnection);
+        }
+
+        @Override
+        public void abandon() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            // Something went wrong part way through the response, so the socket can't be
+            // trusted for another request.
+            if (mBody != null) {
+                mBody.abandon();
+            }
+            mClient.discard(mConnection);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Passes requests on to another source and saves a copy of every forecast that comes back
+ * whole, in the layout {@link ReplayWeatherSource} reads.
+ */
+public class RecordingWeatherSource implements WeatherSource {
+
+    private static final String LOG_TAG = RecordingWeatherSource.class.getSimpleName();
+
+    private final WeatherSource mUpstream;
+    private final File mDirectory;
+
+    public RecordingWeatherSource(WeatherSource upstream, File directory) {
+        mUpstream = upstream;
+        mDirectory = directory;
+    }
+
+    @Override
+    public WeatherSource.Response fetch(Request request) throws IOException {
+        WeatherSource.Response response = mUpstream.fetch(request);
+        if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+            return response;
+        }
+        return new RecordingResponse(request, response,
+                ReplayWeatherSource.getRecordingFile(mDirectory, request.locationSetting,
+                        request.units));
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Called once a response has been saved in full as {@code file}.
+     */
+    protected void onRecorded(Request request, WeatherSource.Response response, File file) {
+    }
+
+    private class RecordingResponse extends WeatherSource.Response {
+        private final Request mRequest;
+        private final WeatherSource.Response mResponse;
+        private final File mFile;
+        private final File mPartFile;
+        private TeeInputStream mBody;
+
+        RecordingResponse(Request request, WeatherSource.Response response, File file) {
+            mRequest = request;
+            mResponse = response;
+            mFile = file;
+            mPartFile = new File(file.getPath() + ".part");
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse.getStatusCode();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                if (!mFile.getParentFile().isDirectory()) {
+                    mFile.getParentFile().mkdirs();
+                }
+                mBody = new TeeInputStream(mResponse.getBody(), new FileOutputStream(mPartFile));
+            }
+            return mBody;
+        }
+
+        @Override
+        public String getEtag() {
+            return mResponse.getEtag();
+        }
+
+        @Override
+        public String getLastModified() {
+            return mResponse.getLastModified();
+        }
+
+        @Override
+        public long getWireByteCount() {
+            return mResponse.getWireByteCount();
+        }
+
+        @Override
+        public long getDecodedByteCount() {
+            return mResponse.getDecodedByteCount();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBody == null) {
+                mResponse.close();
+                return;
+            }
+            try {
+                // Copy whatever the caller left unread, so the recording is the whole body.
+                byte[] skipBuffer = new byte[4096];
+                while (mBody.read(skipBuffer) != -1) {
+                    // copied by read()
+                }
+            } catch (IOException e) {
+                abandon();
+                throw e;
+            }
+            mBody.mCopy.close();
+            mResponse.close();
+            // Only a complete recording replaces the last one.
+            if (!mPartFile.renameTo(mFile)) {
+                Log.w(LOG_TAG, "Couldn't save recording " + mFile);
+                mPartFile.delete();
+                return;
+            }
+            onRecorded(mRequest, mResponse, mFile);
+        }
+
+        @Override
+        public void abandon() {
+            if (mBody != null) {
+                try {
+                    mBody.mCopy.close();
+                } catch (IOException ignored) {
+                }
+                mPartFile.delete();
+            }
+            mResponse.abandon();
+        }
+    }
+
+    /**
+     * Writes everything read through it to a second stream.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        final OutputStream mCopy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                mCopy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                mCopy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            // Skipped bytes still have to end up in the copy.
+            byte[] skipBuffer = new byte[(int) Math.min(byteCount, 4096)];
+            int read = read(skipBuffer, 0, skipBuffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // Finished by RecordingResponse.close() or abandon().
+        }
+    }
+}
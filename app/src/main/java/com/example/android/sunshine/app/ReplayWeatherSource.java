@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.Random;
+
+/**
+ * Serves forecasts from files instead of the network, one file per location and units, as
+ * written by {@link RecordingWeatherSource}.  A location without a file gets a 404.
+ *
+ * Every fetch can be made to take a while, to stand in for a real server's latency.  Nothing
+ * comes with validators, so every fetch is a full 200 that has to be parsed and stored.
+ */
+public class ReplayWeatherSource implements WeatherSource {
+
+    private final File mDirectory;
+    private final Random mRandom = new Random();
+    private volatile long mLatencyMillis;
+    private volatile long mJitterMillis;
+
+    public ReplayWeatherSource(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Make every fetch wait {@code latencyMillis}, plus up to {@code jitterMillis} more picked
+     * at random, before answering.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+    }
+
+    /**
+     * The file a forecast for this location and units is recorded in.
+     */
+    static File getRecordingFile(File directory, String locationSetting, String units) {
+        try {
+            return new File(directory,
+                    URLEncoder.encode(locationSetting, "UTF-8") + "." + units + ".json");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public WeatherSource.Response fetch(Request request) throws IOException {
+        long delay = mLatencyMillis;
+        long jitter = mJitterMillis;
+        if (jitter > 0) {
+            synchronized (mRandom) {
+                delay += (long) (mRandom.nextDouble() * jitter);
+            }
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying latency");
+            }
+        }
+
+        File file = getRecordingFile(mDirectory, request.locationSetting, request.units);
+        if (!file.isFile()) {
+            return new FileResponse(null);
+        }
+        return new FileResponse(file);
+    }
+
+    private static class FileResponse extends WeatherSource.Response {
+        private final File mFile;
+        private CountingInputStream mBody;
+
+        FileResponse(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mFile != null ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_NOT_FOUND;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = new CountingInputStream(
+                        new BufferedInputStream(new FileInputStream(mFile)), true);
+            }
+            return mBody;
+        }
+
+        @Override
+        public String getEtag() {
+            return null;
+        }
+
+        @Override
+        public String getLastModified() {
+            return null;
+        }
+
+        // Nothing is compressed, so both counts are the bytes read from the file.
+        @Override
+        public long getWireByteCount() {
+            return mBody != null ? mBody.getCount() : 0;
+        }
+
+        @Override
+        public long getDecodedByteCount() {
+            return getWireByteCount();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBody != null) {
+                mBody.close();
+            }
+        }
+
+        @Override
+        public void abandon() {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.util.Random;
+
+/**
+ * How many times to try a forecast request, and how long to wait in between.
+ *
+ * The wait before retry n is picked at random between zero and
+ * {@code min(maxDelay, baseDelay * 2^(n-1))}.  Spreading the retries out like that keeps a
+ * crowd of clients that all failed at the same moment from all coming back at the same moment.
+ */
+public class RetryPolicy {
+
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 8 * 1000;
+
+    // Try once and give up.
+    public static final RetryPolicy NO_RETRIES = new RetryPolicy(1, 0, 0);
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom = new Random();
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxAttempts     how many times to try in all, including the first.
+     * @param baseDelayMillis the most to wait before the first retry.
+     * @param maxDelayMillis  the most to wait before any retry.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * The longest we might wait after the given failed attempt, counting from 1.
+     */
+    public long getDelayCapMillis(int attempt) {
+        // Stop doubling once we're past the cap, rather than overflow.
+        long cap = mBaseDelayMillis;
+        for (int i = 1; i < attempt && cap < mMaxDelayMillis; i++) {
+            cap *= 2;
+        }
+        return Math.min(cap, mMaxDelayMillis);
+    }
+
+    /**
+     * How long to wait after the given failed attempt, counting from 1, before trying again.
+     */
+    public long getDelayMillis(int attempt) {
+        long cap = getDelayCapMillis(attempt);
+        if (cap <= 0) {
+            return 0;
+        }
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * (cap + 1));
+        }
+    }
+}
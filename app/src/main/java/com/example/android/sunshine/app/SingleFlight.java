@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes sure only one piece of work per key is running at a time.  Whoever asks for a key
+ * first does the work; anyone asking for the same key before it is done waits for that
+ * result instead of doing it again.  Once the work finishes the key is free, so the next
+ * caller starts fresh.
+ *
+ * The work can be done in one call with {@link #execute}, or split up with {@link #join} and
+ * {@link #finish} when the leader does it in several steps, e.g. a fetch followed by a
+ * batched insert.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * One piece of work in progress for a key.
+     */
+    public static class Flight<V> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final boolean mLeader;
+        private V mValue;
+        private Throwable mError;
+
+        Flight(boolean leader) {
+            mLeader = leader;
+        }
+
+        /**
+         * True if the caller that got this flight has to do the work and then call
+         * {@link SingleFlight#finish}; false if it only has to wait for it.
+         */
+        public boolean isLeader() {
+            return mLeader;
+        }
+
+        /**
+         * Wait for the leader to finish.
+         *
+         * @throws ExecutionException if the leader's work failed.
+         */
+        public V await() throws InterruptedException, ExecutionException {
+            mDone.await();
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mValue;
+        }
+
+        // Followers share the leader's latch and result through this.
+        Flight<V> follower() {
+            Flight<V> follower = new Flight<V>(false) {
+                @Override
+                public V await() throws InterruptedException, ExecutionException {
+                    return Flight.this.await();
+                }
+            };
+            return follower;
+        }
+    }
+
+    private final HashMap<K, Flight<V>> mInFlight = new HashMap<K, Flight<V>>();
+
+    private final AtomicInteger mExecuted = new AtomicInteger();
+    private final AtomicInteger mCoalesced = new AtomicInteger();
+
+    /**
+     * Start or attach to the work for {@code key}.  A leader must always call
+     * {@link #finish}, even when its work fails, or later callers will wait forever.
+     */
+    public Flight<V> join(K key) {
+        synchronized (mInFlight) {
+            Flight<V> leader = mInFlight.get(key);
+            if (leader != null) {
+                mCoalesced.incrementAndGet();
+                return leader.follower();
+            }
+            leader = new Flight<V>(true);
+            mInFlight.put(key, leader);
+            mExecuted.incrementAndGet();
+            return leader;
+        }
+    }
+
+    /**
+     * Hand the result of the leader's work to everyone waiting on it, and free the key.
+     *
+     * @param error null if the work succeeded.
+     */
+    public void finish(K key, Flight<V> flight, V value, Throwable error) {
+        if (!flight.mLeader) {
+            throw new IllegalArgumentException("Only the leader can finish a flight");
+        }
+        synchronized (mInFlight) {
+            if (mInFlight.get(key) == flight) {
+                mInFlight.remove(key);
+            }
+        }
+        flight.mValue = value;
+        flight.mError = error;
+        flight.mDone.countDown();
+    }
+
+    /**
+     * Run {@code work} for {@code key}, or wait for the run already in progress.
+     */
+    public V execute(K key, Callable<V> work) throws InterruptedException, ExecutionException {
+        Flight<V> flight = join(key);
+        if (!flight.isLeader()) {
+            return flight.await();
+        }
+        V value = null;
+        Throwable error = null;
+        try {
+            value = work.call();
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            finish(key, flight, value, error);
+        }
+        return flight.await();
+    }
+
+    // How many times work was actually run.
+    public int getExecutedCount() {
+        return mExecuted.get();
+    }
+
+    // How many callers were handed someone else's result instead of running it themselves.
+    public int getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    public void resetCounters() {
+        mExecuted.set(0);
+        mCoalesced.set(0);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The process-wide HTTP client for forecast requests.
+ *
+ * HttpURLConnection already pools keep-alive sockets per host, but only for connections whose
+ * response body was read to the end and closed without calling {@code disconnect()}.  Every
+ * fetch goes through {@link #open(URL)} and hands the connection back through
+ * {@link #release(HttpURLConnection)}, which does exactly that, so refreshes after the first
+ * skip the DNS lookup and the TCP handshake.
+ *
+ * The platform pool can't be inspected, so this class keeps its own ledger of the idle
+ * connections it handed back, expiring them on the same schedule the platform does.  That is
+ * what the reused and new connection counters are based on.
+ *
+ * Requests advertise gzip and deflate.  Asking for an encoding ourselves turns off the
+ * platform's transparent decompression, so {@link #getResponseStream} does the decoding and
+ * counts the bytes on both sides of it.
+ */
+public class WeatherHttpClient {
+
+    private static final String LOG_TAG = WeatherHttpClient.class.getSimpleName();
+
+    // Nothing was set before, which on most devices meant waiting forever.
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // How long the platform keeps an idle connection, and how many it keeps per host.
+    static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    static final int MAX_IDLE_CONNECTIONS = 5;
+
+    private static WeatherHttpClient sInstance;
+
+    public static synchronized WeatherHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new WeatherHttpClient();
+        }
+        return sInstance;
+    }
+
+    private volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    // "host:port" -> the times connections to it were last handed back, oldest first
+    private final HashMap<String, ArrayDeque<Long>> mIdleConnections =
+            new HashMap<String, ArrayDeque<Long>>();
+
+    private final AtomicInteger mNewConnections = new AtomicInteger();
+    private final AtomicInteger mReusedConnections = new AtomicInteger();
+
+    // Body bytes as they came over the network, and after decompression.
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+
+    WeatherHttpClient() {
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    /**
+     * Open a GET request to {@code url} with our timeouts applied.  The caller may add request
+     * headers before connecting, and must pass the connection to {@link #release} or
+     * {@link #discard} when it is done with it.
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+        urlConnection.setReadTimeout(mReadTimeoutMillis);
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+        if (takeIdleConnection(poolKey(url), System.currentTimeMillis())) {
+            mReusedConnections.incrementAndGet();
+        } else {
+            mNewConnections.incrementAndGet();
+        }
+        return urlConnection;
+    }
+
+    /**
+     * The decoded body of a successful response.  Closing it reads whatever the caller left of
+     * the body off the wire, so that the byte counts are complete, but leaves the connection
+     * itself to {@link #release} or {@link #discard}.
+     */
+    public ResponseStream getResponseStream(HttpURLConnection urlConnection) throws IOException {
+        return new ResponseStream(urlConnection.getInputStream(),
+                urlConnection.getContentEncoding());
+    }
+
+    /**
+     * Finish with a connection whose response was handled normally.  Whatever is left of the
+     * body is read and the stream closed, which lets the platform keep the socket for the next
+     * request to the same host.
+     */
+    public void release(HttpURLConnection urlConnection) {
+        try {
+            InputStream in;
+            if (urlConnection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                in = urlConnection.getErrorStream();
+            } else {
+                in = urlConnection.getInputStream();
+            }
+            if (in != null) {
+                byte[] skipBuffer = new byte[4096];
+                while (in.read(skipBuffer) != -1) {
+                    // keep reading; the socket can only be reused once the body is consumed
+                }
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Dropping connection that failed to drain: " + e.getMessage());
+            discard(urlConnection);
+            return;
+        }
+
+        if ("close".equalsIgnoreCase(urlConnection.getHeaderField("Connection"))) {
+            // The server is hanging up, so the platform won't keep this one.
+            return;
+        }
+        putIdleConnection(poolKey(urlConnection.getURL()), System.currentTimeMillis());
+    }
+
+    /**
+     * Finish with a connection that failed part way, closing its socket for good.
+     */
+    public void discard(HttpURLConnection urlConnection) {
+        urlConnection.disconnect();
+    }
+
+    public int getNewConnectionCount() {
+        return mNewConnections.get();
+    }
+
+    public int getReusedConnectionCount() {
+        return mReusedConnections.get();
+    }
+
+    public long getWireByteCount() {
+        return mWireBytes.get();
+    }
+
+    public long getDecodedByteCount() {
+        return mDecodedBytes.get();
+    }
+
+    public void resetCounters() {
+        mNewConnections.set(0);
+        mReusedConnections.set(0);
+        mWireBytes.set(0);
+        mDecodedBytes.set(0);
+    }
+
+    private boolean takeIdleConnection(String key, long now) {
+        synchronized (mIdleConnections) {
+            ArrayDeque<Long> idle = mIdleConnections.get(key);
+            if (idle == null) {
+                return false;
+            }
+            // The platform hands out the most recently used connection first.
+            while (!idle.isEmpty()) {
+                long releasedAt = idle.removeLast();
+                if (now - releasedAt < KEEP_ALIVE_MILLIS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void putIdleConnection(String key, long now) {
+        synchronized (mIdleConnections) {
+            ArrayDeque<Long> idle = mIdleConnections.get(key);
+            if (idle == null) {
+                idle = new ArrayDeque<Long>();
+                mIdleConnections.put(key, idle);
+            }
+            idle.addLast(now);
+            while (idle.size() > MAX_IDLE_CONNECTIONS) {
+                idle.removeFirst();
+            }
+        }
+    }
+
+    private static String poolKey(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getHost() + ":" + port;
+    }
+
+    /**
+     * Reads a response body through the decoder its Content-Encoding calls for, counting the
+     * bytes read off the network and the bytes handed to the caller.
+     */
+    public class ResponseStream extends FilterInputStream {
+        private final CountingInputStream mWire;
+        private final CountingInputStream mDecoded;
+        private boolean mClosed;
+
+        ResponseStream(InputStream raw, String contentEncoding) throws IOException {
+            this(new CountingInputStream(raw, false), contentEncoding);
+        }
+
+        private ResponseStream(CountingInputStream wire, String contentEncoding)
+                throws IOException {
+            this(wire, new CountingInputStream(decode(wire, contentEncoding), true));
+        }
+
+        private ResponseStream(CountingInputStream wire, CountingInputStream decoded) {
+            super(decoded);
+            mWire = wire;
+            mDecoded = decoded;
+        }
+
+        public long getWireByteCount() {
+            return mWire.getCount();
+        }
+
+        public long getDecodedByteCount() {
+            return mDecoded.getCount();
+        }
+
+        /**
+         * Stop reading without consuming the rest of the body, e.g. because the connection is
+         * about to be discarded.
+         */
+        public void abandon() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mDecoded.close();
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Error closing decoder: " + e.getMessage());
+            }
+            mWireBytes.addAndGet(mWire.getCount());
+            mDecodedBytes.addAndGet(mDecoded.getCount());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                // The socket can only go back to the pool once the body has been read to the
+                // end, and the remainder should show up in both counts, so it goes through the
+                // decoder.  Anything the decoder stops short of, e.g. after a gzip trailer, is
+                // still read off the wire.
+                mDecoded.drain();
+                mWire.drain();
+            } finally {
+                // Frees the decoder, but not the connection's own stream.
+                mDecoded.close();
+                mWireBytes.addAndGet(mWire.getCount());
+                mDecodedBytes.addAndGet(mDecoded.getCount());
+            }
+        }
+    }
+
+    private static InputStream decode(InputStream wire, String contentEncoding)
+            throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(wire);
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            // RFC 2616 says zlib-wrapped, but plenty of servers send bare deflate data.  A zlib
+            // header is a CM of 8 in the low bits of the first byte, and the first two bytes
+            // read as a big-endian number are a multiple of 31.
+            PushbackInputStream in = new PushbackInputStream(wire, 2);
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b1 != -1) {
+                in.unread(b1);
+            }
+            if (b0 != -1) {
+                in.unread(b0);
+            }
+            boolean zlib = b0 != -1 && b1 != -1
+                    && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            return new InflaterInputStream(in, new Inflater(!zlib));
+        }
+        return wire;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where forecasts come from.  {@link OwmWeatherSource} asks OpenWeatherMap over HTTP;
+ * {@link ReplayWeatherSource} serves forecasts recorded earlier, so the rest of the sync can
+ * be run and timed without a network.
+ *
+ * Implementations must be safe to call from several threads at once.
+ */
+public interface WeatherSource {
+
+    /**
+     * What to fetch.
+     */
+    class Request {
+        public final String locationSetting;
+        public final String units;
+        public final int numDays;
+        // What the last stored forecast was served with, or null.
+        public final String etag;
+        public final String lastModified;
+
+        public Request(String locationSetting, String units, int numDays,
+                       String etag, String lastModified) {
+            this.locationSetting = locationSetting;
+            this.units = units;
+            this.numDays = numDays;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A forecast, or the reason there isn't one.  Statuses follow HTTP: 200 with a body, 304
+     * if the validators in the request are still current, 4xx or 5xx on failure.
+     *
+     * Once the body has been read, {@link #close()} finishes the response normally; if
+     * reading failed part way, {@link #abandon()} gives it up instead.
+     */
+    abstract class Response implements Closeable {
+        public abstract int getStatusCode();
+
+        // The forecast JSON, always UTF-8.  Only valid for a 200.
+        public abstract InputStream getBody() throws IOException;
+
+        public abstract String getEtag();
+
+        public abstract String getLastModified();
+
+        // Body bytes as they were transferred, and after decompression.
+        public abstract long getWireByteCount();
+
+        public abstract long getDecodedByteCount();
+
+        public abstract void abandon();
+    }
+
+    Response fetch(Request request) throws IOException;
+}
@@ -0,0 +1,753 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.ForecastDelta;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherDbHelper;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs the forecast for any number of locations at once.
+ *
+ * Each location is fetched and parsed on a small, bounded pool of threads.  Nothing touches
+ * the database until every fetch has finished; then all the new weather rows are merged in
+ * with one call to the provider, which writes only the days that changed, in a single
+ * transaction.  The result reports how long each location took and why any of them failed.
+ */
+public class WeatherSyncEngine {
+
+    private static final String LOG_TAG = WeatherSyncEngine.class.getSimpleName();
+
+    // What every location is synced with.
+    static final String UNITS = "metric";
+    static final int NUM_DAYS = 14;
+
+    // Enough to hide the latency of a handful of locations without opening more sockets than
+    // the platform will keep alive per host.
+    static final int DEFAULT_PARALLELISM = WeatherHttpClient.MAX_IDLE_CONNECTIONS;
+
+    static final String FORECAST_CACHE_DIR = "forecasts";
+
+    // Idle fetch threads go away after this long.
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    public enum Status {
+        // A new forecast was merged in; see SyncResult.getDelta() for what it changed.
+        UPDATED,
+        // The server said nothing changed since the last sync.
+        NOT_MODIFIED,
+        // The fetch, the parse or the insert failed; see getError().
+        FAILED
+    }
+
+    /**
+     * How the sync went for a single location.
+     */
+    public static class LocationResult {
+        final String mLocationSetting;
+        Status mStatus = Status.FAILED;
+        Exception mError;
+        long mLatencyMillis;
+        int mRowCount;
+        long mWireBytes;
+        long mDecodedBytes;
+        int mAttempts;
+        boolean mCoalesced;
+
+        LocationResult(String locationSetting) {
+            mLocationSetting = locationSetting;
+        }
+
+        // What a caller that waited on someone else's fetch of the same location gets back.
+        LocationResult coalesced() {
+            LocationResult copy = new LocationResult(mLocationSetting);
+            copy.mStatus = mStatus;
+            copy.mError = mError;
+            copy.mLatencyMillis = mLatencyMillis;
+            copy.mRowCount = mRowCount;
+            copy.mWireBytes = mWireBytes;
+            copy.mDecodedBytes = mDecodedBytes;
+            copy.mAttempts = mAttempts;
+            copy.mCoalesced = true;
+            return copy;
+        }
+
+        public String getLocationSetting() {
+            return mLocationSetting;
+        }
+
+        public Status getStatus() {
+            return mStatus;
+        }
+
+        public Exception getError() {
+            return mError;
+        }
+
+        // Time spent fetching and parsing this location, excluding any wait for a thread.
+        public long getLatencyMillis() {
+            return mLatencyMillis;
+        }
+
+        public int getRowCount() {
+            return mRowCount;
+        }
+
+        // How many requests it took, 1 if the first one went through.  0 if the circuit
+        // breaker was open and nothing was sent.
+        public int getAttemptCount() {
+            return mAttempts;
+        }
+
+        public long getWireByteCount() {
+            return mWireBytes;
+        }
+
+        public long getDecodedByteCount() {
+            return mDecodedBytes;
+        }
+
+        /**
+         * True if this sync didn't fetch the location itself, but waited for a fetch another
+         * sync already had in flight.  The byte counts are then that other sync's.
+         */
+        public boolean isCoalesced() {
+            return mCoalesced;
+        }
+
+        @Override
+        public String toString() {
+            return mLocationSetting + ": " + mStatus + (mCoalesced ? " (coalesced)" : "")
+                    + " in " + mLatencyMillis + " ms, " + mAttempts + " attempts, "
+                    + mRowCount + " rows"
+                    + (mError != null ? " (" + mError + ")" : "");
+        }
+    }
+
+    /**
+     * How a whole sync went: one {@link LocationResult} per distinct location, in the order
+     * they were asked for.
+     */
+    public static class SyncResult {
+        final List<LocationResult> mLocations = new ArrayList<LocationResult>();
+        long mElapsedMillis;
+        ForecastDelta mDelta = new ForecastDelta();
+
+        public List<LocationResult> getLocations() {
+            return mLocations;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        public int getInsertedCount() {
+            return mDelta.getInsertedCount();
+        }
+
+        // What storing the forecasts changed in the weather table.
+        public ForecastDelta getDelta() {
+            return mDelta;
+        }
+
+        public int getFailureCount() {
+            int failures = 0;
+            for (LocationResult result : mLocations) {
+                if (result.mStatus == Status.FAILED) {
+                    failures++;
+                }
+            }
+            return failures;
+        }
+    }
+
+    /**
+     * The server answered with an error status.
+     */
+    static class HttpStatusException extends IOException {
+        final int responseCode;
+
+        HttpStatusException(int responseCode) {
+            super("HTTP " + responseCode);
+            this.responseCode = responseCode;
+        }
+
+        // Server trouble and rate limiting may pass; anything else the server won't change
+        // its mind about.
+        boolean isRetryable() {
+            return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || responseCode == 429;
+        }
+    }
+
+    // A fetched and parsed forecast waiting to be stored.
+    private static class Fetch {
+        final WeatherSource source;
+        final LocationResult result;
+        final SingleFlight.Flight<LocationResult> flight;
+        ForecastJsonParser.Forecast forecast;
+        String[] oldValidators;
+        String[] newValidators;
+
+        Fetch(WeatherSource source, String locationSetting,
+              SingleFlight.Flight<LocationResult> flight) {
+            this.source = source;
+            result = new LocationResult(locationSetting);
+            this.flight = flight;
+        }
+    }
+
+    private static WeatherSyncEngine sInstance;
+
+    /**
+     * The engine the app syncs OpenWeatherMap through.
+     */
+    public static synchronized WeatherSyncEngine getInstance(Context context) {
+        if (sInstance == null) {
+            context = context.getApplicationContext();
+            // Raw forecasts are kept in the cache dir, where the system may clear them if it
+            // runs short of space.
+            sInstance = new WeatherSyncEngine(context,
+                    new CachingWeatherSource(new OwmWeatherSource(),
+                            new File(context.getCacheDir(), FORECAST_CACHE_DIR)),
+                    DEFAULT_PARALLELISM);
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final WeatherSource mSource;
+    private final LocationIdCache mLocations;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+    private volatile RetryPolicy mRetryPolicy = new RetryPolicy();
+
+    // A refresh tap while the same location is already being synced waits for that sync.
+    private final SingleFlight<String, LocationResult> mFlights =
+            new SingleFlight<String, LocationResult>();
+
+    /**
+     * @param forecastBaseUrl where to send forecast requests, e.g. a stand-in server for tests.
+     * @param parallelism     how many locations may be fetched at the same time.
+     */
+    WeatherSyncEngine(Context context, String forecastBaseUrl, int parallelism) {
+        this(context, forecastBaseUrl, parallelism, WeatherHttpClient.getInstance());
+    }
+
+    WeatherSyncEngine(Context context, String forecastBaseUrl, int parallelism,
+                      WeatherHttpClient client) {
+        this(context, new OwmWeatherSource(forecastBaseUrl, client), parallelism);
+    }
+
+    /**
+     * @param source      where forecasts come from.
+     * @param parallelism how many locations may be fetched at the same time.
+     */
+    public WeatherSyncEngine(Context context, WeatherSource source, int parallelism) {
+        mContext = context;
+        mSource = source;
+        mLocations = LocationIdCache.getInstance(context);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "WeatherSync #" + threadCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetch every location concurrently, then store everything that changed at once.  Blocks
+     * until done, so call it off the main thread.  A location some other sync is already
+     * fetching isn't fetched again; this sync waits for that one and reports its result.
+     */
+    public SyncResult sync(Collection<String> locationSettings) {
+        if (mSource instanceof CachingWeatherSource && isDataDiscarded()) {
+            reingest((CachingWeatherSource) mSource);
+        }
+        return sync(mSource, locationSettings);
+    }
+
+    /**
+     * Parse and store again every forecast in the cache, however old, without going to the
+     * network.  For after the database has lost them, e.g. to a schema change.
+     */
+    public SyncResult reingest(CachingWeatherSource cache) {
+        List<String> locationSettings = cache.getCachedLocationSettings(UNITS);
+        Log.d(LOG_TAG, "Reingesting " + locationSettings.size() + " cached forecasts");
+        return sync(cache.getReplaySource(), locationSettings);
+    }
+
+    private boolean isDataDiscarded() {
+        // The flag is only raised when the database is opened, so make sure it has been.
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID}, null, null, null);
+        if (cursor != null) {
+            cursor.close();
+        }
+        return WeatherDbHelper.takeDataDiscarded(mContext);
+    }
+
+    private SyncResult sync(WeatherSource source, Collection<String> locationSettings) {
+        long start = SystemClock.elapsedRealtime();
+        SyncResult syncResult = new SyncResult();
+
+        // Every day in this sync is numbered from the same start day.
+        final int julianStartDay = ForecastJsonParser.getJulianStartDay();
+
+        List<Fetch> fetches = new ArrayList<Fetch>();
+        List<Integer> fetchIndexes = new ArrayList<Integer>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        // Locations another sync is already fetching, and where their results go.
+        List<SingleFlight.Flight<LocationResult>> followers =
+                new ArrayList<SingleFlight.Flight<LocationResult>>();
+        List<Integer> followerIndexes = new ArrayList<Integer>();
+        for (String locationSetting : new LinkedHashSet<String>(locationSettings)) {
+            SingleFlight.Flight<LocationResult> flight = mFlights.join(locationSetting);
+            if (!flight.isLeader()) {
+                followers.add(flight);
+                followerIndexes.add(syncResult.mLocations.size());
+                syncResult.mLocations.add(new LocationResult(locationSetting));
+                continue;
+            }
+            final Fetch fetch = new Fetch(source, locationSetting, flight);
+            fetches.add(fetch);
+            fetchIndexes.add(syncResult.mLocations.size());
+            syncResult.mLocations.add(fetch.result);
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    fetch(fetch, julianStartDay);
+                    return null;
+                }
+            }));
+        }
+
+        // Only fetches that have finished are stored.  Once interrupted we stop waiting and
+        // cancel the rest, but a cancelled fetch may still be running on the pool, so none of
+        // its state is read again; it gets a result of its own instead.
+        List<Fetch> finished = new ArrayList<Fetch>();
+        InterruptedException interrupted = null;
+        for (int i = 0; i < futures.size(); i++) {
+            Fetch fetch = fetches.get(i);
+            if (interrupted == null) {
+                try {
+                    futures.get(i).get();
+                    finished.add(fetch);
+                    continue;
+                } catch (InterruptedException e) {
+                    interrupted = e;
+                } catch (ExecutionException e) {
+                    fetch.result.mError = e;
+                    finished.add(fetch);
+                    continue;
+                }
+            }
+            futures.get(i).cancel(true);
+            LocationResult result = new LocationResult(fetch.result.mLocationSetting);
+            result.mError = interrupted;
+            syncResult.mLocations.set(fetchIndexes.get(i), result);
+        }
+        if (interrupted != null) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            syncResult.mDelta = store(finished);
+        } finally {
+            // Whatever happened, let anyone waiting on these locations go.
+            for (int i = 0; i < fetches.size(); i++) {
+                Fetch fetch = fetches.get(i);
+                mFlights.finish(fetch.result.mLocationSetting, fetch.flight,
+                        syncResult.mLocations.get(fetchIndexes.get(i)), null);
+            }
+        }
+
+        for (int i = 0; i < followers.size(); i++) {
+            int index = followerIndexes.get(i);
+            LocationResult result = syncResult.mLocations.get(index);
+            try {
+                syncResult.mLocations.set(index, followers.get(i).await().coalesced());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.mError = e;
+            } catch (ExecutionException e) {
+                result.mError = e;
+            }
+        }
+
+        syncResult.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+
+        for (LocationResult result : syncResult.mLocations) {
+            Log.d(LOG_TAG, result.toString());
+        }
+        Log.d(LOG_TAG, "Synced " + syncResult.mLocations.size() + " locations in "
+                + syncResult.mElapsedMillis + " ms, " + syncResult.mDelta + ", "
+                + syncResult.getFailureCount() + " failed");
+        return syncResult;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * The breaker every request to the forecast server goes through.  Add a listener to hear
+     * when the server is written off, or comes back.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    // How many location fetches were actually run, and how many callers waited for one that
+    // was already in flight instead.
+    public int getExecutedFetchCount() {
+        return mFlights.getExecutedCount();
+    }
+
+    public int getCoalescedFetchCount() {
+        return mFlights.getCoalescedCount();
+    }
+
+    /**
+     * Helper method to handle insertion of a new location in the weather database.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName A human-readable city name, e.g "Mountain View"
+     * @param lat the latitude of the city
+     * @param lon the longitude of the city
+     * @return the row ID of the added location.
+     */
+    long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        long locationId;
+
+        // First, check if the location with this city name exists in the db.  Usually it's
+        // one we've looked up before, and the cache knows without asking the provider.
+        LocationIdCache.Entry location = mLocations.get(locationSetting);
+
+        if (location != null) {
+            locationId = location.locationId;
+        } else {
+            // Now that the content provider is set up, inserting rows of data is pretty simple.
+            // First create a ContentValues object to hold the data you want to insert.
+            ContentValues locationValues = new ContentValues();
+
+            // Then add the data, along with the corresponding name of the data type,
+            // so the content provider knows what kind of value is being inserted.
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+
+            // Finally, insert location data into the database.
+            Uri insertedUri = mContext.getContentResolver().insert(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    locationValues
+            );
+
+            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
+            locationId = ContentUris.parseId(insertedUri);
+            mLocations.put(locationSetting, new LocationIdCache.Entry(locationId, null, null));
+        }
+
+        // Wait, that worked?  Yes!
+        return locationId;
+    }
+
+    /**
+     * Look up the ETag and Last-Modified values the server sent with the last forecast we
+     * stored for this location.
+     *
+     * @return {etag, lastModified}, either of which may be null.
+     */
+    String[] getValidators(String locationSetting) {
+        String[] validators = new String[2];
+
+        LocationIdCache.Entry location = mLocations.get(locationSetting);
+        if (location != null) {
+            validators[0] = location.etag;
+            validators[1] = location.lastModified;
+        }
+        return validators;
+    }
+
+    /**
+     * Fetch and parse one location's forecast, without writing anything.  Runs on a pool
+     * thread; failures are recorded on the fetch rather than thrown.
+     *
+     * Network errors and server errors are retried with backoff, as long as the circuit
+     * breaker lets the requests through.  A 4xx or a forecast we can't parse won't get any
+     * better by asking again, so those fail straight away.
+     */
+    private void fetch(Fetch fetch, int julianStartDay) {
+        LocationResult result = fetch.result;
+        long start = SystemClock.elapsedRealtime();
+        RetryPolicy retryPolicy = mRetryPolicy;
+        CircuitBreaker circuitBreaker = mCircuitBreaker;
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    circuitBreaker.acquire();
+                } catch (CircuitBreaker.OpenException e) {
+                    // Waiting out the backoff won't help; the breaker stays open far longer.
+                    Log.d(LOG_TAG, result.mLocationSetting + ": " + e.getMessage());
+                    result.mError = e;
+                    return;
+                }
+                result.mAttempts = attempt;
+
+                try {
+                    fetchOnce(fetch, julianStartDay);
+                    circuitBreaker.onSuccess();
+                    result.mError = null;
+                    return;
+                } catch (IOException e) {
+                    boolean retryable = !(e instanceof HttpStatusException)
+                            || ((HttpStatusException) e).isRetryable();
+                    if (retryable) {
+                        circuitBreaker.onFailure();
+                    } else {
+                        // The server is up, it just doesn't like this request.
+                        circuitBreaker.onSuccess();
+                    }
+                    result.mError = e;
+                    if (!retryable || attempt >= retryPolicy.getMaxAttempts()) {
+                        Log.e(LOG_TAG, "Error ", e);
+                        return;
+                    }
+                    long delay = retryPolicy.getDelayMillis(attempt);
+                    Log.d(LOG_TAG, result.mLocationSetting + ": attempt " + attempt
+                            + " failed (" + e.getMessage() + "), retrying in " + delay + " ms");
+                    Thread.sleep(delay);
+                } catch (JSONException e) {
+                    // The server answered; what it sent just doesn't parse.
+                    circuitBreaker.onSuccess();
+                    Log.e(LOG_TAG, e.getMessage(), e);
+                    result.mError = e;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.mError = e;
+        } finally {
+            result.mLatencyMillis = SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    /**
+     * One attempt at fetching and parsing a location's forecast.  On success the result's
+     * status says whether there is anything to store.
+     */
+    private void fetchOnce(Fetch fetch, int julianStartDay) throws IOException, JSONException {
+        LocationResult result = fetch.result;
+
+        // If we already hold a forecast for this location, only ask for a new one if it
+        // changed since.
+        fetch.oldValidators = getValidators(result.mLocationSetting);
+        WeatherSource.Response response = fetch.source.fetch(new WeatherSource.Request(
+                result.mLocationSetting, UNITS, NUM_DAYS,
+                fetch.oldValidators[0], fetch.oldValidators[1]));
+
+        boolean handled = false;
+        try {
+            int statusCode = response.getStatusCode();
+            if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // What we stored last time is still current, so there is nothing to parse
+                // and nothing to write.
+                result.mStatus = Status.NOT_MODIFIED;
+                handled = true;
+                return;
+            }
+            if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // The source answered in full, so whatever it holds is still good.
+                handled = true;
+                throw new HttpStatusException(statusCode);
+            }
+
+            // Parse the forecast straight off the wire instead of reading it into a String
+            // first; on long forecasts that keeps both the raw text and the JSONObject tree
+            // off the heap.  OWM always sends UTF-8, whatever the platform default is.
+            Reader reader = new BufferedReader(new InputStreamReader(response.getBody(), "UTF-8"));
+            fetch.forecast = new ForecastJsonParser(julianStartDay).parse(reader);
+            fetch.newValidators = new String[]{response.getEtag(), response.getLastModified()};
+            handled = true;
+        } finally {
+            if (handled) {
+                response.close();
+            } else {
+                response.abandon();
+            }
+        }
+
+        // Only once closed do the counts cover the whole body.
+        result.mWireBytes = response.getWireByteCount();
+        result.mDecodedBytes = response.getDecodedByteCount();
+        result.mStatus = Status.UPDATED;
+    }
+
+    /**
+     * Store every forecast that came back with new data: make sure each city is in the
+     * location table, merge all of their weather rows in one go, and only then remember the
+     * validators they were served with.
+     *
+     * @return what the merge changed.
+     */
+    private ForecastDelta store(List<Fetch> fetches) {
+        List<Fetch> updated = new ArrayList<Fetch>();
+        ForecastBatch days = new ForecastBatch();
+        long[] locationIds = new long[fetches.size()];
+
+        for (Fetch fetch : fetches) {
+            if (fetch.result.mStatus != Status.UPDATED) {
+                continue;
+            }
+            ForecastJsonParser.Forecast forecast = fetch.forecast;
+            try {
+                locationIds[updated.size()] = addLocation(fetch.result.mLocationSetting,
+                        forecast.cityName, forecast.cityLatitude, forecast.cityLongitude);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error adding " + fetch.result.mLocationSetting, e);
+                fetch.result.mStatus = Status.FAILED;
+                fetch.result.mError = e;
+                continue;
+            }
+            forecast.days.setLocationId(locationIds[updated.size()]);
+            days.addAll(forecast.days);
+            updated.add(fetch);
+        }
+
+        ForecastDelta delta = new ForecastDelta();
+        // add to database
+        if (days.size() > 0) {
+            // Sent a column at a time, with nothing boxed along the way.
+            Bundle extras = new Bundle();
+            extras.putBundle(WeatherContract.EXTRA_BATCH, days.toBundle());
+            try {
+                delta = ForecastDelta.fromBundle(mContext.getContentResolver().call(
+                        WeatherEntry.CONTENT_URI, WeatherContract.METHOD_MERGE_FORECAST, null,
+                        extras));
+            } catch (SQLException e) {
+                // The whole batch was rolled back, so every location in it failed.
+                Log.e(LOG_TAG, "Error inserting forecasts", e);
+                for (Fetch fetch : updated) {
+                    fetch.result.mStatus = Status.FAILED;
+                    fetch.result.mError = e;
+                }
+                return delta;
+            }
+        }
+
+        for (Fetch fetch : updated) {
+            fetch.result.mRowCount = fetch.forecast.days.size();
+        }
+        saveValidators(updated, locationIds);
+        return delta;
+    }
+
+    // Remember the validators every updated location was served with, all in one batch.
+    private void saveValidators(List<Fetch> updated, long[] locationIds) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        List<Integer> changed = new ArrayList<Integer>();
+        for (int i = 0; i < updated.size(); i++) {
+            Fetch fetch = updated.get(i);
+            if (TextUtils.equals(fetch.oldValidators[0], fetch.newValidators[0])
+                    && TextUtils.equals(fetch.oldValidators[1], fetch.newValidators[1])) {
+                continue;
+            }
+            operations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_ETAG, fetch.newValidators[0])
+                    .withValue(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+                            fetch.newValidators[1])
+                    .withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(locationIds[i])})
+                    .withYieldAllowed(true)
+                    .build());
+            changed.add(i);
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+        } catch (RemoteException e) {
+            // The forecasts are stored; without their validators the next sync just fetches
+            // them in full again.
+            Log.e(LOG_TAG, "Error saving validators", e);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error saving validators", e);
+            return;
+        }
+        // The provider doesn't announce validator changes, so keep the cache current here.
+        for (int i : changed) {
+            Fetch fetch = updated.get(i);
+            mLocations.put(fetch.result.mLocationSetting, new LocationIdCache.Entry(
+                    locationIds[i], fetch.newValidators[0], fetch.newValidators[1]));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Bundle;
+
+/**
+ * What compacting the weather table threw away, and what that gave back on disk.
+ *
+ * Rows are purged either for being older than the retention horizon or for being beyond a
+ * location's cap, oldest first.  Locations left with no weather and no history are pruned
+ * along with them.  Bytes reclaimed is how much smaller the database file got.
+ */
+public class CompactionReport {
+
+    static final String KEY_EXPIRED = "expired";
+    static final String KEY_OVER_CAP = "over_cap";
+    static final String KEY_LOCATIONS_PRUNED = "locations_pruned";
+    static final String KEY_BYTES_RECLAIMED = "bytes_reclaimed";
+
+    int mExpired;
+    int mOverCap;
+    int mLocationsPruned;
+    long mBytesReclaimed;
+
+    public CompactionReport() {
+    }
+
+    /**
+     * Read back what {@link WeatherProvider#call} returned for
+     * {@link WeatherContract#METHOD_COMPACT}.
+     */
+    public static CompactionReport fromBundle(Bundle bundle) {
+        CompactionReport report = new CompactionReport();
+        if (bundle != null) {
+            report.mExpired = bundle.getInt(KEY_EXPIRED);
+            report.mOverCap = bundle.getInt(KEY_OVER_CAP);
+            report.mLocationsPruned = bundle.getInt(KEY_LOCATIONS_PRUNED);
+            report.mBytesReclaimed = bundle.getLong(KEY_BYTES_RECLAIMED);
+        }
+        return report;
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_EXPIRED, mExpired);
+        bundle.putInt(KEY_OVER_CAP, mOverCap);
+        bundle.putInt(KEY_LOCATIONS_PRUNED, mLocationsPruned);
+        bundle.putLong(KEY_BYTES_RECLAIMED, mBytesReclaimed);
+        return bundle;
+    }
+
+    // Rows older than the horizon.
+    public int getExpiredCount() {
+        return mExpired;
+    }
+
+    // Rows within the horizon, but beyond how many days a location may keep.
+    public int getOverCapCount() {
+        return mOverCap;
+    }
+
+    public int getPurgedCount() {
+        return mExpired + mOverCap;
+    }
+
+    // Locations, not rows: ones nothing was stored for any more once their days had gone.
+    public int getPrunedLocationCount() {
+        return mLocationsPruned;
+    }
+
+    public long getBytesReclaimed() {
+        return mBytesReclaimed;
+    }
+
+    @Override
+    public String toString() {
+        return mExpired + " expired, " + mOverCap + " over the cap, " + mLocationsPruned
+                + " locations pruned, " + mBytesReclaimed + " bytes reclaimed";
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
+
+import com.example.android.sunshine.app.data.WeatherContract.ConditionEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Stores the descriptions a write brings along in the condition table, each weather id's
+ * once per write rather than once per day, and keeps track of whether any description that
+ * was already stored has changed.
+ *
+ * A new weather id changes nothing anyone has read: no stored day has it yet.  A changed
+ * description changes every day with that id, so whoever used the writer has to tell
+ * everyone, when {@link #hasChanged} says so.
+ */
+class ConditionWriter {
+
+    //INSERT OR IGNORE INTO condition (weather_id, short_desc) VALUES (?, ?)
+    private static final String sInsertSql =
+            "INSERT OR IGNORE INTO " + ConditionEntry.TABLE_NAME + " ("
+                    + ConditionEntry.COLUMN_WEATHER_ID + ", "
+                    + ConditionEntry.COLUMN_SHORT_DESC + ") VALUES (?, ?)";
+
+    //UPDATE condition SET short_desc = ? WHERE weather_id = ? AND short_desc != ?
+    private static final String sUpdateSql =
+            "UPDATE " + ConditionEntry.TABLE_NAME + " SET "
+                    + ConditionEntry.COLUMN_SHORT_DESC + " = ? WHERE "
+                    + ConditionEntry.COLUMN_WEATHER_ID + " = ? AND "
+                    + ConditionEntry.COLUMN_SHORT_DESC + " != ?";
+
+    private final SQLiteDatabase mDb;
+    // Compiled on first use; plenty of writes bring no descriptions.
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdate;
+    // What this writer has stored so far, by weather id.
+    private final SparseArray<String> mWritten = new SparseArray<String>();
+    private boolean mChanged;
+
+    ConditionWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    void put(int weatherId, String shortDesc) {
+        if (shortDesc.equals(mWritten.get(weatherId))) {
+            return;
+        }
+        mWritten.put(weatherId, shortDesc);
+        if (mInsert == null) {
+            mInsert = mDb.compileStatement(sInsertSql);
+            mUpdate = mDb.compileStatement(sUpdateSql);
+        }
+        mInsert.bindLong(1, weatherId);
+        mInsert.bindString(2, shortDesc);
+        if (mInsert.executeInsert() != -1) {
+            return;
+        }
+        mUpdate.bindString(1, shortDesc);
+        mUpdate.bindLong(2, weatherId);
+        mUpdate.bindString(3, shortDesc);
+        if (mUpdate.executeUpdateDelete() > 0) {
+            mChanged = true;
+        }
+    }
+
+    /**
+     * Store the description in a weather row's values, if it has one along with its weather
+     * id, and hand back what's left for the weather table: a copy without the description,
+     * or the values themselves when they had none.
+     */
+    ContentValues putFrom(ContentValues values) {
+        if (!values.containsKey(WeatherEntry.COLUMN_SHORT_DESC)) {
+            return values;
+        }
+        ContentValues weather = new ContentValues(values);
+        String shortDesc = weather.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+        weather.remove(WeatherEntry.COLUMN_SHORT_DESC);
+        Integer weatherId = weather.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID);
+        if (weatherId != null && shortDesc != null) {
+            put(weatherId, shortDesc);
+        }
+        return weather;
+    }
+
+    // Whether a description that was already stored has been replaced.
+    boolean hasChanged() {
+        return mChanged;
+    }
+
+    void markChanged() {
+        mChanged = true;
+    }
+
+    void close() {
+        if (mInsert != null) {
+            mInsert.close();
+            mUpdate.close();
+        }
+    }
+}
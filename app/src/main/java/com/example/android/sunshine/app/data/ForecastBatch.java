@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * Weather rows stored a column at a time, one array per column, instead of as a
+ * {@link ContentValues} per row.  Nothing is boxed, and the provider can bind the values
+ * straight into a compiled insert.  A batch travels to the provider's
+ * {@link WeatherContract#METHOD_MERGE_FORECAST} as a bundle of one primitive array per column.
+ */
+public class ForecastBatch {
+
+    // Every column of a weather row except its id.  A ContentValues with exactly these can
+    // be turned into a batch row.
+    static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    static final String KEY_LOCATION_IDS = "location_ids";
+    static final String KEY_DATES = "dates";
+    static final String KEY_WEATHER_IDS = "weather_ids";
+    static final String KEY_SHORT_DESCS = "short_descs";
+    static final String KEY_MIN_TEMPS = "min_temps";
+    static final String KEY_MAX_TEMPS = "max_temps";
+    static final String KEY_HUMIDITIES = "humidities";
+    static final String KEY_PRESSURES = "pressures";
+    static final String KEY_WIND_SPEEDS = "wind_speeds";
+    static final String KEY_DEGREES = "degrees";
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    int mSize;
+    long[] mLocationIds;
+    long[] mDates;
+    int[] mWeatherIds;
+    String[] mShortDescs;
+    double[] mMinTemps;
+    double[] mMaxTemps;
+    double[] mHumidities;
+    double[] mPressures;
+    double[] mWindSpeeds;
+    double[] mDegrees;
+
+    public ForecastBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ForecastBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mLocationIds = new long[capacity];
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mShortDescs = new String[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * The same rows as a batch, or null if any of them doesn't hold exactly the columns a
+     * batch does, e.g. because it sets an id or leaves something out.
+     */
+    public static ForecastBatch fromContentValues(ContentValues[] rows) {
+        ForecastBatch batch = new ForecastBatch(rows.length);
+        for (ContentValues row : rows) {
+            if (row.size() != COLUMNS.length) {
+                return null;
+            }
+            Long locationId = row.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+            Long date = row.getAsLong(WeatherEntry.COLUMN_DATE);
+            Integer weatherId = row.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID);
+            String shortDesc = row.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+            Double minTemp = row.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP);
+            Double maxTemp = row.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP);
+            Double humidity = row.getAsDouble(WeatherEntry.COLUMN_HUMIDITY);
+            Double pressure = row.getAsDouble(WeatherEntry.COLUMN_PRESSURE);
+            Double windSpeed = row.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED);
+            Double degrees = row.getAsDouble(WeatherEntry.COLUMN_DEGREES);
+            if (locationId == null || date == null || weatherId == null || shortDesc == null
+                    || minTemp == null || maxTemp == null || humidity == null
+                    || pressure == null || windSpeed == null || degrees == null) {
+                return null;
+            }
+            batch.add(locationId, date, weatherId, shortDesc, minTemp, maxTemp, humidity,
+                    pressure, windSpeed, degrees);
+        }
+        return batch;
+    }
+
+    /**
+     * Read back what {@link #toBundle} wrote, or null if a column is missing or the columns
+     * don't all have the same length.
+     */
+    public static ForecastBatch fromBundle(Bundle bundle) {
+        long[] locationIds = bundle.getLongArray(KEY_LOCATION_IDS);
+        long[] dates = bundle.getLongArray(KEY_DATES);
+        int[] weatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        String[] shortDescs = bundle.getStringArray(KEY_SHORT_DESCS);
+        double[] minTemps = bundle.getDoubleArray(KEY_MIN_TEMPS);
+        double[] maxTemps = bundle.getDoubleArray(KEY_MAX_TEMPS);
+        double[] humidities = bundle.getDoubleArray(KEY_HUMIDITIES);
+        double[] pressures = bundle.getDoubleArray(KEY_PRESSURES);
+        double[] windSpeeds = bundle.getDoubleArray(KEY_WIND_SPEEDS);
+        double[] degrees = bundle.getDoubleArray(KEY_DEGREES);
+        if (locationIds == null || dates == null || weatherIds == null || shortDescs == null
+                || minTemps == null || maxTemps == null || humidities == null
+                || pressures == null || windSpeeds == null || degrees == null) {
+            return null;
+        }
+        int size = locationIds.length;
+        if (dates.length != size || weatherIds.length != size || shortDescs.length != size
+                || minTemps.length != size || maxTemps.length != size
+                || humidities.length != size || pressures.length != size
+                || windSpeeds.length != size || degrees.length != size) {
+            return null;
+        }
+        for (String shortDesc : shortDescs) {
+            if (shortDesc == null) {
+                return null;
+            }
+        }
+        ForecastBatch batch = new ForecastBatch(0);
+        batch.mSize = size;
+        batch.mLocationIds = locationIds;
+        batch.mDates = dates;
+        batch.mWeatherIds = weatherIds;
+        batch.mShortDescs = shortDescs;
+        batch.mMinTemps = minTemps;
+        batch.mMaxTemps = maxTemps;
+        batch.mHumidities = humidities;
+        batch.mPressures = pressures;
+        batch.mWindSpeeds = windSpeeds;
+        batch.mDegrees = degrees;
+        return batch;
+    }
+
+    // Every column, cut down to the rows the batch holds.
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_LOCATION_IDS, Arrays.copyOf(mLocationIds, mSize));
+        bundle.putLongArray(KEY_DATES, Arrays.copyOf(mDates, mSize));
+        bundle.putIntArray(KEY_WEATHER_IDS, Arrays.copyOf(mWeatherIds, mSize));
+        bundle.putStringArray(KEY_SHORT_DESCS, Arrays.copyOf(mShortDescs, mSize));
+        bundle.putDoubleArray(KEY_MIN_TEMPS, Arrays.copyOf(mMinTemps, mSize));
+        bundle.putDoubleArray(KEY_MAX_TEMPS, Arrays.copyOf(mMaxTemps, mSize));
+        bundle.putDoubleArray(KEY_HUMIDITIES, Arrays.copyOf(mHumidities, mSize));
+        bundle.putDoubleArray(KEY_PRESSURES, Arrays.copyOf(mPressures, mSize));
+        bundle.putDoubleArray(KEY_WIND_SPEEDS, Arrays.copyOf(mWindSpeeds, mSize));
+        bundle.putDoubleArray(KEY_DEGREES, Arrays.copyOf(mDegrees, mSize));
+        return bundle;
+    }
+
+    public void add(long locationId, long date, int weatherId, String shortDesc,
+                    double minTemp, double maxTemp, double humidity, double pressure,
+                    double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        int i = mSize++;
+        mLocationIds[i] = locationId;
+        mDates[i] = date;
+        mWeatherIds[i] = weatherId;
+        mShortDescs[i] = shortDesc;
+        mMinTemps[i] = minTemp;
+        mMaxTemps[i] = maxTemp;
+        mHumidities[i] = humidity;
+        mPressures[i] = pressure;
+        mWindSpeeds[i] = windSpeed;
+        mDegrees[i] = degrees;
+    }
+
+    // Every row of other, after the rows already here.
+    public void addAll(ForecastBatch other) {
+        while (mDates.length < mSize + other.mSize) {
+            grow();
+        }
+        System.arraycopy(other.mLocationIds, 0, mLocationIds, mSize, other.mSize);
+        System.arraycopy(other.mDates, 0, mDates, mSize, other.mSize);
+        System.arraycopy(other.mWeatherIds, 0, mWeatherIds, mSize, other.mSize);
+        System.arraycopy(other.mShortDescs, 0, mShortDescs, mSize, other.mSize);
+        System.arraycopy(other.mMinTemps, 0, mMinTemps, mSize, other.mSize);
+        System.arraycopy(other.mMaxTemps, 0, mMaxTemps, mSize, other.mSize);
+        System.arraycopy(other.mHumidities, 0, mHumidities, mSize, other.mSize);
+        System.arraycopy(other.mPressures, 0, mPressures, mSize, other.mSize);
+        System.arraycopy(other.mWindSpeeds, 0, mWindSpeeds, mSize, other.mSize);
+        System.arraycopy(other.mDegrees, 0, mDegrees, mSize, other.mSize);
+        mSize += other.mSize;
+    }
+
+    // Rows are parsed before their city is in the location table, and only get its key once
+    // it is.
+    public void setLocationId(long locationId) {
+        Arrays.fill(mLocationIds, 0, mSize, locationId);
+    }
+
+    // Forget the rows but keep the arrays, so a batch can be filled again without allocating.
+    public void clear() {
+        Arrays.fill(mShortDescs, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getLocationId(int i) {
+        return mLocationIds[i];
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    public String getShortDesc(int i) {
+        return mShortDescs[i];
+    }
+
+    public double getMinTemp(int i) {
+        return mMinTemps[i];
+    }
+
+    public double getMaxTemp(int i) {
+        return mMaxTemps[i];
+    }
+
+    public double getHumidity(int i) {
+        return mHumidities[i];
+    }
+
+    public double getPressure(int i) {
+        return mPressures[i];
+    }
+
+    public double getWindSpeed(int i) {
+        return mWindSpeeds[i];
+    }
+
+    public double getDegrees(int i) {
+        return mDegrees[i];
+    }
+
+    private void grow() {
+        // A batch read from a bundle may have no room at all.
+        int capacity = Math.max(mDates.length * 2, DEFAULT_CAPACITY);
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mShortDescs = Arrays.copyOf(mShortDescs, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+}
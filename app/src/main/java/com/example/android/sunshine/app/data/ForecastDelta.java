@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Bundle;
+
+/**
+ * What merging a forecast into the weather table changed, day by day.
+ *
+ * A day is inserted if nothing was stored for it, updated if any of its values differ from
+ * what was, and unchanged otherwise.  Expired days are ones stored from the start of the
+ * forecast on that it no longer covers; days before that are history and are left alone.
+ */
+public class ForecastDelta {
+
+    static final String KEY_INSERTED = "inserted";
+    static final String KEY_UPDATED = "updated";
+    static final String KEY_UNCHANGED = "unchanged";
+    static final String KEY_EXPIRED = "expired";
+
+    int mInserted;
+    int mUpdated;
+    int mUnchanged;
+    int mExpired;
+
+    public ForecastDelta() {
+    }
+
+    /**
+     * Read back what {@link WeatherProvider#call} returned for
+     * {@link WeatherContract#METHOD_MERGE_FORECAST}.
+     */
+    public static ForecastDelta fromBundle(Bundle bundle) {
+        ForecastDelta delta = new ForecastDelta();
+        if (bundle != null) {
+            delta.mInserted = bundle.getInt(KEY_INSERTED);
+            delta.mUpdated = bundle.getInt(KEY_UPDATED);
+            delta.mUnchanged = bundle.getInt(KEY_UNCHANGED);
+            delta.mExpired = bundle.getInt(KEY_EXPIRED);
+        }
+        return delta;
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_INSERTED, mInserted);
+        bundle.putInt(KEY_UPDATED, mUpdated);
+        bundle.putInt(KEY_UNCHANGED, mUnchanged);
+        bundle.putInt(KEY_EXPIRED, mExpired);
+        return bundle;
+    }
+
+    public void add(ForecastDelta other) {
+        mInserted += other.mInserted;
+        mUpdated += other.mUpdated;
+        mUnchanged += other.mUnchanged;
+        mExpired += other.mExpired;
+    }
+
+    public int getInsertedCount() {
+        return mInserted;
+    }
+
+    public int getUpdatedCount() {
+        return mUpdated;
+    }
+
+    public int getUnchangedCount() {
+        return mUnchanged;
+    }
+
+    public int getExpiredCount() {
+        return mExpired;
+    }
+
+    // Whether any row was written, and so whether anyone watching the weather needs telling.
+    public boolean hasChanges() {
+        return mInserted + mUpdated + mExpired > 0;
+    }
+
+    @Override
+    public String toString() {
+        return mInserted + " inserted, " + mUpdated + " updated, " + mUnchanged + " unchanged, "
+                + mExpired + " expired";
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers which location row goes with which location setting, along with the validators
+ * the last forecast for it was served with, so that a sync doesn't have to ask the provider
+ * every time.
+ *
+ * There is one per process.  Any change to the location table that the provider announces
+ * throws away everything cached; the provider also does that itself, straight away, when
+ * locations are deleted or changed, since notifications arrive some time later.  Updates
+ * that only touch the validators aren't announced, so whoever makes them has to
+ * {@link #put} the new values.
+ */
+public class LocationIdCache {
+
+    // Far more than anyone has locations; it's there so the map can't grow without bound.
+    static final int MAX_ENTRIES = 64;
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_ETAG,
+            LocationEntry.COLUMN_LAST_MODIFIED
+    };
+
+    public static class Entry {
+        public final long locationId;
+        public final String etag;
+        public final String lastModified;
+
+        public Entry(long locationId, String etag, String lastModified) {
+            this.locationId = locationId;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static LocationIdCache sInstance;
+
+    public static synchronized LocationIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationIdCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    // Bumped by every invalidation, so that a lookup that raced with one isn't cached.
+    private int mGeneration;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mQueries = new AtomicInteger();
+
+    LocationIdCache(Context context) {
+        mContext = context;
+        // A null handler runs onChange() on whichever thread delivers the notification,
+        // which is all an invalidation needs.
+        context.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * The location stored for {@code locationSetting}, or null if there isn't one.
+     */
+    public Entry get(String locationSetting) {
+        Entry entry;
+        int generation;
+        synchronized (this) {
+            entry = mEntries.get(locationSetting);
+            generation = mGeneration;
+        }
+        if (entry != null) {
+            mHits.incrementAndGet();
+            return entry;
+        }
+
+        mQueries.incrementAndGet();
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                LOCATION_COLUMNS,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            entry = new Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(locationSetting, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Record what was just written for {@code locationSetting}.
+     */
+    public synchronized void put(String locationSetting, Entry entry) {
+        mEntries.put(locationSetting, entry);
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    // Lookups answered without the provider.
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    // Lookups that had to query the provider.
+    public int getQueryCount() {
+        return mQueries.get();
+    }
+
+    public void resetCounters() {
+        mHits.set(0);
+        mQueries.set(0);
+    }
+}
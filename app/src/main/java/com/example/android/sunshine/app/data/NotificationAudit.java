@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * How many reloads the provider's change notifications cause, counted while the audit is on.
+ *
+ * Every cursor the provider hands out is watched for as long as it stays open, which is as
+ * long as its loader holds on to it.  Each notification reloads every open cursor whose uri
+ * is the notified one, above it or under it: cursors register for their uri and everything
+ * under it, and a notification reaches observers of the uri's descendants too.
+ */
+public class NotificationAudit {
+
+    static final String KEY_WRITES = "writes";
+    static final String KEY_NOTIFICATIONS = "notifications";
+    static final String KEY_RELOADS = "reloads";
+    static final String KEY_MAX_RELOADS = "max_reloads";
+
+    int mWrites;
+    int mNotifications;
+    int mReloads;
+    int mMaxReloads;
+
+    private final List<WeakReference<Cursor>> mCursors = new ArrayList<WeakReference<Cursor>>();
+    private final List<Uri> mCursorUris = new ArrayList<Uri>();
+
+    public NotificationAudit() {
+    }
+
+    /**
+     * Read back what {@link WeatherProvider#call} returned for
+     * {@link WeatherContract#METHOD_AUDIT_NOTIFICATIONS}.
+     */
+    public static NotificationAudit fromBundle(Bundle bundle) {
+        NotificationAudit audit = new NotificationAudit();
+        if (bundle != null) {
+            audit.mWrites = bundle.getInt(KEY_WRITES);
+            audit.mNotifications = bundle.getInt(KEY_NOTIFICATIONS);
+            audit.mReloads = bundle.getInt(KEY_RELOADS);
+            audit.mMaxReloads = bundle.getInt(KEY_MAX_RELOADS);
+        }
+        return audit;
+    }
+
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_WRITES, mWrites);
+        bundle.putInt(KEY_NOTIFICATIONS, mNotifications);
+        bundle.putInt(KEY_RELOADS, mReloads);
+        bundle.putInt(KEY_MAX_RELOADS, mMaxReloads);
+        return bundle;
+    }
+
+    // The counts so far, which then start again from zero.  Cursors stay watched.
+    synchronized Bundle takeCounts() {
+        Bundle bundle = toBundle();
+        mWrites = 0;
+        mNotifications = 0;
+        mReloads = 0;
+        mMaxReloads = 0;
+        return bundle;
+    }
+
+    synchronized void track(Cursor cursor, Uri uri) {
+        mCursors.add(new WeakReference<Cursor>(cursor));
+        mCursorUris.add(uri);
+    }
+
+    // Everything one write notified.
+    synchronized void record(Collection<Uri> notified) {
+        int reloads = 0;
+        for (Uri uri : notified) {
+            for (int i = mCursors.size() - 1; i >= 0; i--) {
+                Cursor cursor = mCursors.get(i).get();
+                if (cursor == null || cursor.isClosed()) {
+                    mCursors.remove(i);
+                    mCursorUris.remove(i);
+                } else if (WeatherProvider.reaches(uri, mCursorUris.get(i))) {
+                    reloads++;
+                }
+            }
+        }
+        mWrites++;
+        mNotifications += notified.size();
+        mReloads += reloads;
+        mMaxReloads = Math.max(mMaxReloads, reloads);
+    }
+
+    public int getWriteCount() {
+        return mWrites;
+    }
+
+    public int getNotificationCount() {
+        return mNotifications;
+    }
+
+    public int getReloadCount() {
+        return mReloads;
+    }
+
+    // The most reloads any single write caused.
+    public int getMaxReloadCount() {
+        return mMaxReloads;
+    }
+
+    @Override
+    public String toString() {
+        return mWrites + " writes, " + mNotifications + " notifications, " + mReloads
+                + " reloads, at most " + mMaxReloads + " for one write";
+    }
+}
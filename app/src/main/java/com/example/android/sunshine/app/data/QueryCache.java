@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Results of the provider's weather queries, held in memory until a write could have changed
+ * them, so that asking again for what's on screen doesn't go to the database.
+ *
+ * Results are kept by uri, projection, selection and sort order, within a budget of bytes,
+ * and evicted least recently used first; one that would take the whole budget isn't kept.
+ * Each is dropped when the provider notifies a uri that reaches the uri its cursor listens
+ * on.  Writes to the database that don't go through the provider aren't seen.
+ */
+class QueryCache {
+
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    // Rough sizes on the heap: object headers, references, a primitive and a string.
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 8;
+    private static final int PRIMITIVE_BYTES = 8;
+    private static final int STRING_BYTES = 40;
+
+    /**
+     * One query's rows, copied out of its cursor a column at a time: each cell's type, and
+     * its value in a primitive array for numbers or an array of strings and blobs.  Never
+     * changed once copied, so every hit reads the same arrays.
+     */
+    static class Result {
+        final String[] mColumns;
+        final int mCount;
+        final byte[][] mTypes;
+        final long[][] mLongs;
+        final double[][] mDoubles;
+        final Object[][] mObjects;
+        final Uri mNotificationUri;
+        final int mBytes;
+
+        Result(String keyAndColumns, Cursor cursor, Uri notificationUri) {
+            mColumns = cursor.getColumnNames();
+            mCount = cursor.getCount();
+            mTypes = new byte[mColumns.length][mCount];
+            mLongs = new long[mColumns.length][];
+            mDoubles = new double[mColumns.length][];
+            mObjects = new Object[mColumns.length][];
+            mNotificationUri = notificationUri;
+            int bytes = OBJECT_BYTES + 2 * keyAndColumns.length()
+                    + mColumns.length * (OBJECT_BYTES + mCount);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                for (int column = 0; column < mColumns.length; column++) {
+                    int type = cursor.getType(column);
+                    mTypes[column][row] = (byte) type;
+                    switch (type) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            if (mLongs[column] == null) {
+                                mLongs[column] = new long[mCount];
+                                bytes += OBJECT_BYTES + PRIMITIVE_BYTES * mCount;
+                            }
+                            mLongs[column][row] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            if (mDoubles[column] == null) {
+                                mDoubles[column] = new double[mCount];
+                                bytes += OBJECT_BYTES + PRIMITIVE_BYTES * mCount;
+                            }
+                            mDoubles[column][row] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String value = cursor.getString(column);
+                            objects(column)[row] = value;
+                            bytes += STRING_BYTES + 2 * value.length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            objects(column)[row] = blob;
+                            bytes += OBJECT_BYTES + blob.length;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            for (Object[] objects : mObjects) {
+                if (objects != null) {
+                    bytes += OBJECT_BYTES + REFERENCE_BYTES * mCount;
+                }
+            }
+            mBytes = bytes;
+        }
+
+        private Object[] objects(int column) {
+            if (mObjects[column] == null) {
+                mObjects[column] = new Object[mCount];
+            }
+            return mObjects[column];
+        }
+
+        // A new cursor over the rows each time, since whoever gets it will close it.
+        Cursor newCursor() {
+            return new ResultCursor(this);
+        }
+    }
+
+    // Reads a result's arrays in place, so a hit doesn't copy or box any of its cells.
+    private static class ResultCursor extends AbstractCursor {
+
+        private final Result mResult;
+
+        ResultCursor(Result result) {
+            mResult = result;
+        }
+
+        @Override
+        public int getCount() {
+            return mResult.mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mResult.mColumns;
+        }
+
+        @Override
+        public int getType(int column) {
+            return mResult.mTypes[column][getPosition()];
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getType(column) == Cursor.FIELD_TYPE_NULL;
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = getPosition();
+            switch (mResult.mTypes[column][row]) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mResult.mLongs[column][row];
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return (long) mResult.mDoubles[column][row];
+                case Cursor.FIELD_TYPE_STRING:
+                    return Long.parseLong((String) mResult.mObjects[column][row]);
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public double getDouble(int column) {
+            int row = getPosition();
+            switch (mResult.mTypes[column][row]) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return mResult.mLongs[column][row];
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return mResult.mDoubles[column][row];
+                case Cursor.FIELD_TYPE_STRING:
+                    return Double.parseDouble((String) mResult.mObjects[column][row]);
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            int row = getPosition();
+            switch (mResult.mTypes[column][row]) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return Long.toString(mResult.mLongs[column][row]);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return Double.toString(mResult.mDoubles[column][row]);
+                case Cursor.FIELD_TYPE_STRING:
+                    return (String) mResult.mObjects[column][row];
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            int row = getPosition();
+            switch (mResult.mTypes[column][row]) {
+                case Cursor.FIELD_TYPE_BLOB:
+                    return (byte[]) mResult.mObjects[column][row];
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                default:
+                    throw new SQLiteException("Not a blob: column " + column);
+            }
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+    }
+
+    private final LruCache<String, Result> mResults;
+
+    // Bumped by every invalidation, so a query that raced a write doesn't keep what it read.
+    private long mGeneration;
+    private int mInvalidations;
+    private int mTooLarge;
+
+    QueryCache(int maxBytes) {
+        mResults = new LruCache<String, Result>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Result result) {
+                return result.mBytes;
+            }
+        };
+    }
+
+    static String key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                      String sortOrder) {
+        return uri + "|" + Arrays.toString(projection) + "|" + selection + "|"
+                + Arrays.toString(selectionArgs) + "|" + sortOrder;
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    Result get(String key) {
+        return mResults.get(key);
+    }
+
+    /**
+     * Copy all of {@code cursor}, close it, and return a cursor over the copy.  The copy is
+     * kept unless something was invalidated since {@code generation}, read before the query
+     * ran.  A result too big for the budget isn't copied: {@code cursor} comes back as it is.
+     */
+    Cursor put(String key, long generation, Cursor cursor, Uri notificationUri) {
+        String keyAndColumns = key + Arrays.toString(cursor.getColumnNames());
+        // The first row, times how many there are, says whether it's worth copying at all.
+        if (cursor.moveToFirst()) {
+            long estimate = OBJECT_BYTES + 2L * keyAndColumns.length()
+                    + (long) cursor.getCount() * rowBytes(cursor);
+            cursor.moveToPosition(-1);
+            if (estimate > mResults.maxSize()) {
+                synchronized (this) {
+                    mTooLarge++;
+                }
+                return cursor;
+            }
+        }
+        Result result;
+        try {
+            result = new Result(keyAndColumns, cursor, notificationUri);
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (result.mBytes > mResults.maxSize()) {
+                // Putting it would evict everything else, and then it.
+                mTooLarge++;
+            } else if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        return result.newCursor();
+    }
+
+    // Roughly what the cursor's current row takes once copied.
+    private static int rowBytes(Cursor cursor) {
+        int bytes = 0;
+        for (int column = 0; column < cursor.getColumnCount(); column++) {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    bytes += 1 + PRIMITIVE_BYTES;
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    String value = cursor.getString(column);
+                    bytes += 1 + REFERENCE_BYTES + STRING_BYTES + 2 * value.length();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    bytes += 1 + REFERENCE_BYTES + OBJECT_BYTES + cursor.getBlob(column).length;
+                    break;
+                default:
+                    bytes += 1;
+                    break;
+            }
+        }
+        return bytes;
+    }
+
+    // A write notified this uri.
+    synchronized void invalidate(Uri notified) {
+        mGeneration++;
+        for (Map.Entry<String, Result> entry : mResults.snapshot().entrySet()) {
+            if (WeatherProvider.reaches(notified, entry.getValue().mNotificationUri)
+                    && mResults.remove(entry.getKey()) != null) {
+                mInvalidations++;
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        // Removed one by one, since evictAll() would count them as evictions.
+        for (String key : mResults.snapshot().keySet()) {
+            if (mResults.remove(key) != null) {
+                mInvalidations++;
+            }
+        }
+    }
+
+    synchronized QueryCacheStats getStats() {
+        QueryCacheStats stats = new QueryCacheStats();
+        stats.mHits = mResults.hitCount();
+        stats.mMisses = mResults.missCount();
+        stats.mEvictions = mResults.evictionCount();
+        stats.mInvalidations = mInvalidations;
+        stats.mTooLarge = mTooLarge;
+        stats.mEntries = mResults.snapshot().size();
+        stats.mBytes = mResults.size();
+        stats.mMaxBytes = mResults.maxSize();
+        return stats;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Bundle;
+
+/**
+ * How the provider's cache of weather query results has done since the provider started.
+ *
+ * A miss is a cacheable query that had to go to the database.  Evictions make room within the
+ * memory budget, least recently used first; invalidations are results a write could have
+ * changed.  A result that would take the whole budget is never kept.
+ */
+public class QueryCacheStats {
+
+    static final String KEY_HITS = "hits";
+    static final String KEY_MISSES = "misses";
+    static final String KEY_EVICTIONS = "evictions";
+    static final String KEY_INVALIDATIONS = "invalidations";
+    static final String KEY_TOO_LARGE = "too_large";
+    static final String KEY_ENTRIES = "entries";
+    static final String KEY_BYTES = "bytes";
+    static final String KEY_MAX_BYTES = "max_bytes";
+
+    int mHits;
+    int mMisses;
+    int mEvictions;
+    int mInvalidations;
+    int mTooLarge;
+    int mEntries;
+    int mBytes;
+    int mMaxBytes;
+
+    public QueryCacheStats() {
+    }
+
+    /**
+     * Read back what {@link WeatherProvider#call} returned for
+     * {@link WeatherContract#METHOD_QUERY_CACHE_STATS}.
+     */
+    public static QueryCacheStats fromBundle(Bundle bundle) {
+        QueryCacheStats stats = new QueryCacheStats();
+        if (bundle != null) {
+            stats.mHits = bundle.getInt(KEY_HITS);
+            stats.mMisses = bundle.getInt(KEY_MISSES);
+            stats.mEvictions = bundle.getInt(KEY_EVICTIONS);
+            stats.mInvalidations = bundle.getInt(KEY_INVALIDATIONS);
+            stats.mTooLarge = bundle.getInt(KEY_TOO_LARGE);
+            stats.mEntries = bundle.getInt(KEY_ENTRIES);
+            stats.mBytes = bundle.getInt(KEY_BYTES);
+            stats.mMaxBytes = bundle.getInt(KEY_MAX_BYTES);
+        }
+        return stats;
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_HITS, mHits);
+        bundle.putInt(KEY_MISSES, mMisses);
+        bundle.putInt(KEY_EVICTIONS, mEvictions);
+        bundle.putInt(KEY_INVALIDATIONS, mInvalidations);
+        bundle.putInt(KEY_TOO_LARGE, mTooLarge);
+        bundle.putInt(KEY_ENTRIES, mEntries);
+        bundle.putInt(KEY_BYTES, mBytes);
+        bundle.putInt(KEY_MAX_BYTES, mMaxBytes);
+        return bundle;
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    public int getEvictionCount() {
+        return mEvictions;
+    }
+
+    public int getInvalidationCount() {
+        return mInvalidations;
+    }
+
+    // Results read from the database but not kept, since they'd take the whole budget.
+    public int getTooLargeCount() {
+        return mTooLarge;
+    }
+
+    // Results held right now.
+    public int getEntryCount() {
+        return mEntries;
+    }
+
+    // Roughly how much memory the held results take, never more than getMaxBytes().
+    public int getBytes() {
+        return mBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return mHits + " hits, " + mMisses + " misses, " + mEvictions + " evictions, "
+                + mInvalidations + " invalidations, " + mTooLarge + " too large, " + mEntries + " entries in " + mBytes
+                + " of " + mMaxBytes + " bytes";
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The weather rows a write touched, by location and day, and the narrowest uris that tell
+ * everyone watching them.
+ *
+ * A location with a single changed day gets that day's uri, which reaches the location's
+ * forecast list and that day's detail, but no other day's.  A location with more than one
+ * gets its own uri instead, so that its list hears about the write once rather than once a
+ * day.  Each comes by setting and by location id, for cursors of either.  Other locations
+ * hear nothing.  A write that can't say what it touched gets both base weather uris, which
+ * reach everyone.
+ */
+class WeatherChanges {
+
+    // Stands in for a date when more than one of the location's days changed.
+    private static final long WHOLE_LOCATION = Long.MIN_VALUE;
+
+    // Location id to the one normalized date that changed, or WHOLE_LOCATION.
+    private final Map<Long, Long> mLocations = new LinkedHashMap<Long, Long>();
+    private boolean mEverything;
+
+    void addDay(long locationId, long normalizedDate) {
+        Long date = mLocations.get(locationId);
+        if (date == null) {
+            mLocations.put(locationId, normalizedDate);
+        } else if (date != normalizedDate) {
+            mLocations.put(locationId, WHOLE_LOCATION);
+        }
+    }
+
+    // A row as it was written, with its date already normalized.
+    void addRow(ContentValues values) {
+        Long locationId = values.getAsLong(WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            addDay(locationId, date);
+        } else {
+            addEverything();
+        }
+    }
+
+    void addBatch(ForecastBatch batch) {
+        long lastDate = 0;
+        long lastNormalizedDate = 0;
+        TimeZone zone = TimeZone.getDefault();
+        for (int i = 0; i < batch.mSize; i++) {
+            long date = batch.mDates[i];
+            if (i == 0 || date != lastDate) {
+                lastDate = date;
+                lastNormalizedDate = WeatherContract.normalizeDate(date, zone);
+            }
+            addDay(batch.mLocationIds[i], lastNormalizedDate);
+        }
+    }
+
+    void addLocation(long locationId) {
+        mLocations.put(locationId, WHOLE_LOCATION);
+    }
+
+    void addAll(WeatherChanges other) {
+        mEverything |= other.mEverything;
+        for (Map.Entry<Long, Long> location : other.mLocations.entrySet()) {
+            if (location.getValue() == WHOLE_LOCATION) {
+                addLocation(location.getKey());
+            } else {
+                addDay(location.getKey(), location.getValue());
+            }
+        }
+    }
+
+    void addEverything() {
+        mEverything = true;
+    }
+
+    // Every row the selection matches, looked up before a write that changes them.
+    void addRows(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(true, WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addDay(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return !mEverything && mLocations.isEmpty();
+    }
+
+    List<Uri> toUris(SQLiteDatabase db) {
+        if (mEverything) {
+            return everything();
+        }
+        if (mLocations.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, String> settings = getLocationSettings(db);
+        List<Uri> uris = new ArrayList<Uri>(2 * mLocations.size());
+        for (Map.Entry<Long, Long> location : mLocations.entrySet()) {
+            String setting = settings.get(location.getKey());
+            if (setting == null) {
+                // Rows for a location that isn't stored; only whoever watches all the weather
+                // can be interested.
+                return everything();
+            }
+            Uri byId = WeatherEntry.buildWeatherLocationId(location.getKey());
+            long date = location.getValue();
+            if (date == WHOLE_LOCATION) {
+                uris.add(WeatherEntry.buildWeatherLocation(setting));
+                uris.add(byId);
+            } else {
+                uris.add(WeatherEntry.CONTENT_URI.buildUpon().appendPath(setting)
+                        .appendPath(Long.toString(date)).build());
+                uris.add(byId.buildUpon().appendPath(Long.toString(date)).build());
+            }
+        }
+        return uris;
+    }
+
+    private static List<Uri> everything() {
+        return Arrays.asList(WeatherEntry.CONTENT_URI, WeatherEntry.LOCATION_ID_CONTENT_URI);
+    }
+
+    private Map<Long, String> getLocationSettings(SQLiteDatabase db) {
+        // Ids are longs, so they can go into the statement as they are, however many there are.
+        StringBuilder ids = new StringBuilder();
+        for (long locationId : mLocations.keySet()) {
+            ids.append(ids.length() == 0 ? "" : ",").append(locationId);
+        }
+        Map<Long, String> settings = new HashMap<Long, String>();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry._ID + " IN (" + ids + ")", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                settings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return settings;
+    }
+}
@@ -19,7 +19,9 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+import android.text.format.DateUtils;
+
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -42,16 +44,76 @@ public class WeatherContract {
     // as the ContentProvider hasn't been given any information on what to do with "givemeroot".
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
+    public static final String PATH_WEATHER_BY_LOCATION_ID = "weather_by_id";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_CONDITION = "condition";
+    public static final String PATH_ARCHIVE = "archive";
+
+    // Methods the provider answers through ContentResolver.call().
+
+    // Merge the weather rows in EXTRA_BATCH, a ForecastBatch bundle, or in EXTRA_DAYS, into
+    // what's stored, writing only the days that changed.  Every row needs its location key
+    // set.  Returns a ForecastDelta bundle.
+    public static final String METHOD_MERGE_FORECAST = "merge_forecast";
+    public static final String EXTRA_BATCH = "batch";
+    public static final String EXTRA_DAYS = "days";
+
+    // Purge weather rows dated before EXTRA_HORIZON, and then the oldest of any location's
+    // rows beyond EXTRA_MAX_DAYS, and hand the freed space back to the file system.  Either
+    // extra may be left out to skip that part.  Returns a CompactionReport bundle.
+    public static final String METHOD_COMPACT = "compact";
+    public static final String EXTRA_HORIZON = "horizon";
+    public static final String EXTRA_MAX_DAYS = "max_days";
+
+    // Count how many cursor reloads the provider's change notifications cause: with
+    // EXTRA_ENABLED true, start or keep counting, otherwise stop.  Returns a NotificationAudit
+    // bundle of the counts since the last call, which start again from zero.
+    public static final String METHOD_AUDIT_NOTIFICATIONS = "audit_notifications";
+    public static final String EXTRA_ENABLED = "enabled";
+
+    // How the provider's cache of weather query results is doing.  Returns a QueryCacheStats
+    // bundle.
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of their day, in the device's time zone.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return normalizeDate(startDate, TimeZone.getDefault());
+    }
+
+    // The same, in the given zone.  Getting the default zone copies it, so callers normalizing
+    // a lot of dates can get it once and pass it to every call, which then allocates nothing.
+    public static long normalizeDate(long startDate, TimeZone zone) {
+        return startOfEpochDay(toEpochDay(startDate, zone), zone);
+    }
+
+    // Which day, counted from January 1st 1970, a moment falls on in the given zone.
+    public static long toEpochDay(long millis, TimeZone zone) {
+        long local = millis + zone.getOffset(millis);
+        long day = local / DateUtils.DAY_IN_MILLIS;
+        // Division rounds towards zero, and days before 1970 need rounding down.
+        return local % DateUtils.DAY_IN_MILLIS < 0 ? day - 1 : day;
+    }
+
+    // The first moment of a day, counted from January 1st 1970, in the given zone.
+    public static long startOfEpochDay(long epochDay, TimeZone zone) {
+        long localMidnight = epochDay * DateUtils.DAY_IN_MILLIS;
+        // The offset an instant near midnight has, and then the offset midnight itself has,
+        // in case a transition falls in between.
+        long millis = localMidnight - zone.getOffset(localMidnight);
+        millis = localMidnight - zone.getOffset(millis);
+        // Clocks went back over midnight, so it came round twice, and the day began the first
+        // time, with the offset from a few hours before.
+        long earlier = localMidnight - zone.getOffset(millis - 3 * DateUtils.HOUR_IN_MILLIS);
+        if (earlier < millis && zone.getOffset(earlier) == localMidnight - earlier) {
+            millis = earlier;
+        }
+        if (toEpochDay(millis, zone) < epochDay) {
+            // Clocks went forward over midnight, and the day starts when they did: the
+            // offset from before the transition puts midnight exactly there.
+            millis = localMidnight - zone.getOffset(millis);
+        }
+        return millis;
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,11 +143,120 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // HTTP validators from the last forecast response for this location, so that the next
+        // refresh can ask the server whether anything changed.  Either may be null.  An update
+        // of nothing but these two notifies no one: only the sync reads them, and it would
+        // otherwise reload every location cursor after each fetch.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
     }
 
+    /* Inner class that defines the table contents of the condition table */
+    public static final class ConditionEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CONDITION).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CONDITION;
+
+        public static final String TABLE_NAME = "condition";
+
+        // The weather id as returned by the API, which is the key.  No _id besides it, so
+        // that joining the table to the weather table adds no second one.
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        // The short description the API last gave for the weather id.
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+    }
+
+    /* Inner class that defines the table contents of the archive table */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ARCHIVE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ARCHIVE;
+
+        public static final String TABLE_NAME = "archive";
+
+        // Each location's observed weather, a row per day, for as many years as it's kept.
+        // The _id is the key, (location_id << 32) | epoch_day, which SQLite stores the rows
+        // in order of: a location's days sit together and in date order, and a range of them
+        // is read straight off the table.  Writers don't set it; the provider does.
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // The day, counted from January 1st 1970 in the device's time zone when it was stored;
+        // see toEpochDay().  Days before 1970 can't be archived.
+        public static final String COLUMN_EPOCH_DAY = "epoch_day";
+
+        // The same values as the weather table has for a day; descriptions are the condition
+        // table's, joined in when asked for.
+        public static final String COLUMN_WEATHER_ID = WeatherEntry.COLUMN_WEATHER_ID;
+        public static final String COLUMN_SHORT_DESC = ConditionEntry.COLUMN_SHORT_DESC;
+        public static final String COLUMN_MIN_TEMP = WeatherEntry.COLUMN_MIN_TEMP;
+        public static final String COLUMN_MAX_TEMP = WeatherEntry.COLUMN_MAX_TEMP;
+        public static final String COLUMN_HUMIDITY = WeatherEntry.COLUMN_HUMIDITY;
+        public static final String COLUMN_PRESSURE = WeatherEntry.COLUMN_PRESSURE;
+        public static final String COLUMN_WIND_SPEED = WeatherEntry.COLUMN_WIND_SPEED;
+        public static final String COLUMN_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+        // Query parameters bounding the days of an archive uri, both included.
+        public static final String PARAM_FROM = "from";
+        public static final String PARAM_TO = "to";
+
+        // The last day a key has room for.
+        public static final long MAX_EPOCH_DAY = 0xFFFFFFFFL;
+
+        public static long buildKey(long locationId, long epochDay) {
+            if (epochDay < 0 || epochDay > MAX_EPOCH_DAY) {
+                throw new IllegalArgumentException("Day out of range: " + epochDay);
+            }
+            return (locationId << 32) | epochDay;
+        }
+
+        // Every archived day of a location.
+        public static Uri buildArchiveLocation(long locationId) {
+            return ContentUris.withAppendedId(CONTENT_URI, locationId);
+        }
+
+        // The location's archived days from fromDay to toDay, both included.
+        public static Uri buildArchiveLocationWithRange(long locationId, long fromDay,
+                                                        long toDay) {
+            return buildArchiveLocation(locationId).buildUpon()
+                    .appendQueryParameter(PARAM_FROM, Long.toString(fromDay))
+                    .appendQueryParameter(PARAM_TO, Long.toString(toDay)).build();
+        }
+
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+
+        // The first day the uri asks for; 0 if it doesn't say.
+        public static long getFromDayFromUri(Uri uri) {
+            return getDayParameter(uri, PARAM_FROM, 0);
+        }
+
+        // The last day the uri asks for; MAX_EPOCH_DAY if it doesn't say.
+        public static long getToDayFromUri(Uri uri) {
+            return getDayParameter(uri, PARAM_TO, MAX_EPOCH_DAY);
+        }
+
+        private static long getDayParameter(Uri uri, String name, long defaultDay) {
+            String day = uri.getQueryParameter(name);
+            if (day == null || day.length() == 0) {
+                return defaultDay;
+            }
+            return Math.max(0, Math.min(MAX_EPOCH_DAY, Long.parseLong(day)));
+        }
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -97,6 +268,12 @@ public class WeatherContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
 
+        // Weather by the location's row id rather than its setting, which the provider can
+        // answer without looking the setting up.  Writes notify these uris as well as the
+        // setting's, so cursors of either hear about them.
+        public static final Uri LOCATION_ID_CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_WEATHER_BY_LOCATION_ID).build();
+
         public static final String TABLE_NAME = "weather";
 
         // Column with the foreign key into the location table.
@@ -107,8 +284,9 @@ public class WeatherContract {
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
         // Short description and long description of the weather, as provided by API.
-        // e.g "clear" vs "sky is clear".
-        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // e.g "clear" vs "sky is clear".  Stored once per weather id, in the condition table;
+        // queries that ask for it, or for every column, get it joined in.
+        public static final String COLUMN_SHORT_DESC = ConditionEntry.COLUMN_SHORT_DESC;
 
         // Min and max temperatures for the day (stored as floats)
         public static final String COLUMN_MIN_TEMP = "min";
@@ -149,6 +327,29 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        public static Uri buildWeatherLocationId(long locationId) {
+            return ContentUris.withAppendedId(LOCATION_ID_CONTENT_URI, locationId);
+        }
+
+        public static Uri buildWeatherLocationIdWithStartDate(long locationId, long startDate) {
+            return buildWeatherLocationId(locationId).buildUpon()
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(normalizeDate(startDate)))
+                    .build();
+        }
+
+        public static Uri buildWeatherLocationIdWithDate(long locationId, long date) {
+            return buildWeatherLocationId(locationId).buildUpon()
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+
+        public static long getDateFromLocationIdUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -16,24 +16,145 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ConditionEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Manages a local database for weather data.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
+    // If you change the database schema, you must increment the database version, and add
+    // a step to MIGRATIONS that takes the previous version's data along.
+    private static final int DATABASE_VERSION = 7;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // How big the write-ahead log may grow, in pages, before a commit copies it back into the
+    // database.  A full sync of several locations fits comfortably, so the checkpoint comes
+    // after it, not in the middle of it.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+
+    // PRAGMA auto_vacuum, once it is INCREMENTAL.
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Remembers across restarts that an upgrade threw the stored forecasts away.
+    private static final String PREFS_NAME = "weather_db";
+    private static final String PREF_DATA_DISCARDED = "data_discarded";
+
+    private final Context mContext;
+
+    // Migrations this open upgraded through that still have work to do once it commits.
+    private final List<Migration> mCommittedMigrations = new ArrayList<Migration>();
+
+    // How the weather table was declared in version 4, with each day's description in it.
+    // The migrations up to then create this one, not whatever is current.
+    static final String SQL_CREATE_VERSION_4_WEATHER_TABLE =
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + "));";
+
+    // One description per weather id, where every day had its own copy of it up to version 4.
+    // There are only a few dozen weather ids, and years of days.
+    static final String SQL_CREATE_CONDITION_TABLE =
+            "CREATE TABLE " + ConditionEntry.TABLE_NAME + " (" +
+            ConditionEntry.COLUMN_WEATHER_ID + " INTEGER PRIMARY KEY, " +
+            ConditionEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL);";
+
+    // Not AUTOINCREMENT: the id is the row's key, (location_id << 32) | epoch_day, which is
+    // what SQLite stores rows in order of.  A location's history is one stretch of the table,
+    // so reading a range of its days touches only the pages those days are on, where the
+    // weather table's rows are in the order they were written, every location's mixed in.
+    // SQLite on older devices has no WITHOUT ROWID tables to cluster by (location, day).
+    static final String SQL_CREATE_ARCHIVE_TABLE =
+            "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+            ArchiveEntry._ID + " INTEGER PRIMARY KEY, " +
+            ArchiveEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_EPOCH_DAY + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+            " FOREIGN KEY (" + ArchiveEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
+    static final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            // Why AutoIncrement here, and not above?
+            // Unique keys will be auto-generated in either case.  But for weather
+            // forecasting, it's reasonable to assume the user will want information
+            // for a certain date and all dates *following*, so the forecast data
+            // should be sorted accordingly.
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // To assure the application have just one weather entry per day
+            // per location, it's created a UNIQUE constraint.  Not ON CONFLICT REPLACE: that
+            // deletes the old row and inserts a new one with a new id, where the provider
+            // updates the row it has in place.
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + "));";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    /**
+     * Whether an upgrade has discarded the stored forecasts since the last time this was
+     * called, so that whoever gets true can store them again, e.g. from a cache.
+     */
+    public static boolean takeDataDiscarded(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.getBoolean(PREF_DATA_DISCARDED, false)) {
+            return false;
+        }
+        prefs.edit().remove(PREF_DATA_DISCARDED).commit();
+        return true;
     }
 
     @Override
@@ -45,54 +166,174 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT " +
                 " );";
 
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-                // Why AutoIncrement here, and not above?
-                // Unique keys will be auto-generated in either case.  But for weather
-                // forecasting, it's reasonable to assume the user will want information
-                // for a certain date and all dates *following*, so the forecast data
-                // should be sorted accordingly.
-                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
-
-                // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
-
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_CONDITION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Lets WeatherProvider give the pages of purged rows back a few at a time, instead of
+        // the file only ever growing.  This takes effect when the tables are first created,
+        // and only before the journal becomes a write-ahead log, so it has to come first.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        // Writers append to a log instead of locking readers out of the database, so the
+        // loaders keep querying while a sync stores forecasts.  The framework then gives
+        // the database a pool of connections to read from in parallel.
+        db.enableWriteAheadLogging();
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES,
+                null);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        // SQLiteOpenHelper runs all of this in one transaction, so a step that fails leaves
+        // the database at the version it started from.
+        for (int version = oldVersion; version < newVersion; version++) {
+            Migration migration = findMigration(version);
+            if (migration == null) {
+                Log.w(LOG_TAG, "No migration from version " + version + ", starting over");
+                discardAll(sqLiteDatabase);
+                return;
+            }
+            migration.migrate(sqLiteDatabase);
+            mCommittedMigrations.add(migration);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // The upgrade's transaction has committed by now.
+        for (Migration migration : mCommittedMigrations) {
+            migration.afterCommit(db);
+        }
+        mCommittedMigrations.clear();
+    }
+
+    static Migration findMigration(int fromVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.fromVersion == fromVersion) {
+                return migration;
+            }
+        }
+        return null;
+    }
+
+    // This database is only a cache for online data, so when there's no way to keep what's in
+    // it, the policy is to discard the data and start over.
+    private void discardAll(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ConditionEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
+        mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(PREF_DATA_DISCARDED, true).commit();
     }
+
+    /**
+     * Takes the database from one version to the next without losing what's stored.
+     */
+    abstract static class Migration {
+        final int fromVersion;
+
+        Migration(int fromVersion) {
+            this.fromVersion = fromVersion;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+
+        // For what can't run inside the upgrade's transaction, e.g. VACUUM.  Only called on
+        // the open that upgraded.
+        void afterCommit(SQLiteDatabase db) {
+        }
+    }
+
+    // Every schema change, oldest first.  Bumping DATABASE_VERSION needs a step here, or
+    // upgrading will throw everything away.
+    static final Migration[] MIGRATIONS = {
+            // 3 keeps the validators of the last forecast on the location.
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN "
+                            + LocationEntry.COLUMN_ETAG + " TEXT");
+                    db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN "
+                            + LocationEntry.COLUMN_LAST_MODIFIED + " TEXT");
+                }
+            },
+            // 4 drops ON CONFLICT REPLACE from the weather table.  SQLite can't change a
+            // table's constraints, so copy the rows into a new one, ids and all.
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String oldTable = WeatherEntry.TABLE_NAME + "_old";
+                    db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldTable);
+                    db.execSQL(SQL_CREATE_VERSION_4_WEATHER_TABLE);
+                    db.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME
+                            + " SELECT * FROM " + oldTable);
+                    db.execSQL("DROP TABLE " + oldTable);
+                }
+            },
+            // 5 keeps each weather id's description once, in the condition table, instead of
+            // on every day.  Where days disagree about one, the latest stored wins.
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_CONDITION_TABLE);
+                    db.execSQL("INSERT OR REPLACE INTO " + ConditionEntry.TABLE_NAME + " ("
+                            + ConditionEntry.COLUMN_WEATHER_ID + ", "
+                            + ConditionEntry.COLUMN_SHORT_DESC + ") SELECT "
+                            + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                            + WeatherEntry.COLUMN_SHORT_DESC + " FROM " + WeatherEntry.TABLE_NAME
+                            + " ORDER BY " + WeatherEntry._ID);
+
+                    String columns = WeatherEntry._ID + ", " + WeatherEntry.COLUMN_LOC_KEY
+                            + ", " + WeatherEntry.COLUMN_DATE
+                            + ", " + WeatherEntry.COLUMN_WEATHER_ID
+                            + ", " + WeatherEntry.COLUMN_MIN_TEMP
+                            + ", " + WeatherEntry.COLUMN_MAX_TEMP
+                            + ", " + WeatherEntry.COLUMN_HUMIDITY
+                            + ", " + WeatherEntry.COLUMN_PRESSURE
+                            + ", " + WeatherEntry.COLUMN_WIND_SPEED
+                            + ", " + WeatherEntry.COLUMN_DEGREES;
+                    String oldTable = WeatherEntry.TABLE_NAME + "_old";
+                    db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldTable);
+                    db.execSQL(SQL_CREATE_WEATHER_TABLE);
+                    db.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME + " (" + columns
+                            + ") SELECT " + columns + " FROM " + oldTable);
+                    db.execSQL("DROP TABLE " + oldTable);
+                }
+            },
+            // 6 adds the archive of observed weather, empty to begin with.
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+                }
+            },
+            // 7 gives the pages of purged rows back a few at a time.  Databases from before it
+            // were created without incremental vacuum, and only a VACUUM, once, outside any
+            // transaction, can switch it on.
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                }
+
+                @Override
+                void afterCommit(SQLiteDatabase db) {
+                    if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                            != AUTO_VACUUM_INCREMENTAL) {
+                        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                        db.execSQL("VACUUM");
+                    }
+                }
+            }
+    };
 }
@@ -17,12 +17,32 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,25 +50,55 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // What the batch this thread is applying has changed so far, to be notified once it
+    // commits.  Null outside of applyBatch().
+    private final ThreadLocal<BatchChanges> mBatchChanges = new ThreadLocal<BatchChanges>();
+
+    // Counts what notifications cost, while someone has asked it to.
+    private volatile NotificationAudit mAudit;
+
+    // What the screens last asked for, until a write changes it.
+    private final QueryCache mQueryCache = new QueryCache(QueryCache.DEFAULT_MAX_BYTES);
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_ID = 103;
+    static final int WEATHER_WITH_LOCATION_ID_AND_DATE = 104;
     static final int LOCATION = 300;
+    static final int CONDITION = 400;
+    static final int ARCHIVE = 500;
+    static final int ARCHIVE_WITH_LOCATION_ID = 501;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
+    // The same, with each day's description.
+    private static final SQLiteQueryBuilder sWeatherByLocationSettingWithConditionsQueryBuilder;
+
+    // LEFT JOIN condition USING (weather_id)
+    private static final String sConditionJoin =
+            " LEFT JOIN " + WeatherContract.ConditionEntry.TABLE_NAME +
+                    " USING (" + WeatherContract.ConditionEntry.COLUMN_WEATHER_ID + ")";
+
+    //weather LEFT JOIN condition USING (weather_id)
+    private static final String sWeatherWithConditionsTables =
+            WeatherContract.WeatherEntry.TABLE_NAME + sConditionJoin;
+
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
         
         //This is an inner join which looks like
         //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
-                        WeatherContract.LocationEntry.TABLE_NAME +
-                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
-                        "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
-                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
+        String tables = WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                WeatherContract.LocationEntry.TABLE_NAME +
+                " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
+                "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+                " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                "." + WeatherContract.LocationEntry._ID;
+        sWeatherByLocationSettingQueryBuilder.setTables(tables);
+
+        sWeatherByLocationSettingWithConditionsQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherByLocationSettingWithConditionsQueryBuilder.setTables(tables + sConditionJoin);
     }
 
     //location.location_setting = ?
@@ -68,6 +118,132 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //_id BETWEEN ? AND ?
+    private static final String sArchiveKeyRangeSelection =
+            WeatherContract.ArchiveEntry._ID + " BETWEEN ? AND ?";
+
+    //archive LEFT JOIN condition USING (weather_id)
+    private static final String sArchiveWithConditionsTables =
+            WeatherContract.ArchiveEntry.TABLE_NAME + sConditionJoin;
+
+    // Columns only the location table has, unqualified.
+    private static final Set<String> sLocationColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED));
+
+    //location_id = ? AND date = ?
+    private static final String sWeatherKeySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+
+    // How many rows compaction deletes per transaction, so that it never holds the database
+    // for long while the UI wants to read.
+    static final int COMPACTION_BATCH_SIZE = 500;
+
+    // How many free pages compaction gives back to the file system at most, so that a purge
+    // of years of history is returned over a few syncs rather than stalling one.  Whatever is
+    // left is reused by the next inserts, or given back next time.
+    static final int COMPACTION_VACUUM_PAGES = 1000;
+
+    //location._id NOT IN (SELECT location_id FROM weather)
+    //    AND location._id NOT IN (SELECT location_id FROM archive)
+    private static final String sUnusedLocationSelection =
+            WeatherContract.LocationEntry._ID + " NOT IN (SELECT " +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + ") AND " +
+                    WeatherContract.LocationEntry._ID + " NOT IN (SELECT " +
+                    WeatherContract.ArchiveEntry.COLUMN_LOC_KEY + " FROM " +
+                    WeatherContract.ArchiveEntry.TABLE_NAME + ")";
+
+    //DELETE FROM weather WHERE _id IN (SELECT _id FROM weather WHERE date < ? LIMIT ?)
+    private static final String sDeleteExpiredSql =
+            "DELETE FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.WeatherEntry._ID + " IN (SELECT " +
+                    WeatherContract.WeatherEntry._ID + " FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " < ? LIMIT ?)";
+
+    //DELETE FROM weather WHERE _id IN (SELECT _id FROM weather WHERE location_id = ?
+    //        ORDER BY date DESC LIMIT ? OFFSET ?)
+    private static final String sDeleteOverCapSql =
+            "DELETE FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.WeatherEntry._ID + " IN (SELECT " +
+                    WeatherContract.WeatherEntry._ID + " FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ORDER BY " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " DESC LIMIT ? OFFSET ?)";
+
+    // What the weather table itself stores of a row, other than its id: a batch's columns
+    // without the description, which goes to the condition table.
+    private static final String[] sWeatherColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    //INSERT INTO weather (location_id, date, ...) VALUES (?, ?, ...)
+    private static final String sInsertWeatherSql;
+
+    //UPDATE weather SET weather_id = ?, ... WHERE location_id = ? AND date = ?
+    private static final String sUpdateWeatherSql;
+
+    //_id, location_id, date, weather_id, ...
+    private static final String[] sMergeColumns;
+
+    static {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+        for (int i = 0; i < sWeatherColumns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(sWeatherColumns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < sWeatherColumns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sInsertWeatherSql = sql.append(")").toString();
+
+        // The first two columns are the key.
+        sql = new StringBuilder("UPDATE ")
+                .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" SET ");
+        for (int i = 2; i < sWeatherColumns.length; i++) {
+            sql.append(i == 2 ? "" : ", ").append(sWeatherColumns[i]).append(" = ?");
+        }
+        sUpdateWeatherSql = sql.append(" WHERE ").append(sWeatherKeySelection).toString();
+
+        // The stored row's id, and then every value the weather table holds for a day, in
+        // order.
+        sMergeColumns = new String[sWeatherColumns.length + 1];
+        sMergeColumns[0] = WeatherContract.WeatherEntry._ID;
+        System.arraycopy(sWeatherColumns, 0, sMergeColumns, 1, sWeatherColumns.length);
+    }
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -83,7 +259,7 @@ public class WeatherProvider extends ContentProvider {
             selection = sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return getLocationSettingQueryBuilder(projection).query(mOpenHelper.getReadableDatabase(),
                 projection,
                 selection,
                 selectionArgs,
@@ -98,7 +274,7 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return getLocationSettingQueryBuilder(projection).query(mOpenHelper.getReadableDatabase(),
                 projection,
                 sLocationSettingAndDaySelection,
                 new String[]{locationSetting, Long.toString(date)},
@@ -108,6 +284,101 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    // Weather by location id needs the location table only for the columns it alone has, and
+    // a projection without any of them is answered from the weather table, without the join.
+    private Cursor getWeatherByLocationId(Uri uri, String[] projection, String sortOrder,
+                                          boolean withDate) {
+        String locationId = Long.toString(
+                WeatherContract.WeatherEntry.getLocationIdFromUri(uri));
+
+        String selection;
+        String[] selectionArgs;
+        if (withDate) {
+            selection = sLocationIdAndDaySelection;
+            selectionArgs = new String[]{locationId, Long.toString(
+                    WeatherContract.WeatherEntry.getDateFromLocationIdUri(uri))};
+        } else {
+            long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+            if (startDate == 0) {
+                selection = sLocationIdSelection;
+                selectionArgs = new String[]{locationId};
+            } else {
+                selection = sLocationIdWithStartDateSelection;
+                selectionArgs = new String[]{locationId, Long.toString(startDate)};
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (needsLocationColumns(projection)) {
+            return getLocationSettingQueryBuilder(projection).query(db, projection, selection,
+                    selectionArgs, null, null, sortOrder);
+        }
+        return db.query(getWeatherTables(projection), projection, selection,
+                selectionArgs, null, null, sortOrder);
+    }
+
+    private static SQLiteQueryBuilder getLocationSettingQueryBuilder(String[] projection) {
+        return needsConditions(projection)
+                ? sWeatherByLocationSettingWithConditionsQueryBuilder
+                : sWeatherByLocationSettingQueryBuilder;
+    }
+
+    static String getWeatherTables(String[] projection) {
+        return needsConditions(projection)
+                ? sWeatherWithConditionsTables : WeatherContract.WeatherEntry.TABLE_NAME;
+    }
+
+    // A location's days are the keys between its first and last day's, so SQLite reads them
+    // straight off the table, in order, without an index or a sort.
+    private Cursor getArchiveByLocationId(Uri uri, String[] projection, String sortOrder) {
+        long locationId = WeatherContract.ArchiveEntry.getLocationIdFromUri(uri);
+        String[] selectionArgs = new String[]{
+                Long.toString(WeatherContract.ArchiveEntry.buildKey(locationId,
+                        WeatherContract.ArchiveEntry.getFromDayFromUri(uri))),
+                Long.toString(WeatherContract.ArchiveEntry.buildKey(locationId,
+                        WeatherContract.ArchiveEntry.getToDayFromUri(uri)))
+        };
+        return mOpenHelper.getReadableDatabase().query(
+                needsConditions(projection)
+                        ? sArchiveWithConditionsTables : WeatherContract.ArchiveEntry.TABLE_NAME,
+                projection,
+                sArchiveKeyRangeSelection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder != null ? sortOrder : WeatherContract.ArchiveEntry._ID + " ASC"
+        );
+    }
+
+    // Descriptions are joined in from the condition table only for the queries that want
+    // them: a lookup by primary key per row, and none at all for the rest.
+    static boolean needsConditions(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (column.startsWith(WeatherContract.ConditionEntry.TABLE_NAME + ".")
+                    || WeatherContract.WeatherEntry.COLUMN_SHORT_DESC.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean needsLocationColumns(String[] projection) {
+        if (projection == null) {
+            // Every column, the location's included.
+            return true;
+        }
+        for (String column : projection) {
+            if (column.startsWith(WeatherContract.LocationEntry.TABLE_NAME + ".")
+                    || sLocationColumns.contains(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -128,8 +399,16 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_BY_LOCATION_ID + "/#",
+                WEATHER_WITH_LOCATION_ID);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER_BY_LOCATION_ID + "/#/#",
+                WEATHER_WITH_LOCATION_ID_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_CONDITION, CONDITION);
+
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE, ARCHIVE);
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/#", ARCHIVE_WITH_LOCATION_ID);
         return matcher;
     }
 
@@ -160,10 +439,20 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+                return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
+            case WEATHER_WITH_LOCATION_ID:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case CONDITION:
+                return WeatherContract.ConditionEntry.CONTENT_TYPE;
+            case ARCHIVE:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
+            case ARCHIVE_WITH_LOCATION_ID:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -174,8 +463,33 @@ public class WeatherProvider extends ContentProvider {
                         String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
+        int match = sUriMatcher.match(uri);
+
+        // Within a batch, results could show writes that are yet to commit, or never will.
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (isCacheable(match) && mBatchChanges.get() == null) {
+            cacheKey = QueryCache.key(uri, projection, selection, selectionArgs, sortOrder);
+            cacheGeneration = mQueryCache.getGeneration();
+            QueryCache.Result cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                return watch(cached.newCursor(), cached.mNotificationUri);
+            }
+        }
+
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        Uri notificationUri = uri;
+        switch (match) {
+            // "weather_by_id/#/#"
+            case WEATHER_WITH_LOCATION_ID_AND_DATE: {
+                retCursor = getWeatherByLocationId(uri, projection, sortOrder, true);
+                break;
+            }
+            // "weather_by_id/#"
+            case WEATHER_WITH_LOCATION_ID: {
+                retCursor = getWeatherByLocationId(uri, projection, sortOrder, false);
+                break;
+            }
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -190,7 +504,7 @@ public class WeatherProvider extends ContentProvider {
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        getWeatherTables(projection),
                         projection,
                         selection,
                         selectionArgs,
@@ -213,12 +527,128 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "condition"
+            case CONDITION: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.ConditionEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "archive/#"
+            case ARCHIVE_WITH_LOCATION_ID: {
+                retCursor = getArchiveByLocationId(uri, projection, sortOrder);
+                break;
+            }
+            // "archive"
+            case ARCHIVE: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        needsConditions(projection) ? sArchiveWithConditionsTables
+                                : WeatherContract.ArchiveEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return retCursor;
+        if (cacheKey != null) {
+            retCursor = mQueryCache.put(cacheKey, cacheGeneration, retCursor, notificationUri);
+        }
+        return watch(retCursor, notificationUri);
+    }
+
+    // Weather by location, which is what the screens ask for, over and over, between syncs.
+    private static boolean isCacheable(int match) {
+        switch (match) {
+            case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE:
+            case WEATHER_WITH_LOCATION_ID:
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Cursor watch(Cursor cursor, Uri notificationUri) {
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        NotificationAudit audit = mAudit;
+        if (audit != null) {
+            audit.track(cursor, notificationUri);
+        }
+        return cursor;
+    }
+
+    // Everything an applyBatch() has changed.  Weather changes are kept by row rather than
+    // by uri, so that a day written by one operation and a day by the next come out as the
+    // one location uri, the same as they would from a single bulkInsert().
+    private static class BatchChanges {
+        final Set<Uri> mUris = new LinkedHashSet<Uri>();
+        final WeatherChanges mWeather = new WeatherChanges();
+
+        void addAll(BatchChanges other) {
+            mUris.addAll(other.mUris);
+            mWeather.addAll(other.mWeather);
+        }
+    }
+
+    // Tell observers about a write now, or, within applyBatch(), once the batch commits.
+    private void notifyChange(Uri uri) {
+        BatchChanges batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.mUris.add(uri);
+        } else {
+            dispatchChanges(Collections.singletonList(uri));
+        }
+    }
+
+    private void notifyWeatherChanges(SQLiteDatabase db, WeatherChanges changes) {
+        BatchChanges batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.mWeather.addAll(changes);
+        } else if (!changes.isEmpty()) {
+            dispatchChanges(changes.toUris(db));
+        }
+    }
+
+    // A description that was stored has changed, and with it every day of that weather.
+    private void notifyConditionChanges(ConditionWriter conditions) {
+        if (conditions.hasChanged()) {
+            notifyChange(WeatherContract.ConditionEntry.CONTENT_URI);
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            notifyChange(WeatherContract.WeatherEntry.LOCATION_ID_CONTENT_URI);
+        }
+    }
+
+    private void dispatchChanges(Collection<Uri> uris) {
+        // Cached results go first, so the reloads the notifications cause don't find them.
+        for (Uri uri : uris) {
+            if (reaches(uri, WeatherContract.LocationEntry.CONTENT_URI)) {
+                // Weather results are joined with their location, and found by its setting.
+                mQueryCache.invalidateAll();
+            } else {
+                mQueryCache.invalidate(uri);
+            }
+        }
+        for (Uri uri : uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        NotificationAudit audit = mAudit;
+        if (audit != null) {
+            audit.record(uris);
+        }
     }
 
     /*
@@ -229,15 +659,29 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        Uri changedUri = uri;
+        WeatherChanges weatherChanges = null;
+        ConditionWriter conditions = null;
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                conditions = new ConditionWriter(db);
+                long _id;
+                db.beginTransactionNonExclusive();
+                try {
+                    _id = upsertRow(db, values, conditions);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    conditions.close();
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                weatherChanges = new WeatherChanges();
+                weatherChanges.addRow(values);
                 break;
             }
             case LOCATION: {
@@ -248,10 +692,38 @@ public class WeatherProvider extends ContentProvider {
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case ARCHIVE: {
+                conditions = new ConditionWriter(db);
+                long _id;
+                db.beginTransactionNonExclusive();
+                try {
+                    _id = archiveRow(db, values, conditions);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    conditions.close();
+                }
+                if (_id == -1)
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                long locationId = values.getAsLong(WeatherContract.ArchiveEntry.COLUMN_LOC_KEY);
+                long epochDay = values.getAsLong(WeatherContract.ArchiveEntry.COLUMN_EPOCH_DAY);
+                returnUri = WeatherContract.ArchiveEntry.buildArchiveLocationWithRange(
+                        locationId, epochDay, epochDay);
+                // Only the location's history changed.
+                changedUri = WeatherContract.ArchiveEntry.buildArchiveLocation(locationId);
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (weatherChanges != null) {
+            notifyWeatherChanges(db, weatherChanges);
+        } else {
+            notifyChange(changedUri);
+        }
+        if (conditions != null) {
+            notifyConditionChanges(conditions);
+        }
         return returnUri;
     }
 
@@ -260,32 +732,67 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        WeatherChanges weatherChanges = null;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                // Find out whose weather is going while it's still there to look at.
+                weatherChanges = new WeatherChanges();
+                if ("1".equals(selection)) {
+                    weatherChanges.addEverything();
+                } else {
+                    weatherChanges.addRows(db, selection, selectionArgs);
+                }
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            }
+            case ARCHIVE:
+                rowsDeleted = db.delete(
+                        WeatherContract.ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    // The notification below gets there too, but not before the next sync
+                    // might use a deleted id.
+                    LocationIdCache.getInstance(getContext()).invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (rowsDeleted != 0 && weatherChanges != null) {
+            notifyWeatherChanges(db, weatherChanges);
+        } else if (rowsDeleted != 0) {
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    private static boolean isValidatorUpdate(ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!WeatherContract.LocationEntry.COLUMN_ETAG.equals(column)
+                    && !WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED.equals(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void normalizeDate(ContentValues values) {
+        normalizeDate(values, TimeZone.getDefault());
+    }
+
+    private static void normalizeDate(ContentValues values, TimeZone zone) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(dateValue, zone));
         }
     }
 
@@ -295,53 +802,835 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        WeatherChanges weatherChanges = null;
+        ConditionWriter conditions = null;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                weatherChanges = new WeatherChanges();
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                        || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                    // Rows moving to another location or day; not worth working out where.
+                    weatherChanges.addEverything();
+                } else {
+                    weatherChanges.addRows(db, selection, selectionArgs);
+                }
+                conditions = new ConditionWriter(db);
+                db.beginTransactionNonExclusive();
+                try {
+                    rowsUpdated = updateWeather(db, values, selection, selectionArgs,
+                            conditions);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    conditions.close();
+                }
                 break;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0 && isValidatorUpdate(values)) {
+                    // Only the sync reads these, and it updates LocationIdCache itself, so
+                    // there's no one to tell, as LocationEntry.COLUMN_ETAG says.  But any
+                    // location column can be projected through weather/*, so cached results
+                    // may hold the old ones.
+                    mQueryCache.invalidateAll();
+                    return rowsUpdated;
+                }
+                if (rowsUpdated != 0) {
+                    LocationIdCache.getInstance(getContext()).invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (rowsUpdated != 0 && weatherChanges != null) {
+            notifyWeatherChanges(db, weatherChanges);
+            notifyConditionChanges(conditions);
+        } else if (rowsUpdated != 0) {
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
+    // The weather table gets everything but the description, which goes to the condition
+    // table: for the weather id being set, or else for the one each updated row has.
+    private static int updateWeather(SQLiteDatabase db, ContentValues values, String selection,
+                                     String[] selectionArgs, ConditionWriter conditions) {
+        ContentValues weather = conditions.putFrom(values);
+        String shortDesc = values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        if (shortDesc != null
+                && !values.containsKey(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)) {
+            Cursor cursor = db.query(true, WeatherContract.WeatherEntry.TABLE_NAME,
+                    new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_ID}, selection,
+                    selectionArgs, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    conditions.put(cursor.getInt(0), shortDesc);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (weather.size() == 0) {
+            // Only the description, and the rows themselves stay as they are.
+            return (int) DatabaseUtils.queryNumEntries(db,
+                    WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+        }
+        return db.update(WeatherContract.WeatherEntry.TABLE_NAME, weather, selection,
+                selectionArgs);
+    }
+
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        ConditionWriter conditions;
+        int returnCount;
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+                // Complete rows, which is all the sync ever sends, take the fast path.
+                ForecastBatch batch = ForecastBatch.fromContentValues(values);
+                WeatherChanges changes = new WeatherChanges();
+                conditions = new ConditionWriter(db);
+                db.beginTransactionNonExclusive();
+                try {
+                    if (batch != null) {
+                        returnCount = upsertBatch(db, batch, conditions);
+                        changes.addBatch(batch);
+                    } else {
+                        returnCount = upsertRows(db, values, conditions);
+                        for (ContentValues value : values) {
+                            changes.addRow(value);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    conditions.close();
+                }
+                notifyWeatherChanges(db, changes);
+                notifyConditionChanges(conditions);
+                return returnCount;
+            case ARCHIVE: {
+                // Each location that got days hears about them, and no other.
+                Set<Long> locationIds = new LinkedHashSet<Long>();
+                conditions = new ConditionWriter(db);
+                db.beginTransactionNonExclusive();
+                returnCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
+                        if (archiveRow(db, value, conditions) != -1) {
                             returnCount++;
+                            locationIds.add(value.getAsLong(
+                                    WeatherContract.ArchiveEntry.COLUMN_LOC_KEY));
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
+                    conditions.close();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                for (long locationId : locationIds) {
+                    notifyChange(WeatherContract.ArchiveEntry.buildArchiveLocation(locationId));
+                }
+                notifyConditionChanges(conditions);
                 return returnCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Apply every operation in one transaction, instead of one each, and tell observers only
+     * once it commits: a single notification per uri changed, leaving out any uri under
+     * another one that changed, since notifying that reaches its observers too.
+     *
+     * Operations built {@link ContentProviderOperation.Builder#withYieldAllowed with yield
+     * allowed} are where the batch may let others at the database, committing what came
+     * before them.  What was committed like that stays, and is notified, even if a later
+     * operation fails.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        BatchChanges changes = new BatchChanges();
+        BatchChanges committed = new BatchChanges();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        mBatchChanges.set(changes);
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    committed.addAll(changes);
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            committed = changes;
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+            Set<Uri> uris = new LinkedHashSet<Uri>(committed.mUris);
+            if (!committed.mWeather.isEmpty()) {
+                uris.addAll(committed.mWeather.toUris(db));
+            }
+            if (!uris.isEmpty()) {
+                dispatchChanges(withoutDescendants(uris));
+            }
+        }
+        return results;
+    }
+
+    // The uris that aren't under any of the others, in their original order.
+    static List<Uri> withoutDescendants(Collection<Uri> uris) {
+        List<Uri> roots = new ArrayList<Uri>();
+        for (Uri uri : uris) {
+            boolean covered = false;
+            for (Uri other : uris) {
+                if (other != uri && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered && !roots.contains(uri)) {
+                roots.add(uri);
+            }
+        }
+        return roots;
+    }
+
+    // Whether notifying one uri reaches an observer of the other: cursors register for their
+    // uri and everything under it, and a notification goes to observers under the uri too.
+    static boolean reaches(Uri notified, Uri watched) {
+        return notified.getPathSegments().equals(watched.getPathSegments())
+                && TextUtils.equals(notified.getAuthority(), watched.getAuthority())
+                || isAncestor(notified, watched)
+                || isAncestor(watched, notified);
+    }
+
+    static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!TextUtils.equals(ancestor.getScheme(), uri.getScheme())
+                || !TextUtils.equals(ancestor.getAuthority(), uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorPath = ancestor.getPathSegments();
+        List<String> path = uri.getPathSegments();
+        return ancestorPath.size() < path.size()
+                && ancestorPath.equals(path.subList(0, ancestorPath.size()));
+    }
+
+    /**
+     * Store a whole batch of weather rows in one transaction.  Callers in this process can
+     * reach it through {@link android.content.ContentProviderClient#getLocalContentProvider}
+     * and skip building ContentValues at all.
+     */
+    public int bulkInsert(ForecastBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ConditionWriter conditions = new ConditionWriter(db);
+        db.beginTransactionNonExclusive();
+        int returnCount;
+        try {
+            returnCount = upsertBatch(db, batch, conditions);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            conditions.close();
+        }
+        WeatherChanges changes = new WeatherChanges();
+        changes.addBatch(batch);
+        notifyWeatherChanges(db, changes);
+        notifyConditionChanges(conditions);
+        return returnCount;
+    }
+
+    /**
+     * Store a day of a location's history under its key, replacing whatever was archived for
+     * that day, which keeps the key and so the row where it was.  Call within a transaction.
+     *
+     * @return the row's key, or -1 if it couldn't be written.
+     */
+    static long archiveRow(SQLiteDatabase db, ContentValues values,
+                           ConditionWriter conditions) {
+        Long locationId = values.getAsLong(WeatherContract.ArchiveEntry.COLUMN_LOC_KEY);
+        Long epochDay = values.getAsLong(WeatherContract.ArchiveEntry.COLUMN_EPOCH_DAY);
+        if (locationId == null || epochDay == null) {
+            throw new IllegalArgumentException("Archived days need a location and a day");
+        }
+        ContentValues row = new ContentValues(conditions.putFrom(values));
+        row.put(WeatherContract.ArchiveEntry._ID,
+                WeatherContract.ArchiveEntry.buildKey(locationId, epochDay));
+        return db.insertWithOnConflict(WeatherContract.ArchiveEntry.TABLE_NAME, null, row,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // One row at a time through ContentValues.  Call within a transaction.
+    static int upsertRows(SQLiteDatabase db, ContentValues[] values) {
+        ConditionWriter conditions = new ConditionWriter(db);
+        try {
+            return upsertRows(db, values, conditions);
+        } finally {
+            conditions.close();
+        }
+    }
+
+    // The same, storing the rows' descriptions through conditions.
+    static int upsertRows(SQLiteDatabase db, ContentValues[] values,
+                          ConditionWriter conditions) {
+        int returnCount = 0;
+        TimeZone zone = TimeZone.getDefault();
+        for (ContentValues value : values) {
+            normalizeDate(value, zone);
+            long _id = upsertRow(db, value, conditions);
+            if (_id != -1) {
+                returnCount++;
+            }
+        }
+        return returnCount;
+    }
+
+    /**
+     * Update the row stored for the same location and day in place, keeping its id, or insert
+     * one if there isn't any.
+     *
+     * @return the row's id, or -1 if it couldn't be written.
+     */
+    static long upsertRow(SQLiteDatabase db, ContentValues values) {
+        ConditionWriter conditions = new ConditionWriter(db);
+        try {
+            return upsertRow(db, values, conditions);
+        } finally {
+            conditions.close();
+        }
+    }
+
+    // The same, storing the row's description through conditions.
+    static long upsertRow(SQLiteDatabase db, ContentValues values,
+                          ConditionWriter conditions) {
+        ContentValues weather = conditions.putFrom(values);
+        Long locationId = weather.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = weather.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null) {
+            String[] key = new String[]{Long.toString(locationId), Long.toString(date)};
+            if (db.update(WeatherContract.WeatherEntry.TABLE_NAME, weather, sWeatherKeySelection,
+                    key) > 0) {
+                return DatabaseUtils.longForQuery(db, "SELECT " + WeatherContract.WeatherEntry._ID
+                        + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                        + " WHERE " + sWeatherKeySelection, key);
+            }
+        }
+        return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weather);
+    }
+
+    /**
+     * The same as {@link #upsertRows}, but the update and the insert are compiled once and
+     * every value bound by type, which saves SQLite parsing the statements, and us building
+     * and unboxing a map, for every row.  Call within a transaction.
+     */
+    static int upsertBatch(SQLiteDatabase db, ForecastBatch batch) {
+        ConditionWriter conditions = new ConditionWriter(db);
+        try {
+            return upsertBatch(db, batch, conditions);
+        } finally {
+            conditions.close();
+        }
+    }
+
+    // The same, storing the rows' descriptions through conditions.
+    static int upsertBatch(SQLiteDatabase db, ForecastBatch batch, ConditionWriter conditions) {
+        SQLiteStatement update = db.compileStatement(sUpdateWeatherSql);
+        SQLiteStatement insert = db.compileStatement(sInsertWeatherSql);
+        try {
+            int returnCount = 0;
+            // Most rows share their date with the one before, so only normalize when it
+            // changes.
+            long lastDate = 0;
+            long lastNormalizedDate = 0;
+            TimeZone zone = TimeZone.getDefault();
+            for (int i = 0; i < batch.mSize; i++) {
+                long date = batch.mDates[i];
+                if (i == 0 || date != lastDate) {
+                    lastDate = date;
+                    lastNormalizedDate = WeatherContract.normalizeDate(date, zone);
+                }
+                conditions.put(batch.mWeatherIds[i], batch.mShortDescs[i]);
+                bindValues(update, 1, batch, i);
+                update.bindLong(8, batch.mLocationIds[i]);
+                update.bindLong(9, lastNormalizedDate);
+                if (update.executeUpdateDelete() > 0) {
+                    returnCount++;
+                    continue;
+                }
+                insert.bindLong(1, batch.mLocationIds[i]);
+                insert.bindLong(2, lastNormalizedDate);
+                bindValues(insert, 3, batch, i);
+                if (insert.executeInsert() != -1) {
+                    returnCount++;
+                }
+            }
+            return returnCount;
+        } finally {
+            update.close();
+            insert.close();
+        }
+    }
+
+    // Bind everything the weather table stores of row i but the location and date, in
+    // sWeatherColumns order.
+    private static void bindValues(SQLiteStatement statement, int first, ForecastBatch batch,
+                                   int i) {
+        statement.bindLong(first, batch.mWeatherIds[i]);
+        statement.bindDouble(first + 1, batch.mMinTemps[i]);
+        statement.bindDouble(first + 2, batch.mMaxTemps[i]);
+        statement.bindDouble(first + 3, batch.mHumidities[i]);
+        statement.bindDouble(first + 4, batch.mPressures[i]);
+        statement.bindDouble(first + 5, batch.mWindSpeeds[i]);
+        statement.bindDouble(first + 6, batch.mDegrees[i]);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_MERGE_FORECAST.equals(method)) {
+            Bundle batchBundle = extras != null
+                    ? extras.getBundle(WeatherContract.EXTRA_BATCH) : null;
+            Parcelable[] days = extras != null
+                    ? extras.getParcelableArray(WeatherContract.EXTRA_DAYS) : null;
+            ForecastBatch batch;
+            ContentValues[] values = null;
+            if (batchBundle != null) {
+                batch = ForecastBatch.fromBundle(batchBundle);
+                if (batch == null) {
+                    throw new IllegalArgumentException("Incomplete forecast batch");
+                }
+            } else if (days != null) {
+                values = new ContentValues[days.length];
+                for (int i = 0; i < days.length; i++) {
+                    values[i] = (ContentValues) days[i];
+                }
+                // Complete rows take the same path as a batch; others are merged by column.
+                batch = ForecastBatch.fromContentValues(values);
+            } else {
+                throw new IllegalArgumentException("Nothing to merge");
+            }
+            WeatherChanges changes = new WeatherChanges();
+            ConditionWriter conditions = new ConditionWriter(mOpenHelper.getWritableDatabase());
+            ForecastDelta delta;
+            try {
+                delta = batch != null ? mergeForecast(batch, changes, conditions)
+                        : mergeForecast(values, changes, conditions);
+            } finally {
+                conditions.close();
+            }
+            // A forecast that says what we already had shouldn't reload anything, and one
+            // that changed a day only needs to reload what shows that day.
+            if (delta.hasChanges()) {
+                notifyWeatherChanges(mOpenHelper.getWritableDatabase(), changes);
+            }
+            notifyConditionChanges(conditions);
+            return delta.toBundle();
+        }
+        if (WeatherContract.METHOD_COMPACT.equals(method)) {
+            long horizon = extras != null ? extras.getLong(WeatherContract.EXTRA_HORIZON, 0) : 0;
+            int maxDays = extras != null ? extras.getInt(WeatherContract.EXTRA_MAX_DAYS, 0) : 0;
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            WeatherChanges changes = new WeatherChanges();
+            CompactionReport report = compact(db, horizon, maxDays, changes);
+            if (report.getPurgedCount() > 0) {
+                notifyWeatherChanges(db, changes);
+            }
+            if (report.getPrunedLocationCount() > 0) {
+                // As for a delete: the next sync mustn't use a pruned location's id.
+                LocationIdCache.getInstance(getContext()).invalidate();
+                notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+            }
+            return report.toBundle();
+        }
+        if (WeatherContract.METHOD_AUDIT_NOTIFICATIONS.equals(method)) {
+            NotificationAudit audit = mAudit;
+            Bundle counts = audit != null
+                    ? audit.takeCounts() : new NotificationAudit().toBundle();
+            if (extras == null || !extras.getBoolean(WeatherContract.EXTRA_ENABLED, false)) {
+                mAudit = null;
+            } else if (audit == null) {
+                mAudit = new NotificationAudit();
+            }
+            return counts;
+        }
+        if (WeatherContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            return mQueryCache.getStats().toBundle();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Bring the stored weather for every location in {@code days} in line with it, in one
+     * transaction, touching only the rows that differ.  Rows keep their ids when updated.
+     */
+    private ForecastDelta mergeForecast(ContentValues[] days, WeatherChanges changes,
+                                        ConditionWriter conditions) {
+        // Each location's days, by date.  A later row for the same day wins.
+        Map<Long, Map<Long, ContentValues>> byLocation =
+                new LinkedHashMap<Long, Map<Long, ContentValues>>();
+        TimeZone zone = TimeZone.getDefault();
+        for (ContentValues day : days) {
+            normalizeDate(day, zone);
+            Long locationId = day.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            Long date = day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (locationId == null || date == null) {
+                throw new IllegalArgumentException("Weather rows need a location and a date");
+            }
+            Map<Long, ContentValues> locationDays = byLocation.get(locationId);
+            if (locationDays == null) {
+                locationDays = new LinkedHashMap<Long, ContentValues>();
+                byLocation.put(locationId, locationDays);
+            }
+            locationDays.put(date, day);
+        }
+
+        ForecastDelta delta = new ForecastDelta();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (Map.Entry<Long, Map<Long, ContentValues>> entry : byLocation.entrySet()) {
+                mergeLocation(db, entry.getKey(), entry.getValue(), delta, changes, conditions);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return delta;
+    }
+
+    /**
+     * The same as {@link #mergeForecast(ContentValues[], WeatherChanges, ConditionWriter)}, for
+     * complete rows:
+     * values are compared and written a column at a time, straight from the batch's arrays,
+     * through statements compiled once for the whole merge.
+     */
+    private ForecastDelta mergeForecast(ForecastBatch batch, WeatherChanges changes,
+                                        ConditionWriter conditions) {
+        // Each location's rows, as the index of each day's row in the batch.  A later row for
+        // the same day wins.
+        Map<Long, Map<Long, Integer>> byLocation = new LinkedHashMap<Long, Map<Long, Integer>>();
+        long[] dates = new long[batch.mSize];
+        TimeZone zone = TimeZone.getDefault();
+        for (int i = 0; i < batch.mSize; i++) {
+            dates[i] = i > 0 && batch.mDates[i] == batch.mDates[i - 1] ? dates[i - 1]
+                    : WeatherContract.normalizeDate(batch.mDates[i], zone);
+            Map<Long, Integer> locationDays = byLocation.get(batch.mLocationIds[i]);
+            if (locationDays == null) {
+                locationDays = new LinkedHashMap<Long, Integer>();
+                byLocation.put(batch.mLocationIds[i], locationDays);
+            }
+            locationDays.put(dates[i], i);
+        }
+
+        ForecastDelta delta = new ForecastDelta();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(sUpdateWeatherSql);
+        SQLiteStatement insert = db.compileStatement(sInsertWeatherSql);
+        db.beginTransactionNonExclusive();
+        try {
+            for (Map.Entry<Long, Map<Long, Integer>> entry : byLocation.entrySet()) {
+                mergeLocation(db, entry.getKey(), entry.getValue(), batch, update, insert,
+                        delta, changes, conditions);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+        }
+        return delta;
+    }
+
+    private static void mergeLocation(SQLiteDatabase db, long locationId,
+                                      Map<Long, Integer> days, ForecastBatch batch,
+                                      SQLiteStatement update, SQLiteStatement insert,
+                                      ForecastDelta delta, WeatherChanges changes,
+                                      ConditionWriter conditions) {
+        long firstDate = Long.MAX_VALUE;
+        for (Map.Entry<Long, Integer> day : days.entrySet()) {
+            firstDate = Math.min(firstDate, day.getKey());
+            // Descriptions aren't part of a day anymore; a changed one is the condition's.
+            int row = day.getValue();
+            conditions.put(batch.mWeatherIds[row], batch.mShortDescs[row]);
+        }
+
+        List<Long> expiredIds = new ArrayList<Long>();
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, sMergeColumns,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(locationId), Long.toString(firstDate)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                // Columns are offset by one for the id in front.
+                long date = cursor.getLong(2);
+                Integer row = days.remove(date);
+                if (row == null) {
+                    expiredIds.add(cursor.getLong(0));
+                    changes.addDay(locationId, date);
+                } else if (matches(cursor, batch, row)) {
+                    delta.mUnchanged++;
+                } else {
+                    bindValues(update, 1, batch, row);
+                    update.bindLong(8, locationId);
+                    update.bindLong(9, date);
+                    delta.mUpdated += update.executeUpdateDelete();
+                    changes.addDay(locationId, date);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Whatever is left in days wasn't stored yet.
+        for (Map.Entry<Long, Integer> day : days.entrySet()) {
+            insert.bindLong(1, locationId);
+            insert.bindLong(2, day.getKey());
+            bindValues(insert, 3, batch, day.getValue());
+            if (insert.executeInsert() != -1) {
+                delta.mInserted++;
+                changes.addDay(locationId, day.getKey());
+            }
+        }
+        for (long id : expiredIds) {
+            delta.mExpired += db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherContract.WeatherEntry._ID + " = ?", new String[]{Long.toString(id)});
+        }
+    }
+
+    // Whether the row under a cursor over sMergeColumns already holds row i of the batch.
+    private static boolean matches(Cursor cursor, ForecastBatch batch, int i) {
+        // Compared as doubles, since an integer may well be stored in a REAL column.
+        return cursor.getDouble(3) == batch.mWeatherIds[i]
+                && cursor.getDouble(4) == batch.mMinTemps[i]
+                && cursor.getDouble(5) == batch.mMaxTemps[i]
+                && cursor.getDouble(6) == batch.mHumidities[i]
+                && cursor.getDouble(7) == batch.mPressures[i]
+                && cursor.getDouble(8) == batch.mWindSpeeds[i]
+                && cursor.getDouble(9) == batch.mDegrees[i];
+    }
+
+    private static void mergeLocation(SQLiteDatabase db, long locationId,
+                                      Map<Long, ContentValues> days, ForecastDelta delta,
+                                      WeatherChanges changes, ConditionWriter conditions) {
+        long firstDate = Long.MAX_VALUE;
+        for (Map.Entry<Long, ContentValues> day : days.entrySet()) {
+            firstDate = Math.min(firstDate, day.getKey());
+            // Descriptions aren't part of a day anymore; a changed one is the condition's.
+            day.setValue(conditions.putFrom(day.getValue()));
+        }
+
+        List<Long> expiredIds = new ArrayList<Long>();
+        List<Long> updatedIds = new ArrayList<Long>();
+        List<ContentValues> updatedDays = new ArrayList<ContentValues>();
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(locationId), Long.toString(firstDate)},
+                null, null, null);
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry._ID);
+            int dateColumn = cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_DATE);
+            while (cursor.moveToNext()) {
+                long date = cursor.getLong(dateColumn);
+                ContentValues day = days.remove(date);
+                if (day == null) {
+                    expiredIds.add(cursor.getLong(idColumn));
+                    changes.addDay(locationId, date);
+                } else if (matches(cursor, day)) {
+                    delta.mUnchanged++;
+                } else {
+                    updatedIds.add(cursor.getLong(idColumn));
+                    updatedDays.add(day);
+                    changes.addDay(locationId, date);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Whatever is left in days wasn't stored yet.
+        for (Map.Entry<Long, ContentValues> day : days.entrySet()) {
+            if (db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, day.getValue()) != -1) {
+                delta.mInserted++;
+                changes.addDay(locationId, day.getKey());
+            }
+        }
+        for (int i = 0; i < updatedIds.size(); i++) {
+            delta.mUpdated += db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                    updatedDays.get(i), WeatherContract.WeatherEntry._ID + " = ?",
+                    new String[]{Long.toString(updatedIds.get(i))});
+        }
+        for (long id : expiredIds) {
+            delta.mExpired += db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherContract.WeatherEntry._ID + " = ?", new String[]{Long.toString(id)});
+        }
+    }
+
+    // Whether the row under the cursor already holds every value in day.
+    private static boolean matches(Cursor cursor, ContentValues day) {
+        for (String column : day.keySet()) {
+            int index = cursor.getColumnIndex(column);
+            if (index == -1) {
+                return false;
+            }
+            Object value = day.get(column);
+            if (value == null) {
+                if (!cursor.isNull(index)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                // Compared as doubles, since an integer may well be stored in a REAL column.
+                if (cursor.isNull(index)
+                        || cursor.getDouble(index) != ((Number) value).doubleValue()) {
+                    return false;
+                }
+            } else if (!value.toString().equals(cursor.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delete every weather row dated before {@code horizon}, then all but the newest
+     * {@code maxDays} rows of each location, and give up to {@link #COMPACTION_VACUUM_PAGES}
+     * free pages back to the file system.  A horizon or cap of 0 is no limit.  With a horizon,
+     * locations that are left with no weather and no archived history are deleted too, so
+     * that one nobody has synced since the horizon stops being kept.
+     *
+     * Rows go {@link #COMPACTION_BATCH_SIZE} at a time, each batch in its own transaction, so
+     * readers only ever wait for one batch.  Don't call this within a transaction: the space
+     * can't be reclaimed inside one.
+     */
+    static CompactionReport compact(SQLiteDatabase db, long horizon, int maxDays) {
+        return compact(db, horizon, maxDays, new WeatherChanges());
+    }
+
+    // The same, adding every location that lost rows to changes.
+    static CompactionReport compact(SQLiteDatabase db, long horizon, int maxDays,
+                                    WeatherChanges changes) {
+        CompactionReport report = new CompactionReport();
+        long sizeBefore = databaseSize(db);
+
+        if (horizon > 0) {
+            String normalizedHorizon = Long.toString(WeatherContract.normalizeDate(horizon));
+            Cursor cursor = db.rawQuery("SELECT DISTINCT "
+                    + WeatherContract.WeatherEntry.COLUMN_LOC_KEY
+                    + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                    + " WHERE " + WeatherContract.WeatherEntry.COLUMN_DATE + " < ?",
+                    new String[]{normalizedHorizon});
+            try {
+                while (cursor.moveToNext()) {
+                    changes.addLocation(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            SQLiteStatement delete = db.compileStatement(sDeleteExpiredSql);
+            try {
+                delete.bindLong(1, WeatherContract.normalizeDate(horizon));
+                delete.bindLong(2, COMPACTION_BATCH_SIZE);
+                report.mExpired = deleteInBatches(db, delete);
+            } finally {
+                delete.close();
+            }
+        }
+
+        if (maxDays > 0) {
+            List<Long> locationIds = new ArrayList<Long>();
+            Cursor cursor = db.rawQuery("SELECT " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY
+                    + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                    + " GROUP BY " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY
+                    + " HAVING COUNT(*) > ?", new String[]{Integer.toString(maxDays)});
+            try {
+                while (cursor.moveToNext()) {
+                    locationIds.add(cursor.getLong(0));
+                    changes.addLocation(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            SQLiteStatement delete = db.compileStatement(sDeleteOverCapSql);
+            try {
+                for (long locationId : locationIds) {
+                    delete.bindLong(1, locationId);
+                    delete.bindLong(2, COMPACTION_BATCH_SIZE);
+                    delete.bindLong(3, maxDays);
+                    report.mOverCap += deleteInBatches(db, delete);
+                }
+            } finally {
+                delete.close();
+            }
+        }
+
+        if (horizon > 0) {
+            report.mLocationsPruned = db.delete(WeatherContract.LocationEntry.TABLE_NAME,
+                    sUnusedLocationSelection, null);
+        }
+
+        // Only a database with incremental vacuum can give pages back a few at a time; any
+        // other is converted by WeatherDbHelper when it opens, never here.
+        if (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0
+                && DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == WeatherDbHelper.AUTO_VACUUM_INCREMENTAL) {
+            // Each step of the pragma frees a page, so it has to be run through to the end.
+            Cursor cursor = db.rawQuery(
+                    "PRAGMA incremental_vacuum(" + COMPACTION_VACUUM_PAGES + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        report.mBytesReclaimed = Math.max(0, sizeBefore - databaseSize(db));
+        if (report.getPurgedCount() > 0 || report.mBytesReclaimed > 0) {
+            checkpoint(db);
+        }
+        return report;
+    }
+
+    // Run the delete until it runs out of rows, a batch per transaction.
+    private static int deleteInBatches(SQLiteDatabase db, SQLiteStatement delete) {
+        int total = 0;
+        int deleted;
+        do {
+            db.beginTransactionNonExclusive();
+            try {
+                deleted = delete.executeUpdateDelete();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            total += deleted;
+        } while (deleted == COMPACTION_BATCH_SIZE);
+        return total;
+    }
+
+    // Copy the write-ahead log back into the database now, rather than at some commit later,
+    // so that the pages just given back come off the file too.  Passive: it stops at any page
+    // a reader still needs instead of waiting for it.
+    private static void checkpoint(SQLiteDatabase db) {
+        if (db.isWriteAheadLoggingEnabled()) {
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+        }
+    }
+
+    private static long databaseSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.AbstractAccountAuthenticator;
+import android.accounts.Account;
+import android.accounts.AccountAuthenticatorResponse;
+import android.accounts.NetworkErrorException;
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * The sync framework only runs sync adapters for an account, so Sunshine has one, with
+ * nothing to authenticate.  Every method here is a no-op or unsupported.
+ */
+public class SunshineAuthenticator extends AbstractAccountAuthenticator {
+
+    public SunshineAuthenticator(Context context) {
+        super(context);
+    }
+
+    // No properties to edit.
+    @Override
+    public Bundle editProperties(AccountAuthenticatorResponse r, String s) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Because we're not actually adding an account to the device, just return null.
+    @Override
+    public Bundle addAccount(AccountAuthenticatorResponse r, String s, String s2,
+                             String[] strings, Bundle bundle) throws NetworkErrorException {
+        return null;
+    }
+
+    // Ignore attempts to confirm credentials
+    @Override
+    public Bundle confirmCredentials(AccountAuthenticatorResponse r, Account account,
+                                     Bundle bundle) throws NetworkErrorException {
+        return null;
+    }
+
+    // Getting an authentication token is not supported
+    @Override
+    public Bundle getAuthToken(AccountAuthenticatorResponse r, Account account, String s,
+                               Bundle bundle) throws NetworkErrorException {
+        throw new UnsupportedOperationException();
+    }
+
+    // Getting a label for the auth token is not supported
+    @Override
+    public String getAuthTokenLabel(String s) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Updating user credentials is not supported
+    @Override
+    public Bundle updateCredentials(AccountAuthenticatorResponse r, Account account, String s,
+                                    Bundle bundle) throws NetworkErrorException {
+        throw new UnsupportedOperationException();
+    }
+
+    // Checking features for the account is not supported
+    @Override
+    public Bundle hasFeatures(AccountAuthenticatorResponse r, Account account, String[] strings)
+            throws NetworkErrorException {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.AbstractThreadedSyncAdapter;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SyncRequest;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.WeatherSyncEngine;
+import com.example.android.sunshine.app.data.CompactionReport;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Refreshes the forecasts whenever the sync framework says so.
+ *
+ * The framework keeps the queue: requests made while a sync is pending are folded into it,
+ * nothing runs without a network connection, and what's pending survives the process dying
+ * or the device restarting.  Syncs that fail are retried with its own backoff.
+ *
+ * Each sync covers the preferred location and every other one that was preferred within
+ * {@link #RETENTION_DAYS}, in a single call to {@link WeatherSyncEngine}; forecasts still
+ * fresh in its cache never reach the network.  Afterwards the weather table is compacted, so
+ * that past days don't pile up forever, and locations no sync has kept up are pruned.
+ */
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
+
+    public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+
+    // Interval at which to sync with the weather, in seconds, and how much of that the
+    // framework may shift the sync by to line it up with other work.
+    public static final int SYNC_INTERVAL = 60 * 60 * 3;
+    public static final int SYNC_FLEXTIME = SYNC_INTERVAL / 3;
+
+    // Below this, and not plugged in, only syncs someone asked for run.
+    static final int LOW_BATTERY_PERCENT = 15;
+
+    // How many days of history the weather table keeps, and how many days in all it keeps
+    // for any one location.  Anything more is purged after each sync.
+    static final int RETENTION_DAYS = 7;
+    static final int MAX_DAYS_PER_LOCATION = 30;
+
+    // When each location setting was last the preferred one, in milliseconds.
+    private static final String PREFS_NAME = "sync_locations";
+
+    public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        super(context, autoInitialize);
+    }
+
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority,
+                              ContentProviderClient provider, SyncResult syncResult) {
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        if (!manual && isBatteryLow(getContext())) {
+            // The next periodic sync will try again.
+            Log.d(LOG_TAG, "Battery low, skipping periodic sync");
+            return;
+        }
+
+        Set<String> locationSettings = getLocationSettings(getContext(),
+                System.currentTimeMillis());
+        WeatherSyncEngine.SyncResult result = WeatherSyncEngine.getInstance(getContext())
+                .sync(locationSettings);
+
+        syncResult.stats.numEntries += result.getLocations().size();
+        syncResult.stats.numInserts += result.getInsertedCount();
+        // Counted as soft errors, so the framework retries the sync later.
+        syncResult.stats.numIoExceptions += result.getFailureCount();
+        Log.d(LOG_TAG, "Synced " + locationSettings.size() + " locations in "
+                + result.getElapsedMillis() + " ms, " + result.getFailureCount() + " failed");
+
+        compact(provider, syncResult);
+    }
+
+    // Sync time is as good a time as any to purge what's no longer worth keeping: the
+    // framework has already decided the device can spare the work.
+    private void compact(ContentProviderClient provider, SyncResult syncResult) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_HORIZON, System.currentTimeMillis()
+                - RETENTION_DAYS * DateUtils.DAY_IN_MILLIS);
+        extras.putInt(WeatherContract.EXTRA_MAX_DAYS, MAX_DAYS_PER_LOCATION);
+        try {
+            CompactionReport report = CompactionReport.fromBundle(
+                    provider.call(WeatherContract.METHOD_COMPACT, null, extras));
+            syncResult.stats.numDeletes += report.getPurgedCount();
+            Log.d(LOG_TAG, "Compacted: " + report);
+        } catch (RemoteException e) {
+            // Nothing lost: the next sync purges whatever this one didn't.
+            Log.e(LOG_TAG, "Couldn't compact the weather table", e);
+        }
+    }
+
+    // The preferred location first, then every other one preferred as recently as the
+    // weather table keeps history.  Any preferred longer ago is forgotten, and once its days
+    // age out compaction prunes it from the location table too.
+    static Set<String> getLocationSettings(Context context, long now) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        Set<String> locationSettings = new LinkedHashSet<String>();
+        String preferred = Utility.getPreferredLocation(context);
+        locationSettings.add(preferred);
+        editor.putLong(preferred, now);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            Object lastPreferred = entry.getValue();
+            if (lastPreferred instanceof Long
+                    && now - (Long) lastPreferred < RETENTION_DAYS * DateUtils.DAY_IN_MILLIS) {
+                locationSettings.add(entry.getKey());
+            } else if (!entry.getKey().equals(preferred)) {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.commit();
+        return locationSettings;
+    }
+
+    static boolean isBatteryLow(Context context) {
+        // A sticky broadcast, so this returns straight away without registering anything.
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return false;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    /**
+     * Helper method to schedule the sync adapter periodic execution
+     */
+    public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
+        Account account = getSyncAccount(context);
+        String authority = context.getString(R.string.content_authority);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // we can enable inexact timers in our periodic sync
+            SyncRequest request = new SyncRequest.Builder()
+                    .syncPeriodic(syncInterval, flexTime)
+                    .setSyncAdapter(account, authority)
+                    .setExtras(new Bundle())
+                    .build();
+            ContentResolver.requestSync(request);
+        } else {
+            ContentResolver.addPeriodicSync(account, authority, new Bundle(), syncInterval);
+        }
+    }
+
+    /**
+     * Helper method to have the sync adapter sync immediately.  This is all the UI should
+     * ever do to refresh the forecasts.
+     *
+     * @param context The context used to access the account service
+     */
+    public static void syncImmediately(Context context) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
+    /**
+     * Helper method to get the fake account to be used with SyncAdapter, or make a new one
+     * if the fake account doesn't exist yet.  If we make a new account, we call the
+     * onAccountCreated method so we can initialize things.
+     *
+     * @param context The context used to access the account service
+     * @return a fake account.
+     */
+    public static Account getSyncAccount(Context context) {
+        AccountManager accountManager = AccountManager.get(context);
+        Account newAccount = new Account(
+                context.getString(R.string.app_name),
+                context.getString(R.string.sync_account_type));
+
+        // If the password doesn't exist, the account doesn't exist
+        if (accountManager.getPassword(newAccount) == null) {
+            // Add the account and account type, no password or user data.
+            // If successful, return the Account object, otherwise report an error.
+            if (!accountManager.addAccountExplicitly(newAccount, "", null)) {
+                return null;
+            }
+            onAccountCreated(newAccount, context);
+        }
+        return newAccount;
+    }
+
+    private static void onAccountCreated(Account newAccount, Context context) {
+        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        ContentResolver.setSyncAutomatically(newAccount,
+                context.getString(R.string.content_authority), true);
+        syncImmediately(context);
+    }
+
+    public static void initializeSyncAdapter(Context context) {
+        getSyncAccount(context);
+    }
+}